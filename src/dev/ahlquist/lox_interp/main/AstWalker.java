@@ -0,0 +1,192 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.List;
+
+/*
+ * Visits every node of a tree, children in evaluation order, and does
+ * nothing else. Analyses that only care about a few node kinds extend this
+ * and override those, calling super to keep walking. Superinstructions
+ * are walked through the nodes they replaced.
+ */
+abstract class AstWalker implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    void walk(List<Stmt> statements) {
+        for (Stmt statement : statements) statement.accept(this);
+    }
+
+    void walk(Stmt statement) {
+        statement.accept(this);
+    }
+
+    void walk(Expr expr) {
+        expr.accept(this);
+    }
+
+    /* Statements */
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        walk(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superclass != null) walk(stmt.superclass);
+        for (Stmt.Function method : stmt.methods) walk(method);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        walk(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        walk(stmt.thenBranch);
+        if (stmt.elseBranch != null) walk(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        walk(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return visitPrintStmt(stmt.original);
+    }
+
+    /* Expressions */
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        walk(expr.callee);
+        for (Expr arg : expr.args) walk(arg);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        walk(expr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        walk(expr.expr);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        return visitAssignExpr(expr.original);
+    }
+
+    @Override
+    public Void visitCompareConstExpr(Expr.CompareConst expr) {
+        return visitBinaryExpr(expr.original);
+    }
+
+    @Override
+    public Void visitAssignLocalExpr(Expr.AssignLocal expr) {
+        return visitAssignExpr(expr.original);
+    }
+
+    @Override
+    public Void visitCallGlobalExpr(Expr.CallGlobal expr) {
+        return visitCallExpr(expr.original);
+    }
+}
@@ -0,0 +1,64 @@
+package dev.ahlquist.lox_interp.main;
+
+/*
+ * Limits on a single run, so one runaway script can't hold a worker thread
+ * forever. Fuel is spent one unit per loop iteration and per function call;
+ * those are the only places a program can keep running without bound, so
+ * they are the only checkpoints. The clock is read every CLOCK_INTERVAL
+ * units of fuel rather than every time. Instances count objects created by
+ * calling a class.
+ *
+ * Running out throws a RuntimeError, which unwinds the script like any
+ * other Lox error. Parallel workers share their parent's budget without
+ * locking, so under parallelReduce the counts are approximate.
+ */
+class Budget {
+
+    static final long UNLIMITED = Long.MAX_VALUE;
+    private static final int CLOCK_INTERVAL = 1024;
+
+    private final long fuel;
+    private final long timeoutNanos;
+    private final long maxInstances;
+
+    private long remaining;
+    private long deadline;
+    private long instances;
+    private int untilClock;
+
+    Budget(long fuel, long timeoutMillis, long maxInstances) {
+        this.fuel = fuel;
+        this.timeoutNanos = timeoutMillis == UNLIMITED ? UNLIMITED : timeoutMillis * 1_000_000;
+        this.maxInstances = maxInstances;
+        start();
+    }
+
+    // Resets the budget for a new run.
+    void start() {
+        remaining = fuel;
+        deadline = timeoutNanos == UNLIMITED ? 0 : System.nanoTime() + timeoutNanos;
+        instances = 0;
+        untilClock = CLOCK_INTERVAL;
+    }
+
+    // A checkpoint. Token is where to report running out, or null for the
+    // caller to fill in, as with natives.
+    void tick(Token token) {
+        if (--remaining < 0) {
+            remaining = 0;
+            throw new RuntimeError(token, "Execution budget of " + fuel + " steps exhausted.");
+        }
+        if (--untilClock == 0) {
+            untilClock = CLOCK_INTERVAL;
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                throw new RuntimeError(token, "Time limit of " + timeoutNanos / 1_000_000 + " ms exceeded.");
+            }
+        }
+    }
+
+    void instantiate() {
+        if (++instances > maxInstances) {
+            throw new RuntimeError(null, "Instance limit of " + maxInstances + " exceeded.");
+        }
+    }
+}
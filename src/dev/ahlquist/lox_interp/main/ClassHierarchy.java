@@ -0,0 +1,177 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Whole-program class hierarchy analysis. A class can't change once it is
+ * declared, so when exactly one method declaration anywhere in the program
+ * has a given name, every instance that finds a method by that name finds
+ * that one. If its class is also declared at the top level, the
+ * declaration runs once and there is only ever one LoxFunction for it.
+ * A call 'obj.name(...)' can then skip LoxInstance.get(), findMethod() and
+ * bind(): the engines check that obj's class is, or inherits from, the
+ * class that declares the method, and run its body directly.
+ *
+ * Fields shadow methods, so a name that any code assigns as a property
+ * doesn't qualify, and neither does 'init'.
+ *
+ * Each run (a script, a REPL line, a loaded image) adds to what the
+ * analysis has seen. When a later run declares the name again or assigns
+ * it as a field, the target is invalidated, and call sites compiled
+ * against it go back to the general path from their next call on.
+ */
+class ClassHierarchy {
+
+    static final class Target {
+        final String name;
+        final Stmt.Function method;
+        volatile boolean valid = true;
+
+        // The class that declares the method and its function, from the
+        // first call that found them.
+        private volatile LoxClass owner;
+        private volatile LoxFunction function;
+
+        Target(String name, Stmt.Function method) {
+            this.name = name;
+            this.method = method;
+        }
+
+        // Whether a call site may use this target on interpreter. Memoized
+        // and watched calls go through LoxFunction.call.
+        boolean usable(Interpreter interpreter) {
+            if (!valid || observed(interpreter)) return false;
+            return interpreter.memo == null || !interpreter.purity.isPure(method);
+        }
+
+        // The method instance finds under this name, or null if that isn't
+        // this target's method: its class doesn't inherit it.
+        LoxFunction resolve(LoxInstance instance) {
+            LoxClass owner = this.owner;
+            for (LoxClass klass = instance.klass(); klass != null; klass = klass.superclass()) {
+                if (owner != null) {
+                    if (klass == owner) return function;
+                    continue;
+                }
+                LoxFunction found = klass.methods().get(name);
+                if (found != null && found.declaration() == method) {
+                    function = found;
+                    this.owner = klass;
+                    return found;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Every method declaration seen, by name, and those whose class is
+    // only ever created once.
+    private final Map<String, List<Stmt.Function>> declared = new HashMap<>();
+    private final Set<Stmt.Function> once = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<String> fields = new HashSet<>();
+
+    // Read by worker threads while a run is going.
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    // The target for a method name, or null.
+    Target target(String name) {
+        return targets.get(name);
+    }
+
+    // Calls that something else is watching go through LoxFunction.call,
+    // which reports them.
+    static boolean observed(Interpreter interpreter) {
+        if (interpreter.profiler != null || LoxEvents.ENABLED || Metrics.ENABLED) return true;
+        RuntimeProfile profile = interpreter.runtimeProfile;
+        return profile != null && profile.recording;
+    }
+
+    // Adds a resolved program's declarations and property assignments.
+    void analyze(List<Stmt> statements) {
+        Set<String> changed = new HashSet<>();
+        new AstWalker() {
+            private int depth = 0;
+
+            @Override
+            public Void visitClassStmt(Stmt.Class stmt) {
+                for (Stmt.Function method : stmt.methods) {
+                    declare(method, depth == 0);
+                    changed.add(method.name.lexeme);
+                }
+                depth++;
+                super.visitClassStmt(stmt);
+                depth--;
+                return null;
+            }
+
+            @Override
+            public Void visitFunctionStmt(Stmt.Function stmt) {
+                depth++;
+                super.visitFunctionStmt(stmt);
+                depth--;
+                return null;
+            }
+
+            @Override
+            public Void visitBlockStmt(Stmt.Block stmt) {
+                depth++;
+                super.visitBlockStmt(stmt);
+                depth--;
+                return null;
+            }
+
+            @Override
+            public Void visitSetExpr(Expr.Set expr) {
+                if (fields.add(expr.name.lexeme)) changed.add(expr.name.lexeme);
+                return super.visitSetExpr(expr);
+            }
+        }.walk(statements);
+        update(changed);
+    }
+
+    // Adds what a loaded image brought with it: classes that already
+    // exist, and instances whose fields were set by code never analyzed.
+    void load(Collection<LoxClass> classes, Collection<LoxInstance> instances) {
+        Set<String> changed = new HashSet<>();
+        for (LoxClass klass : classes) {
+            for (LoxFunction method : klass.methods().values()) {
+                declare(method.declaration(), true);
+                changed.add(method.declaration().name.lexeme);
+            }
+        }
+        for (LoxInstance instance : instances) {
+            for (String field : instance.fields().keySet())
+                if (fields.add(field)) changed.add(field);
+        }
+        update(changed);
+    }
+
+    private void declare(Stmt.Function method, boolean topLevel) {
+        declared.computeIfAbsent(method.name.lexeme, name -> new ArrayList<>()).add(method);
+        if (topLevel) once.add(method);
+    }
+
+    private void update(Set<String> names) {
+        for (String name : names) {
+            List<Stmt.Function> methods = declared.get(name);
+            boolean unique = methods != null && methods.size() == 1 && once.contains(methods.get(0))
+                    && !fields.contains(name) && !name.equals("init");
+            Target target = targets.get(name);
+            if (target != null && !unique) {
+                target.valid = false;
+                targets.remove(name);
+            } else if (target == null && unique) {
+                targets.put(name, new Target(name, methods.get(0)));
+            }
+        }
+    }
+}
@@ -0,0 +1,803 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compiles the AST into a tree of Java lambdas. Everything the tree-walker
+ * looks up on each visit (operator, resolved depth, variable name) is read
+ * once here and captured by the lambda, so running a node is a single
+ * interface call with no switch and no locals lookup.
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Code>, Stmt.Visitor<ClosureCompiler.Action> {
+
+    // A compiled expression.
+    interface Code {
+        Object run(Environment env);
+    }
+
+    // A compiled statement.
+    interface Action {
+        void run(Environment env);
+    }
+
+    // A compiled expression TypeInference proved is a number, which runs
+    // without boxing its result.
+    interface NumberCode {
+        double run(Environment env);
+    }
+
+    private final Interpreter interpreter;
+
+    // Compiled function bodies. Bodies are compiled as soon as their
+    // declaration is, so this is only written while compiling a run or a
+    // reload.
+    private final Map<List<Stmt>, Action[]> bodies = new IdentityHashMap<>();
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Action[] body(List<Stmt> statements) {
+        Action[] body = bodies.get(statements);
+        if (body == null) {
+            body = compile(statements);
+            bodies.put(statements, body);
+        }
+        return body;
+    }
+
+    void forget(List<Stmt> statements) {
+        bodies.remove(statements);
+    }
+
+    // A function body compiled so far, or null.
+    Action[] compiled(List<Stmt> statements) {
+        return bodies.get(statements);
+    }
+
+    Action[] compile(List<Stmt> statements) {
+        Action[] actions = new Action[statements.size()];
+        for (int i = 0; i < actions.length; i++)
+            actions[i] = compile(statements.get(i));
+        return actions;
+    }
+
+    Action compile(Stmt stmt) {
+        Action action = stmt.accept(this);
+        if (Metrics.ENABLED) {
+            Action counted = action;
+            action = env -> {
+                Metrics.STATEMENTS.increment();
+                counted.run(env);
+            };
+        }
+
+        Profiler profiler = interpreter.profiler;
+        if (profiler == null) return action;
+
+        int line = profiler.lines.lineOf(stmt);
+        Action profiled = action;
+        return env -> {
+            profiler.line(line);
+            profiled.run(env);
+        };
+    }
+
+    Code compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    Code[] compileAll(List<Expr> exprs) {
+        Code[] codes = new Code[exprs.size()];
+        for (int i = 0; i < codes.length; i++)
+            codes[i] = compile(exprs.get(i));
+        return codes;
+    }
+
+    static List<Object> evaluateAll(Code[] args, Environment env) {
+        List<Object> values = new ArrayList<>(args.length);
+        for (Code arg : args)
+            values.add(arg.run(env));
+        return values;
+    }
+
+    private static void runAll(Action[] actions, Environment env) {
+        for (Action action : actions)
+            action.run(env);
+    }
+
+    /* Expr.Visitor<Code> */
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        Code value = compile(expr.value);
+        Token name = expr.name;
+        Integer depth = interpreter.resolvedDepth(expr);
+
+        if (depth == null) {
+            Environment globals = interpreter.globals;
+            return env -> {
+                Object result = value.run(env);
+                globals.assign(name, result);
+                return result;
+            };
+        }
+
+        int distance = depth;
+        return env -> {
+            Object result = value.run(env);
+            env.assignAt(name, result, distance);
+            return result;
+        };
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        if (isNumeric(expr)) return numeric(expr);
+
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        Token operator = expr.operator;
+
+        RuntimeProfile profile = interpreter.runtimeProfile;
+        if (profile != null && profile.recording) {
+            // Types are or-ed together, so each operand can record its own.
+            RuntimeProfile.Site site = profile.binary(operator);
+            Code unrecordedLeft = left;
+            Code unrecordedRight = right;
+            left = env -> {
+                Object value = unrecordedLeft.run(env);
+                site.count++;
+                site.types |= RuntimeProfile.typeOf(value);
+                return value;
+            };
+            right = env -> {
+                Object value = unrecordedRight.run(env);
+                site.types |= RuntimeProfile.typeOf(value);
+                return value;
+            };
+        }
+        return binary(operator, left, right, profile);
+    }
+
+    private Code binary(Token operator, Code left, Code right, RuntimeProfile profile) {
+
+        switch (operator.type) {
+            case GREATER:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l > (double)r;
+                };
+            case GREATER_EQUAL:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l >= (double)r;
+                };
+            case LESS:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l < (double)r;
+                };
+            case LESS_EQUAL:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l <= (double)r;
+                };
+
+            case PLUS:
+                if (profile != null && profile.onlyNumbers(operator)) {
+                    // Specialized on a loaded profile; anything else still works.
+                    return env -> {
+                        Object l = left.run(env);
+                        Object r = right.run(env);
+                        if (l instanceof Double && r instanceof Double)
+                            return (double)l + (double)r;
+                        return Interpreter.evaluatePlus(operator, l, r);
+                    };
+                }
+                return env -> Interpreter.evaluatePlus(operator, left.run(env), right.run(env));
+            case MINUS:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l - (double)r;
+                };
+            case SLASH:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l / (double)r;
+                };
+            case STAR:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l * (double)r;
+                };
+
+            case BANG_EQUAL:
+                return env -> !Interpreter.isEqual(left.run(env), right.run(env));
+            case EQUAL_EQUAL:
+                return env -> Interpreter.isEqual(left.run(env), right.run(env));
+
+            default:
+                throw new IllegalStateException("Unknown binary operator " + operator.type);
+        }
+    }
+
+    /* Proven numbers */
+    private static boolean isNumeric(Expr.Binary expr) {
+        return expr.left.type == TypeInference.NUMBER && expr.right.type == TypeInference.NUMBER;
+    }
+
+    // Both operands are numbers, so there are no checks, and nested
+    // arithmetic passes doubles along without boxing them.
+    private Code numeric(Expr.Binary expr) {
+        NumberCode left = compileNumber(expr.left);
+        NumberCode right = compileNumber(expr.right);
+        switch (expr.operator.type) {
+            case PLUS: return env -> left.run(env) + right.run(env);
+            case MINUS: return env -> left.run(env) - right.run(env);
+            case STAR: return env -> left.run(env) * right.run(env);
+            case SLASH: return env -> left.run(env) / right.run(env);
+            case GREATER: return env -> left.run(env) > right.run(env);
+            case GREATER_EQUAL: return env -> left.run(env) >= right.run(env);
+            case LESS: return env -> left.run(env) < right.run(env);
+            case LESS_EQUAL: return env -> left.run(env) <= right.run(env);
+            // Double.equals, as Interpreter.isEqual() does it.
+            case EQUAL_EQUAL: return env -> Double.compare(left.run(env), right.run(env)) == 0;
+            case BANG_EQUAL: return env -> Double.compare(left.run(env), right.run(env)) != 0;
+
+            default:
+                throw new IllegalStateException("Unknown binary operator " + expr.operator.type);
+        }
+    }
+
+    // Only for expressions whose type is TypeInference.NUMBER.
+    NumberCode compileNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            double value = (Double) ((Expr.Literal) expr).value;
+            return env -> value;
+        }
+        if (expr instanceof Expr.Grouping) return compileNumber(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary && ((Expr.Unary) expr).right.type == TypeInference.NUMBER) {
+            NumberCode operand = compileNumber(((Expr.Unary) expr).right);
+            return env -> -operand.run(env);
+        }
+        if (expr instanceof Expr.Binary && isNumeric((Expr.Binary) expr)) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            NumberCode left = compileNumber(binary.left);
+            NumberCode right = compileNumber(binary.right);
+            switch (binary.operator.type) {
+                case PLUS: return env -> left.run(env) + right.run(env);
+                case MINUS: return env -> left.run(env) - right.run(env);
+                case STAR: return env -> left.run(env) * right.run(env);
+                case SLASH: return env -> left.run(env) / right.run(env);
+                default: break;
+            }
+        }
+        Code code = compile(expr);
+        return env -> (double) code.run(env);
+    }
+
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        // Methods with one declaration are called without looking them up.
+        ClassHierarchy hierarchy = interpreter.hierarchy;
+        if (expr.callee instanceof Expr.Get && hierarchy != null) {
+            ClassHierarchy.Target target = hierarchy.target(((Expr.Get) expr.callee).name.lexeme);
+            if (target != null && target.usable(interpreter)) return devirtualized(expr, target);
+        }
+        return call(expr);
+    }
+
+    private Code call(Expr.Call expr) {
+        Code callee = compile(expr.callee);
+        Code[] args = compileAll(expr.args);
+        Token paren = expr.paren;
+
+        // Array and map indexing goes straight to the collection when the
+        // callee turns out to be one of the indexing natives.
+        if (args.length == 2) {
+            Code collection = args[0];
+            Code index = args[1];
+            return env -> {
+                Object function = callee.run(env);
+                if (function == interpreter.arrayGet)
+                    return LoxArray.get(paren, collection.run(env), index.run(env));
+                if (function == interpreter.mapGet)
+                    return LoxMap.get(paren, collection.run(env), index.run(env));
+                return interpreter.call(paren, function, evaluateAll(args, env));
+            };
+        } else if (args.length == 3) {
+            Code collection = args[0];
+            Code index = args[1];
+            Code value = args[2];
+            return env -> {
+                Object function = callee.run(env);
+                if (function == interpreter.arraySet)
+                    return LoxArray.set(paren, collection.run(env), index.run(env), value.run(env));
+                if (function == interpreter.mapSet)
+                    return LoxMap.set(paren, collection.run(env), index.run(env), value.run(env));
+                return interpreter.call(paren, function, evaluateAll(args, env));
+            };
+        } else if (args.length == 1) {
+            Code array = args[0];
+            return env -> {
+                Object function = callee.run(env);
+                if (function == interpreter.arrayLength)
+                    return LoxArray.length(paren, array.run(env));
+                return interpreter.call(paren, function, evaluateAll(args, env));
+            };
+        }
+
+        return env -> {
+            Object function = callee.run(env);
+            return interpreter.call(paren, function, evaluateAll(args, env));
+        };
+    }
+
+    // A method call ClassHierarchy found one declaration for. The general
+    // call is compiled if a later run invalidates the target.
+    private Code devirtualized(Expr.Call expr, ClassHierarchy.Target target) {
+        Expr.Get get = (Expr.Get) expr.callee;
+        Code object = compile(get.expr);
+        Code[] args = compileAll(expr.args);
+        Code[] general = { null };
+        Token name = get.name;
+        Token paren = expr.paren;
+
+        return env -> {
+            if (!target.valid) {
+                if (general[0] == null) general[0] = call(expr);
+                return general[0].run(env);
+            }
+
+            Object value = object.run(env);
+            if (!(value instanceof LoxInstance))
+                throw new RuntimeError(name, "Only instances have properties.");
+            LoxInstance instance = (LoxInstance) value;
+            LoxFunction method = target.resolve(instance);
+            if (method == null) return interpreter.call(paren, instance.get(name), evaluateAll(args, env));
+
+            List<Object> values = evaluateAll(args, env);
+            if (values.size() != method.arity()) return interpreter.call(paren, method.bind(instance), values);
+            return method.callOn(interpreter, paren, instance, values);
+        };
+    }
+
+    @Override
+    public Code visitGetExpr(Expr.Get expr) {
+        Code object = compile(expr.expr);
+        Token name = expr.name;
+
+        RuntimeProfile profile = interpreter.runtimeProfile;
+        if (profile != null && profile.recording) {
+            RuntimeProfile.Site site = profile.get(name);
+            return env -> {
+                Object instance = object.run(env);
+                if (instance instanceof LoxInstance) {
+                    RuntimeProfile.recordGet(site, (LoxInstance) instance, name.lexeme);
+                    return ((LoxInstance) instance).get(name);
+                }
+
+                throw new RuntimeError(name, "Only instances have properties.");
+            };
+        }
+        if (profile != null && profile.monomorphicMethod(name)) return cachedMethod(object, name);
+
+        return env -> {
+            Object instance = object.run(env);
+            if (instance instanceof LoxInstance)
+                return ((LoxInstance) instance).get(name);
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    // A property access the profile says always finds a method on one
+    // class. The last class and its method are cached at the site, and the
+    // cache is checked after the fields, which still shadow methods.
+    private Code cachedMethod(Code object, Token name) {
+        String lexeme = name.lexeme;
+        MethodCache[] cache = { null };
+
+        return env -> {
+            Object value = object.run(env);
+            if (!(value instanceof LoxInstance))
+                throw new RuntimeError(name, "Only instances have properties.");
+
+            LoxInstance instance = (LoxInstance) value;
+            MethodCache cached = cache[0];
+            if (cached != null && cached.klass == instance.klass() && !instance.fields().containsKey(lexeme))
+                return cached.method.bind(instance);
+
+            Object result = instance.get(name);
+            if (!instance.fields().containsKey(lexeme)) {
+                cache[0] = new MethodCache(instance.klass(), instance.klass().findMethod(lexeme));
+            }
+            return result;
+        };
+    }
+
+    private static final class MethodCache {
+        final LoxClass klass;
+        final LoxFunction method;
+
+        MethodCache(LoxClass klass, LoxFunction method) {
+            this.klass = klass;
+            this.method = method;
+        }
+    }
+
+    @Override
+    public Code visitGroupingExpr(Expr.Grouping expr) {
+        // Grouping only matters to the parser.
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Code visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return env -> value;
+    }
+
+    @Override
+    public Code visitLogicalExpr(Expr.Logical expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return env -> {
+                Object l = left.run(env);
+                return Interpreter.isTruthy(l) ? l : right.run(env);
+            };
+        }
+        return env -> {
+            Object l = left.run(env);
+            return !Interpreter.isTruthy(l) ? l : right.run(env);
+        };
+    }
+
+    @Override
+    public Code visitSetExpr(Expr.Set expr) {
+        Code object = compile(expr.expr);
+        Code value = compile(expr.value);
+        Token name = expr.name;
+
+        return env -> {
+            Object instance = object.run(env);
+            if (!(instance instanceof LoxInstance))
+                throw new RuntimeError(name, "Only instances have fields.");
+
+            Object result = value.run(env);
+            ((LoxInstance) instance).set(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Code visitSuperExpr(Expr.Super expr) {
+        int depth = interpreter.resolvedDepth(expr);
+        Token method = expr.method;
+
+        return env -> {
+            LoxClass superclass = (LoxClass) env.getAt("super", depth);
+
+            // 'this' is always one level above 'super'
+            LoxInstance object = (LoxInstance) env.getAt("this", depth - 1);
+
+            LoxFunction function = superclass.findMethod(method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+            }
+            return function.bind(object);
+        };
+    }
+
+    @Override
+    public Code visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr);
+    }
+
+    @Override
+    public Code visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS && expr.right.type == TypeInference.NUMBER) {
+            NumberCode right = compileNumber(expr.right);
+            return env -> -right.run(env);
+        }
+
+        Code right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case BANG:
+                return env -> !Interpreter.isTruthy(right.run(env));
+            case MINUS:
+                return env -> {
+                    Object r = right.run(env);
+                    Interpreter.checkNumberOperand(operator, r);
+                    return -(double)r;
+                };
+
+            default:
+                throw new IllegalStateException("Unknown unary operator " + operator.type);
+        }
+    }
+
+    @Override
+    public Code visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr);
+    }
+
+    private Code variable(Token name, Expr expr) {
+        Integer depth = interpreter.resolvedDepth(expr);
+        if (depth == null) {
+            Environment globals = interpreter.globals;
+            return env -> globals.get(name);
+        }
+
+        String lexeme = name.lexeme;
+        int distance = depth;
+        return env -> env.getAt(lexeme, distance);
+    }
+
+    /* Superinstructions */
+    @Override
+    public Code visitIncrementExpr(Expr.Increment expr) {
+        Code fallback = visitAssignExpr(expr.original);
+        Token name = expr.original.name;
+        double delta = expr.delta;
+        long[] counts = counts();
+        int kind = Superinstructions.Kind.INCREMENT.ordinal();
+
+        if (expr.depth == null) {
+            Environment globals = interpreter.globals;
+            return env -> {
+                if (counts != null) counts[kind]++;
+                Object value = globals.get(name);
+                if (!(value instanceof Double)) return fallback.run(env);
+                Object result = (double)value + delta;
+                globals.assign(name, result);
+                return result;
+            };
+        }
+
+        int depth = expr.depth;
+        return env -> {
+            if (counts != null) counts[kind]++;
+            Object value = env.getAt(name.lexeme, depth);
+            if (!(value instanceof Double)) return fallback.run(env);
+            Object result = (double)value + delta;
+            env.assignAt(name, result, depth);
+            return result;
+        };
+    }
+
+    @Override
+    public Code visitCompareConstExpr(Expr.CompareConst expr) {
+        Code fallback = visitBinaryExpr(expr.original);
+        Code variable = variable(expr.name, expr.original.left);
+        TokenType type = expr.original.operator.type;
+        double constant = expr.constant;
+        long[] counts = counts();
+        int kind = Superinstructions.Kind.COMPARE_CONST.ordinal();
+
+        return env -> {
+            if (counts != null) counts[kind]++;
+            Object value = variable.run(env);
+            if (!(value instanceof Double)) return fallback.run(env);
+            return Interpreter.compare(type, (double)value, constant);
+        };
+    }
+
+    @Override
+    public Code visitAssignLocalExpr(Expr.AssignLocal expr) {
+        Code value = compile(expr.original.value);
+        Token name = expr.original.name;
+        int depth = expr.depth;
+        long[] counts = counts();
+        int kind = Superinstructions.Kind.ASSIGN_LOCAL.ordinal();
+
+        return env -> {
+            if (counts != null) counts[kind]++;
+            Object result = value.run(env);
+            env.assignAt(name, result, depth);
+            return result;
+        };
+    }
+
+    @Override
+    public Code visitCallGlobalExpr(Expr.CallGlobal expr) {
+        Environment globals = interpreter.globals;
+        Token name = expr.name;
+        Token paren = expr.original.paren;
+        Token operator = expr.arg.operator;
+        Code left = compile(expr.arg.left);
+        Code right = compile(expr.arg.right);
+        long[] counts = counts();
+        int kind = Superinstructions.Kind.CALL_GLOBAL.ordinal();
+
+        return env -> {
+            if (counts != null) counts[kind]++;
+            Object callee = globals.get(name);
+            Object arg = Interpreter.evaluateArithmetic(operator, left.run(env), right.run(env));
+            return interpreter.call(paren, callee, Collections.singletonList(arg));
+        };
+    }
+
+    @Override
+    public Action visitImportStmt(Stmt.Import stmt) {
+        String name = stmt.name.lexeme;
+        Modules modules = interpreter.modules;
+        return env -> env.define(name, modules.run(stmt, interpreter));
+    }
+
+    @Override
+    public Action visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        Code variable = variable(stmt.name, stmt.original.expression);
+        long[] counts = counts();
+        int kind = Superinstructions.Kind.PRINT_VARIABLE.ordinal();
+        LoxOutput out = interpreter.out;
+
+        return env -> {
+            if (counts != null) counts[kind]++;
+            out.println(variable.run(env));
+        };
+    }
+
+    // Execution counters, or null when nobody asked for the report.
+    private long[] counts() {
+        Superinstructions superinstructions = interpreter.superinstructions;
+        if (superinstructions == null || !superinstructions.counting) return null;
+        return superinstructions.executed;
+    }
+
+    /* Stmt.Visitor<Action> */
+    @Override
+    public Action visitBlockStmt(Stmt.Block stmt) {
+        Action[] body = compile(stmt.statements);
+        return env -> runAll(body, new Environment(env));
+    }
+
+    @Override
+    public Action visitClassStmt(Stmt.Class stmt) {
+        Code superclassCode = stmt.superclass == null ? null : compile(stmt.superclass);
+        Token name = stmt.name;
+        Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+        List<Stmt.Function> methods = stmt.methods;
+        for (Stmt.Function method : methods) body(method.body);
+
+        return env -> {
+            Object superclass = null;
+            if (superclassCode != null) {
+                superclass = superclassCode.run(env);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class.");
+                }
+            }
+
+            env.define(name.lexeme, null);
+
+            Environment methodEnv = env;
+            if (superclass != null) {
+                methodEnv = new Environment(env);
+                methodEnv.define("super", superclass);
+            }
+
+            Map<String, LoxFunction> functions = new HashMap<>();
+            for (Stmt.Function method : methods) {
+                LoxFunction function
+                        = new LoxFunction(method, methodEnv, "init".equals(method.name.lexeme));
+                functions.put(method.name.lexeme, function);
+            }
+
+            env.assign(name, new LoxClass(name.lexeme, (LoxClass) superclass, functions));
+        };
+    }
+
+    @Override
+    public Action visitExpressionStmt(Stmt.Expression stmt) {
+        Code expression = compile(stmt.expression);
+        return expression::run;
+    }
+
+    @Override
+    public Action visitIfStmt(Stmt.If stmt) {
+        Code condition = compile(stmt.condition);
+        Action thenBranch = compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            return env -> {
+                if (Interpreter.isTruthy(condition.run(env))) thenBranch.run(env);
+            };
+        }
+
+        Action elseBranch = compile(stmt.elseBranch);
+        return env -> {
+            if (Interpreter.isTruthy(condition.run(env))) {
+                thenBranch.run(env);
+            } else {
+                elseBranch.run(env);
+            }
+        };
+    }
+
+    @Override
+    public Action visitPrintStmt(Stmt.Print stmt) {
+        Code expression = compile(stmt.expression);
+        LoxOutput out = interpreter.out;
+        return env -> out.println(expression.run(env));
+    }
+
+    @Override
+    public Action visitVarStmt(Stmt.Var stmt) {
+        String name = stmt.name.lexeme;
+        if (stmt.initializer == null)
+            return env -> env.define(name, null);
+
+        Code initializer = compile(stmt.initializer);
+        return env -> env.define(name, initializer.run(env));
+    }
+
+    @Override
+    public Action visitFunctionStmt(Stmt.Function stmt) {
+        body(stmt.body);
+        String name = stmt.name.lexeme;
+        return env -> env.define(name, new LoxFunction(stmt, env, false));
+    }
+
+    @Override
+    public Action visitWhileStmt(Stmt.While stmt) {
+        Code condition = compile(stmt.condition);
+        Action body = compile(stmt.body);
+        Budget budget = interpreter.budget;
+        HotReload reload = interpreter.reload;
+        Token keyword = stmt.keyword;
+
+        if (budget != null || reload != null) {
+            return env -> {
+                while (Interpreter.isTruthy(condition.run(env))) {
+                    if (budget != null) budget.tick(keyword);
+                    if (reload != null) reload.poll();
+                    body.run(env);
+                }
+            };
+        }
+        return env -> {
+            while (Interpreter.isTruthy(condition.run(env)))
+                body.run(env);
+        };
+    }
+
+    @Override
+    public Action visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null)
+            return env -> { throw new Return(null); };
+
+        Code value = compile(stmt.value);
+        return env -> { throw new Return(value.run(env)); };
+    }
+
+    @Override
+    public Action visitYieldStmt(Stmt.Yield stmt) {
+        Code value = compile(stmt.value);
+        Token keyword = stmt.keyword;
+        return env -> LoxGenerator.yield(keyword, value.run(env));
+    }
+}
@@ -0,0 +1,57 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.List;
+
+/*
+ * Runs programs through the ClosureCompiler instead of visiting the AST.
+ * Function bodies are compiled along with their declarations, and
+ * LoxFunction.call finds them again through executeBlock().
+ */
+public class CompilingInterpreter extends Interpreter {
+
+    private final ClosureCompiler compiler = new ClosureCompiler(this);
+
+    @Override
+    void interpret(List<Stmt> statements) {
+        try {
+            long started = Metrics.now();
+            LoxEvents.Phase phase = LoxEvents.begin("compile");
+            ClosureCompiler.Action[] actions = compiler.compile(statements);
+            LoxEvents.end(phase);
+            Metrics.stage(Metrics.COMPILE, started);
+
+            for (ClosureCompiler.Action action : actions) {
+                action.run(globals);
+            }
+        } catch (RuntimeError error) {
+            out.flush();
+            Lox.runtimeError(error);
+        } finally {
+            out.flush();
+        }
+    }
+
+    // Everything is compiled anyway; the compiler reads the profile itself.
+    @Override
+    void warmStart(List<Stmt> statements) {
+    }
+
+    @Override
+    public void executeBlock(List<Stmt> statements, Environment env) {
+        for (ClosureCompiler.Action action : compiler.body(statements))
+            action.run(env);
+    }
+
+    @Override
+    void forget(List<Stmt> body) {
+        super.forget(body);
+        compiler.forget(body);
+    }
+
+    // Compiled code passes its environment explicitly and keeps no other
+    // per-thread state, so workers can share this interpreter.
+    @Override
+    Interpreter fork() {
+        return this;
+    }
+}
@@ -0,0 +1,61 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+// Compares throughput of the tree-walking and closure-compiling engines on one script.
+public class EngineBenchmark {
+
+    private static final String[] ENGINES = { "tree", "closure" };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: engine_benchmark <script> [iterations] [warmup]");
+            System.exit(64);
+        }
+        String source = new String(Files.readAllBytes(Paths.get(args[0])), Charset.defaultCharset());
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int warmup = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        PrintStream out = System.out;
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        double baseline = 0;
+        for (String engine : ENGINES) {
+            long[] times = new long[iterations];
+            System.setOut(sink);
+            try {
+                for (int i = 0; i < warmup; i++)
+                    runOnce(engine, source);
+                for (int i = 0; i < iterations; i++)
+                    times[i] = runOnce(engine, source);
+            } finally {
+                System.setOut(out);
+            }
+
+            if (Lox.hadError || Lox.hadRuntimeError) {
+                System.err.println("Script failed under the " + engine + " engine.");
+                System.exit(70);
+            }
+
+            Arrays.sort(times);
+            double median = times[iterations / 2] / 1e6;
+            if (baseline == 0) baseline = median;
+            out.printf("%-8s median %10.3f ms  min %10.3f ms  speedup %5.2fx%n",
+                    engine, median, times[0] / 1e6, baseline / median);
+        }
+    }
+
+    // Each run gets a fresh interpreter so globals don't leak between iterations.
+    private static long runOnce(String engine, String source) {
+        Interpreter interpreter = Lox.newInterpreter(engine);
+        long start = System.nanoTime();
+        Lox.run(source, interpreter);
+        return System.nanoTime() - start;
+    }
+}
@@ -10,10 +10,16 @@ class Environment {
 
     public Environment() {
         parent = null;
+        if (Metrics.ENABLED) Metrics.ENVIRONMENTS.increment();
     }
 
     public Environment(Environment parent) {
         this.parent = parent;
+        if (Metrics.ENABLED) Metrics.ENVIRONMENTS.increment();
+    }
+
+    Map<String, Object> values() {
+        return values;
     }
 
     void define(String name, Object value) {
@@ -17,10 +17,17 @@ abstract class Expr {
     R visitThisExpr(This expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
+    R visitIncrementExpr(Increment expr);
+    R visitCompareConstExpr(CompareConst expr);
+    R visitAssignLocalExpr(AssignLocal expr);
+    R visitCallGlobalExpr(CallGlobal expr);
   }
 
   abstract <R> R accept(Visitor<R> visitor);
 
+  // The one type TypeInference proved this always evaluates to, or 0.
+  int type;
+
   static class Assign extends Expr {
     Assign(Token name, Expr value) {
       this.name = name;
@@ -189,4 +196,68 @@ abstract class Expr {
 
     final Token name;
   }
+  static class Increment extends Expr {
+    Increment(Expr.Assign original, Integer depth, double delta) {
+      this.original = original;
+      this.depth = depth;
+      this.delta = delta;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIncrementExpr(this);
+    }
+
+    final Expr.Assign original;
+    final Integer depth;
+    final double delta;
+  }
+  static class CompareConst extends Expr {
+    CompareConst(Expr.Binary original, Token name, Integer depth, double constant) {
+      this.original = original;
+      this.name = name;
+      this.depth = depth;
+      this.constant = constant;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCompareConstExpr(this);
+    }
+
+    final Expr.Binary original;
+    final Token name;
+    final Integer depth;
+    final double constant;
+  }
+  static class AssignLocal extends Expr {
+    AssignLocal(Expr.Assign original, int depth) {
+      this.original = original;
+      this.depth = depth;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitAssignLocalExpr(this);
+    }
+
+    final Expr.Assign original;
+    final int depth;
+  }
+  static class CallGlobal extends Expr {
+    CallGlobal(Expr.Call original, Token name, Expr.Binary arg) {
+      this.original = original;
+      this.name = name;
+      this.arg = arg;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCallGlobalExpr(this);
+    }
+
+    final Expr.Call original;
+    final Token name;
+    final Expr.Binary arg;
+  }
 }
@@ -0,0 +1,148 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Times a switch into a generator and back, and runs a pipeline of
+// generators over n and 10n values while watching the live heap, next to
+// the same pipeline over arrays, which holds every value at each stage.
+public class GeneratorBenchmark {
+
+    private static final String PRELUDE =
+            "fun range(n) {\n" +
+            "  var i = 0;\n" +
+            "  while (i < n) { yield i; i = i + 1; }\n" +
+            "}\n" +
+            "fun square(x) { return x * x; }\n" +
+            "fun small(x) { return x < 1000000; }\n";
+
+    // The same loop twice, with and without a generator in it.
+    private static final String LOOP =
+            "var i = 0;\n" +
+            "var sum = 0;\n" +
+            "while (i < %d) { sum = sum + i; i = i + 1; }\n" +
+            "print sum;\n";
+
+    private static final String SWITCH =
+            "var g = range(%d);\n" +
+            "var sum = 0;\n" +
+            "while (hasNext(g)) sum = sum + next(g);\n" +
+            "print sum;\n";
+
+    private static final String PIPELINE =
+            "fun map(g, f) {\n" +
+            "  while (hasNext(g)) yield f(next(g));\n" +
+            "}\n" +
+            "fun filter(g, p) {\n" +
+            "  while (hasNext(g)) { var x = next(g); if (p(x)) yield x; }\n" +
+            "}\n" +
+            "var g = filter(map(range(%d), square), small);\n" +
+            "var sum = 0;\n" +
+            "while (hasNext(g)) sum = sum + next(g);\n" +
+            "print sum;\n";
+
+    private static final String ARRAYS =
+            "var n = %d;\n" +
+            "var values = array(0, nil);\n" +
+            "var i = 0;\n" +
+            "while (i < n) { arrayPush(values, i); i = i + 1; }\n" +
+            "var squares = array(0, nil);\n" +
+            "i = 0;\n" +
+            "while (i < n) { arrayPush(squares, square(arrayGet(values, i))); i = i + 1; }\n" +
+            "var kept = array(0, nil);\n" +
+            "i = 0;\n" +
+            "while (i < n) {\n" +
+            "  var x = arrayGet(squares, i);\n" +
+            "  if (small(x)) arrayPush(kept, x);\n" +
+            "  i = i + 1;\n" +
+            "}\n" +
+            "var sum = 0;\n" +
+            "i = 0;\n" +
+            "while (i < arrayLength(kept)) { sum = sum + arrayGet(kept, i); i = i + 1; }\n" +
+            "print sum;\n";
+
+    public static void main(String[] args) throws InterruptedException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        String engine = args.length > 1 ? args[1] : "tree";
+
+        PrintStream out = System.out;
+        out.printf("%d values on %s threads, %s engine%n", n, Tasks.virtual() ? "virtual" : "platform", engine);
+        if (Lox.newInterpreter(engine) == null) {
+            System.err.println("Unknown engine " + engine + ".");
+            System.exit(64);
+        }
+
+        // Interpreters print to the System.out they were made with.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long loop = time(engine, String.format(LOOP, n));
+            long switched = time(engine, String.format(SWITCH, n));
+            System.setOut(out);
+            out.printf("switch:  %10.3f ms  (%.2f us per next, %.2f us over a plain loop)%n",
+                    switched / 1e6, switched / 1e3 / n, (switched - loop) / 1e3 / n);
+
+            for (int size : new int[] { n, 10 * n }) {
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                Run generators = watch(engine, String.format(PIPELINE, size));
+                Run arrays = watch(engine, String.format(ARRAYS, size));
+                System.setOut(out);
+                out.printf("%8d through 3 stages:  generators %10.3f ms, %8.0f KB live  |  arrays %10.3f ms, %8.0f KB live%n",
+                        size, generators.nanos / 1e6, generators.peak / 1024.0, arrays.nanos / 1e6, arrays.peak / 1024.0);
+            }
+        } finally {
+            System.setOut(out);
+        }
+
+        if (Lox.hadError || Lox.hadRuntimeError) {
+            System.err.println("Benchmark script failed.");
+            System.exit(70);
+        }
+    }
+
+    private static long time(String engine, String script) {
+        Interpreter interpreter = Lox.newInterpreter(engine);
+        Lox.run(PRELUDE, interpreter);
+        long start = System.nanoTime();
+        Lox.run(script, interpreter);
+        return System.nanoTime() - start;
+    }
+
+    private static final class Run {
+        long nanos;
+        volatile long peak;
+    }
+
+    // Runs script while another thread collects every 20 ms and keeps the
+    // most the heap held after a collection, over what it held before.
+    private static Run watch(String engine, String script) throws InterruptedException {
+        Interpreter interpreter = Lox.newInterpreter(engine);
+        Lox.run(PRELUDE, interpreter);
+        long before = heapUsed();
+        Run run = new Run();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                run.peak = Math.max(run.peak, heapUsed() - before);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+
+        long start = System.nanoTime();
+        Lox.run(script, interpreter);
+        run.nanos = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+        return run;
+    }
+
+    private static long heapUsed() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
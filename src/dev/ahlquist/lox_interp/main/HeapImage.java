@@ -0,0 +1,931 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A binary image of the global environment after a prelude has run: its
+ * classes, functions and their closures, instances, modules, arrays, maps
+ * and constants. Loading one puts the same globals back without scanning,
+ * parsing, resolving or running the prelude again.
+ *
+ * Functions need their code, so the image carries the AST of every
+ * function it references, along with the depths the Resolver gave its
+ * variables. Superinstructions are stored as the nodes they replaced and
+ * fused again on load. Natives aren't stored; a reference to one is kept
+ * by the native's global name and bound to the loading interpreter's.
+ *
+ * A module is stored as its name and its environment, and rebuilt over
+ * the same environment, so its fields and its functions' variables stay
+ * one and the same.
+ *
+ * Layout, after the magic number and version:
+ *   strings     a count, then each string's UTF-8 length and bytes
+ *   functions   each referenced function declaration's AST, then END
+ *   objects     in construction order: a kind, then the earlier objects it
+ *               is built from (enclosing environment, closure, class...)
+ *   contents    for each object in the same order, the values it holds
+ * Integers are varints, and token positions are deltas from the token
+ * before. Objects refer to each other by index, and index 0
+ * is the global environment.
+ */
+final class HeapImage {
+
+    private static final int MAGIC = 0x4c4f5849; // "LOXI"
+    private static final int VERSION = 2;
+
+    private enum Kind { ENVIRONMENT, FUNCTION, CLASS, INSTANCE, ARRAY, MAP, MODULE }
+
+    private enum Tag { NIL, TRUE, FALSE, NUMBER, STRING, OBJECT, NATIVE }
+
+    private enum Node {
+        NULL, END, FUNCTION_REF,
+        BLOCK, CLASS, EXPRESSION, IF, PRINT, VAR, FUNCTION, WHILE, RETURN,
+        ASSIGN, BINARY, CALL, GET, GROUPING, LITERAL, LOGICAL, SET, SUPER, THIS, UNARY, VARIABLE,
+        IMPORT, YIELD
+    }
+
+    private HeapImage() {}
+
+    static void write(Interpreter interpreter, Path path) throws IOException {
+        byte[] image = new Writer(interpreter).write();
+        Files.write(path, image);
+    }
+
+    // Defines the image's globals in interpreter, over any already there.
+    static void load(Interpreter interpreter, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            new Reader(interpreter, buffer).read();
+        } catch (RuntimeException e) {
+            // Truncated or corrupt: the buffer ran out or an index was out of range.
+            throw new IOException("Not a valid image (" + e + ").");
+        }
+    }
+
+    // The global name of each native, by class: every native is its own
+    // anonymous class, so this holds across interpreters.
+    private static Map<Class<?>, String> nativeNames() {
+        Map<Class<?>, String> names = new HashMap<>();
+        for (Map.Entry<String, Object> global : new Interpreter().globals.values().entrySet()) {
+            if (isNative(global.getValue())) names.put(global.getValue().getClass(), global.getKey());
+        }
+        return names;
+    }
+
+    private static boolean isNative(Object value) {
+        return value instanceof LoxCallable && !(value instanceof LoxFunction) && !(value instanceof LoxClass);
+    }
+
+    /* Writing */
+    private static final class Output extends ByteArrayOutputStream {
+        void varint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void number(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                write((int) (bits >>> shift));
+        }
+    }
+
+    private static final class Writer implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+        private final Interpreter interpreter;
+        private final Map<Class<?>, String> natives = nativeNames();
+
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<Stmt.Function, Integer> functions = new IdentityHashMap<>();
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private final List<Object> objects = new ArrayList<>();
+
+        private final Output ast = new Output();
+        private int line = 0;
+        private int offset = 0;
+
+        Writer(Interpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        byte[] write() throws IOException {
+            ids.put(interpreter.globals, 0);
+            objects.add(interpreter.globals);
+            // Finds everything reachable, adding to objects as it goes.
+            for (int i = 0; i < objects.size(); i++) {
+                for (Object value : contents(objects.get(i)))
+                    if (value != null) value(new Output(), value);
+            }
+            ast.varint(Node.END.ordinal());
+
+            Output body = new Output();
+            body.varint(objects.size() - 1);
+            for (int i = 1; i < objects.size(); i++)
+                construction(body, objects.get(i));
+            for (Object object : objects)
+                contents(body, object);
+
+            Output image = new Output();
+            for (int shift = 24; shift >= 0; shift -= 8)
+                image.write(MAGIC >>> shift);
+            image.varint(VERSION);
+            image.varint(strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                image.varint(bytes.length);
+                image.write(bytes);
+            }
+            ast.writeTo(image);
+            body.writeTo(image);
+            return image.toByteArray();
+        }
+
+        private void string(Output out, String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.put(string, index);
+            }
+            out.varint(index);
+        }
+
+        // The index of an object, after the objects it is built from.
+        private int object(Object object) {
+            Integer id = ids.get(object);
+            if (id != null) return id;
+
+            if (object instanceof Environment) {
+                Environment environment = (Environment) object;
+                if (environment.parent != null) object(environment.parent);
+            } else if (object instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) object;
+                object(function.closure());
+                function(function.declaration());
+            } else if (object instanceof LoxClass) {
+                LoxClass klass = (LoxClass) object;
+                if (klass.superclass() != null) object(klass.superclass());
+                for (LoxFunction method : klass.methods().values())
+                    object(method);
+            } else if (object instanceof LoxModule) {
+                object(((LoxModule) object).environment);
+            } else if (object instanceof LoxInstance) {
+                object(((LoxInstance) object).klass());
+            }
+
+            id = objects.size();
+            ids.put(object, id);
+            objects.add(object);
+            return id;
+        }
+
+        private int function(Stmt.Function declaration) {
+            if (!functions.containsKey(declaration)) visitFunctionStmt(declaration);
+            return functions.get(declaration);
+        }
+
+        private void value(Output out, Object value) throws IOException {
+            if (value == null) {
+                out.varint(Tag.NIL.ordinal());
+            } else if (value instanceof Boolean) {
+                out.varint(((Boolean) value ? Tag.TRUE : Tag.FALSE).ordinal());
+            } else if (value instanceof Double) {
+                out.varint(Tag.NUMBER.ordinal());
+                out.number((Double) value);
+            } else if (LoxRope.isString(value)) {
+                out.varint(Tag.STRING.ordinal());
+                string(out, LoxRope.flat(value).toString());
+            } else if (value instanceof Environment || value instanceof LoxFunction || value instanceof LoxClass
+                    || value instanceof LoxInstance || value instanceof LoxArray || value instanceof LoxMap) {
+                out.varint(Tag.OBJECT.ordinal());
+                out.varint(object(value));
+            } else if (isNative(value) && natives.containsKey(value.getClass())) {
+                out.varint(Tag.NATIVE.ordinal());
+                string(out, natives.get(value.getClass()));
+            } else {
+                throw new IOException("Can't store " + value + " in an image.");
+            }
+        }
+
+        // The values an object holds, in the order contents() writes them.
+        private List<Object> contents(Object object) {
+            List<Object> values = new ArrayList<>();
+            if (object instanceof Environment) {
+                for (Map.Entry<String, Object> entry : variables((Environment) object).entrySet())
+                    values.add(entry.getValue());
+            } else if (object instanceof LoxModule) {
+                // Its fields are its environment's variables.
+            } else if (object instanceof LoxInstance) {
+                values.addAll(((LoxInstance) object).fields().values());
+            } else if (object instanceof LoxArray) {
+                LoxArray array = (LoxArray) object;
+                for (int i = 0; i < array.size(); i++)
+                    values.add(array.get(i));
+            } else if (object instanceof LoxMap) {
+                LoxMap map = (LoxMap) object;
+                LoxArray keys = map.keys();
+                for (int i = 0; i < keys.size(); i++) {
+                    values.add(keys.get(i));
+                    values.add(map.get(keys.get(i)));
+                }
+            }
+            return values;
+        }
+
+        // An environment's variables, leaving out the globals every
+        // interpreter starts with.
+        private Map<String, Object> variables(Environment environment) {
+            if (environment != interpreter.globals) return environment.values();
+            Map<String, Object> variables = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> entry : environment.values().entrySet()) {
+                Object value = entry.getValue();
+                if (isNative(value) && entry.getKey().equals(natives.get(value.getClass()))) continue;
+                variables.put(entry.getKey(), value);
+            }
+            return variables;
+        }
+
+        private void construction(Output out, Object object) {
+            if (object instanceof Environment) {
+                Environment parent = ((Environment) object).parent;
+                out.varint(Kind.ENVIRONMENT.ordinal());
+                out.varint(parent == null ? 0 : ids.get(parent) + 1);
+            } else if (object instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) object;
+                out.varint(Kind.FUNCTION.ordinal());
+                out.varint(functions.get(function.declaration()));
+                out.varint(ids.get(function.closure()));
+                out.varint(function.isInitializer() ? 1 : 0);
+            } else if (object instanceof LoxClass) {
+                LoxClass klass = (LoxClass) object;
+                out.varint(Kind.CLASS.ordinal());
+                string(out, klass.name);
+                out.varint(klass.superclass() == null ? 0 : ids.get(klass.superclass()) + 1);
+                out.varint(klass.methods().size());
+                for (Map.Entry<String, LoxFunction> method : klass.methods().entrySet()) {
+                    string(out, method.getKey());
+                    out.varint(ids.get(method.getValue()));
+                }
+            } else if (object instanceof LoxModule) {
+                LoxModule module = (LoxModule) object;
+                out.varint(Kind.MODULE.ordinal());
+                string(out, module.name);
+                out.varint(ids.get(module.environment));
+            } else if (object instanceof LoxInstance) {
+                out.varint(Kind.INSTANCE.ordinal());
+                out.varint(ids.get(((LoxInstance) object).klass()));
+            } else if (object instanceof LoxArray) {
+                out.varint(Kind.ARRAY.ordinal());
+            } else {
+                out.varint(Kind.MAP.ordinal());
+            }
+        }
+
+        private void contents(Output out, Object object) throws IOException {
+            if (object instanceof Environment) {
+                Map<String, Object> variables = variables((Environment) object);
+                out.varint(variables.size());
+                for (Map.Entry<String, Object> entry : variables.entrySet()) {
+                    string(out, entry.getKey());
+                    value(out, entry.getValue());
+                }
+            } else if (object instanceof LoxInstance && !(object instanceof LoxModule)) {
+                Map<String, Object> fields = ((LoxInstance) object).fields();
+                out.varint(fields.size());
+                for (Map.Entry<String, Object> entry : fields.entrySet()) {
+                    string(out, entry.getKey());
+                    value(out, entry.getValue());
+                }
+            } else if (object instanceof LoxArray || object instanceof LoxMap) {
+                List<Object> values = contents(object);
+                out.varint(object instanceof LoxMap ? values.size() / 2 : values.size());
+                for (Object value : values)
+                    value(out, value);
+            }
+        }
+
+        /* The AST, written by visiting it */
+        private void node(Node node) {
+            ast.varint(node.ordinal());
+        }
+
+        private void token(Token token) {
+            string(ast, token.type.name());
+            string(ast, token.lexeme);
+            constant(token.literal);
+            // Relative to the token before, which is usually close by.
+            ast.varint(zigzag(token.line - line));
+            ast.varint(zigzag(token.offset - offset));
+            line = token.line;
+            offset = token.offset;
+        }
+
+        private static int zigzag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+
+        private void constant(Object value) {
+            if (value instanceof Double) {
+                ast.varint(Tag.NUMBER.ordinal());
+                ast.number((Double) value);
+            } else if (value instanceof String) {
+                ast.varint(Tag.STRING.ordinal());
+                string(ast, (String) value);
+            } else if (value instanceof Boolean) {
+                ast.varint(((Boolean) value ? Tag.TRUE : Tag.FALSE).ordinal());
+            } else {
+                ast.varint(Tag.NIL.ordinal());
+            }
+        }
+
+        // 0 for a global, otherwise the Resolver's depth plus one.
+        private void depth(Expr expr) {
+            Integer depth = interpreter.resolvedDepth(expr);
+            ast.varint(depth == null ? 0 : depth + 1);
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt == null) node(Node.NULL);
+            else stmt.accept(this);
+        }
+
+        private void stmts(List<? extends Stmt> statements) {
+            ast.varint(statements.size());
+            for (Stmt statement : statements)
+                stmt(statement);
+        }
+
+        private void expr(Expr expr) {
+            if (expr == null) node(Node.NULL);
+            else expr.accept(this);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            node(Node.BLOCK);
+            stmts(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            node(Node.CLASS);
+            token(stmt.name);
+            expr(stmt.superclass);
+            stmts(stmt.methods);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            node(Node.EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            node(Node.IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            node(Node.PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            node(Node.VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        // A declaration already written is referred to by its index, so
+        // functions and the closures made from them share one node.
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            Integer id = functions.get(stmt);
+            if (id != null) {
+                node(Node.FUNCTION_REF);
+                ast.varint(id);
+                return null;
+            }
+            functions.put(stmt, functions.size());
+            node(Node.FUNCTION);
+            token(stmt.name);
+            ast.varint(stmt.params.size());
+            for (Token param : stmt.params)
+                token(param);
+            stmts(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            node(Node.WHILE);
+            token(stmt.keyword);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            node(Node.RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitYieldStmt(Stmt.Yield stmt) {
+            node(Node.YIELD);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            node(Node.IMPORT);
+            token(stmt.keyword);
+            token(stmt.path);
+            token(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+            return stmt.original.accept(this);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            node(Node.ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            node(Node.BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            node(Node.CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            ast.varint(expr.args.size());
+            for (Expr arg : expr.args)
+                expr(arg);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            node(Node.GET);
+            expr(expr.expr);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            node(Node.GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            node(Node.LITERAL);
+            constant(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            node(Node.LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            node(Node.SET);
+            expr(expr.expr);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            node(Node.SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            node(Node.THIS);
+            token(expr.keyword);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            node(Node.UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            node(Node.VARIABLE);
+            token(expr.name);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitIncrementExpr(Expr.Increment expr) {
+            return expr.original.accept(this);
+        }
+
+        @Override
+        public Void visitCompareConstExpr(Expr.CompareConst expr) {
+            return expr.original.accept(this);
+        }
+
+        @Override
+        public Void visitAssignLocalExpr(Expr.AssignLocal expr) {
+            return expr.original.accept(this);
+        }
+
+        @Override
+        public Void visitCallGlobalExpr(Expr.CallGlobal expr) {
+            return expr.original.accept(this);
+        }
+    }
+
+    /* Reading */
+    private static final class Reader {
+        private final Interpreter interpreter;
+        private final ByteBuffer in;
+        private String[] strings;
+        private final List<Stmt.Function> functions = new ArrayList<>();
+        private Object[] objects;
+        private int line = 0;
+        private int offset = 0;
+
+        // Yields read in the function being read, which make it a
+        // generator, as in the Parser.
+        private int yields = 0;
+
+        Reader(Interpreter interpreter, ByteBuffer in) {
+            this.interpreter = interpreter;
+            this.in = in;
+        }
+
+        void read() throws IOException {
+            if (in.remaining() < 4 || in.getInt() != MAGIC) throw new IOException("Not a Lox image.");
+            int version = varint();
+            if (version != VERSION) throw new IOException("Unsupported image version " + version + ".");
+
+            strings = new String[varint()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[varint()];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            List<Stmt> declarations = new ArrayList<>();
+            for (Node node = node(); node != Node.END; node = node())
+                declarations.add(stmt(node));
+
+            objects = new Object[varint() + 1];
+            objects[0] = interpreter.globals;
+            for (int i = 1; i < objects.length; i++)
+                objects[i] = construct(Kind.values()[varint()]);
+            for (Object object : objects)
+                fill(object);
+
+            // Same treatment as a freshly run prelude.
+            if (interpreter.types != null) interpreter.types.analyze(declarations);
+            if (interpreter.hierarchy != null) {
+                interpreter.hierarchy.analyze(declarations);
+                interpreter.hierarchy.load(instancesOf(LoxClass.class), instancesOf(LoxInstance.class));
+            }
+            if (interpreter.superinstructions != null) interpreter.superinstructions.rewrite(declarations);
+            if (interpreter.profiler != null) interpreter.profiler.lines.index(declarations);
+            interpreter.purity.analyze(globalFunctions());
+        }
+
+        private <T> List<T> instancesOf(Class<T> type) {
+            List<T> found = new ArrayList<>();
+            for (Object object : objects)
+                if (type.isInstance(object)) found.add(type.cast(object));
+            return found;
+        }
+
+        // Functions declared at the top level, which PurityAnalysis considers.
+        private List<Stmt> globalFunctions() {
+            List<Stmt> declarations = new ArrayList<>();
+            for (Map.Entry<String, Object> global : interpreter.globals.values().entrySet()) {
+                if (!(global.getValue() instanceof LoxFunction)) continue;
+                LoxFunction function = (LoxFunction) global.getValue();
+                if (function.closure() == interpreter.globals
+                        && function.declaration().name.lexeme.equals(global.getKey()))
+                    declarations.add(function.declaration());
+            }
+            return declarations;
+        }
+
+        private int varint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        private String string() {
+            return strings[varint()];
+        }
+
+        private Object construct(Kind kind) {
+            switch (kind) {
+                case ENVIRONMENT: {
+                    int parent = varint();
+                    return parent == 0 ? new Environment() : new Environment((Environment) objects[parent - 1]);
+                }
+                case FUNCTION: {
+                    Stmt.Function declaration = functions.get(varint());
+                    Environment closure = (Environment) objects[varint()];
+                    return new LoxFunction(declaration, closure, varint() == 1);
+                }
+                case CLASS: {
+                    String name = string();
+                    int superclass = varint();
+                    Map<String, LoxFunction> methods = new HashMap<>();
+                    for (int count = varint(); count > 0; count--)
+                        methods.put(string(), (LoxFunction) objects[varint()]);
+                    return new LoxClass(name, superclass == 0 ? null : (LoxClass) objects[superclass - 1], methods);
+                }
+                case INSTANCE:
+                    return new LoxInstance((LoxClass) objects[varint()]);
+                case ARRAY:
+                    // Numeric until something else is pushed, like any array.
+                    return new LoxArray(0, 0.0);
+                case MODULE: {
+                    String name = string();
+                    return new LoxModule(name, (Environment) objects[varint()]);
+                }
+                default:
+                    return new LoxMap();
+            }
+        }
+
+        private void fill(Object object) throws IOException {
+            if (object instanceof Environment) {
+                Environment environment = (Environment) object;
+                for (int count = varint(); count > 0; count--)
+                    environment.define(string(), value());
+            } else if (object instanceof LoxInstance && !(object instanceof LoxModule)) {
+                Map<String, Object> fields = ((LoxInstance) object).fields();
+                for (int count = varint(); count > 0; count--)
+                    fields.put(string(), value());
+            } else if (object instanceof LoxArray) {
+                LoxArray array = (LoxArray) object;
+                for (int count = varint(); count > 0; count--)
+                    array.push(value());
+            } else if (object instanceof LoxMap) {
+                LoxMap map = (LoxMap) object;
+                for (int count = varint(); count > 0; count--)
+                    map.set(value(), value());
+            }
+        }
+
+        private Object value() throws IOException {
+            switch (Tag.values()[varint()]) {
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case NUMBER: return in.getDouble();
+                case STRING: return string();
+                case OBJECT: return objects[varint()];
+                default: {
+                    String name = string();
+                    Object value = interpreter.globals.values().get(name);
+                    if (!isNative(value)) throw new IOException("No native named '" + name + "'.");
+                    return value;
+                }
+            }
+        }
+
+        /* The AST */
+        private Node node() {
+            return Node.values()[varint()];
+        }
+
+        private Token token() {
+            TokenType type = TokenType.valueOf(string());
+            String lexeme = string();
+            Object literal = constant();
+            line += unzigzag(varint());
+            offset += unzigzag(varint());
+            return new Token(type, lexeme, literal, line, offset);
+        }
+
+        private static int unzigzag(int value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private Object constant() {
+            switch (Tag.values()[varint()]) {
+                case NUMBER: return in.getDouble();
+                case STRING: return string();
+                case TRUE: return true;
+                case FALSE: return false;
+                default: return null;
+            }
+        }
+
+        private void resolve(Expr expr) {
+            int depth = varint();
+            if (depth != 0) interpreter.resolve(expr, depth - 1);
+        }
+
+        private <T extends Stmt> List<T> stmts() {
+            int count = varint();
+            List<T> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                @SuppressWarnings("unchecked")
+                T statement = (T) stmt(node());
+                statements.add(statement);
+            }
+            return statements;
+        }
+
+        private Stmt stmt(Node node) {
+            switch (node) {
+                case NULL: return null;
+                case FUNCTION_REF: return functions.get(varint());
+                case BLOCK: return new Stmt.Block(stmts());
+                case CLASS: {
+                    Token name = token();
+                    Expr.Variable superclass = (Expr.Variable) expr();
+                    return new Stmt.Class(name, superclass, stmts());
+                }
+                case EXPRESSION: return new Stmt.Expression(expr());
+                case IF: {
+                    Expr condition = expr();
+                    Stmt thenBranch = stmt(node());
+                    return new Stmt.If(condition, thenBranch, stmt(node()));
+                }
+                case PRINT: return new Stmt.Print(expr());
+                case VAR: {
+                    Token name = token();
+                    return new Stmt.Var(name, expr());
+                }
+                case FUNCTION: {
+                    // Numbered before its body, as the writer did.
+                    int id = functions.size();
+                    functions.add(null);
+                    Token name = token();
+                    List<Token> params = new ArrayList<>();
+                    for (int count = varint(); count > 0; count--)
+                        params.add(token());
+                    int enclosing = yields;
+                    yields = 0;
+                    List<Stmt> body = stmts();
+                    Stmt.Function function = new Stmt.Function(name, params, body, yields > 0);
+                    yields = enclosing;
+                    functions.set(id, function);
+                    return function;
+                }
+                case WHILE: {
+                    Token keyword = token();
+                    Expr condition = expr();
+                    return new Stmt.While(keyword, condition, stmt(node()));
+                }
+                case RETURN: {
+                    Token keyword = token();
+                    return new Stmt.Return(keyword, expr());
+                }
+                case YIELD: {
+                    Token keyword = token();
+                    yields++;
+                    return new Stmt.Yield(keyword, expr());
+                }
+                case IMPORT: {
+                    Token keyword = token();
+                    Token path = token();
+                    return new Stmt.Import(keyword, path, token());
+                }
+                default:
+                    throw new IllegalStateException("Expected a statement, found " + node + ".");
+            }
+        }
+
+        private Expr expr() {
+            Node node = node();
+            switch (node) {
+                case NULL: return null;
+                case ASSIGN: {
+                    Token name = token();
+                    Expr expr = new Expr.Assign(name, expr());
+                    resolve(expr);
+                    return expr;
+                }
+                case BINARY: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Binary(left, operator, expr());
+                }
+                case CALL: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    List<Expr> args = new ArrayList<>();
+                    for (int count = varint(); count > 0; count--)
+                        args.add(expr());
+                    return new Expr.Call(callee, paren, args);
+                }
+                case GET: {
+                    Expr object = expr();
+                    return new Expr.Get(object, token());
+                }
+                case GROUPING: return new Expr.Grouping(expr());
+                case LITERAL: return new Expr.Literal(constant());
+                case LOGICAL: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expr());
+                }
+                case SET: {
+                    Expr object = expr();
+                    Token name = token();
+                    return new Expr.Set(object, name, expr());
+                }
+                case SUPER: {
+                    Token keyword = token();
+                    Expr expr = new Expr.Super(keyword, token());
+                    resolve(expr);
+                    return expr;
+                }
+                case THIS: {
+                    Expr expr = new Expr.This(token());
+                    resolve(expr);
+                    return expr;
+                }
+                case UNARY: {
+                    Token operator = token();
+                    return new Expr.Unary(operator, expr());
+                }
+                case VARIABLE: {
+                    Expr expr = new Expr.Variable(token());
+                    resolve(expr);
+                    return expr;
+                }
+                default:
+                    throw new IllegalStateException("Expected an expression, found " + node + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * A snapshot of live Lox objects, reachable from the globals and the
+ * current environment chain, with sizes given in Lox terms rather than as
+ * HashMaps and Environments.
+ *
+ * Shallow sizes are estimates for a 64-bit JVM with compressed oops. Numbers
+ * are counted in the object holding them. Retained sizes come from the
+ * dominator tree of the object graph: an object retains everything that
+ * is only reachable through it. A group's retained size counts each object
+ * once, even when objects of the same group retain each other (a linked
+ * list, say).
+ *
+ * The output is JSON with keys and entries in a stable order, so two
+ * snapshots from the same program can be diffed line by line.
+ */
+class HeapSnapshot {
+
+    private static final int LARGEST = 20;
+
+    private final List<Object> objects = new ArrayList<>();
+    private final Map<Object, Integer> ids = new IdentityHashMap<>();
+    private final List<int[]> edges = new ArrayList<>();
+    private long[] shallow;
+    private long[] retained;
+    private int[] dominator;
+
+    // Node 0 is a synthetic root pointing at every root object.
+    private HeapSnapshot(List<Object> roots) {
+        objects.add(null);
+        edges.add(null);
+
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        edges.set(0, idsOf(roots, pending));
+        while (!pending.isEmpty()) {
+            int id = pending.poll();
+            edges.set(id, idsOf(references(objects.get(id)), pending));
+        }
+
+        shallow = new long[objects.size()];
+        for (int i = 1; i < shallow.length; i++)
+            shallow[i] = shallowSize(objects.get(i));
+        dominators();
+    }
+
+    static HeapSnapshot take(Interpreter interpreter) {
+        List<Object> roots = new ArrayList<>();
+        roots.add(interpreter.globals);
+        Environment current = interpreter.currentEnvironment();
+        if (current != null) roots.add(current);
+        return new HeapSnapshot(roots);
+    }
+
+    private int[] idsOf(List<Object> references, ArrayDeque<Integer> pending) {
+        int[] result = new int[references.size()];
+        int n = 0;
+        for (Object reference : references) {
+            if (!isObject(reference)) continue;
+            Integer id = ids.get(reference);
+            if (id == null) {
+                id = objects.size();
+                ids.put(reference, id);
+                objects.add(reference);
+                edges.add(null);
+                pending.add(id);
+            }
+            result[n++] = id;
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    // Numbers, booleans and nil live inside whatever holds them.
+    private static boolean isObject(Object value) {
+        return value != null && !(value instanceof Double) && !(value instanceof Boolean);
+    }
+
+    private static List<Object> references(Object object) {
+        List<Object> references = new ArrayList<>();
+        if (object instanceof Environment) {
+            Environment environment = (Environment) object;
+            references.addAll(environment.values().values());
+            if (environment.parent != null) references.add(environment.parent);
+        } else if (object instanceof LoxInstance) {
+            LoxInstance instance = (LoxInstance) object;
+            references.add(instance.klass());
+            references.addAll(instance.fields().values());
+        } else if (object instanceof LoxClass) {
+            LoxClass klass = (LoxClass) object;
+            if (klass.superclass() != null) references.add(klass.superclass());
+            references.addAll(klass.methods().values());
+        } else if (object instanceof LoxFunction) {
+            references.add(((LoxFunction) object).closure());
+        } else if (object instanceof LoxArray) {
+            LoxArray array = (LoxArray) object;
+            if (!array.isNumeric()) {
+                for (int i = 0; i < array.size(); i++) references.add(array.get(i));
+            }
+        } else if (object instanceof LoxMap) {
+            LoxMap map = (LoxMap) object;
+            LoxArray keys = map.keys();
+            for (int i = 0; i < keys.size(); i++) {
+                references.add(keys.get(i));
+                references.add(map.get(keys.get(i)));
+            }
+        }
+        return references;
+    }
+
+    /* Sizes */
+    private static long shallowSize(Object object) {
+        if (object instanceof Environment) {
+            Map<String, Object> values = ((Environment) object).values();
+            return 24 + hashMapSize(values.size()) + boxed(values.values());
+        } else if (object instanceof LoxInstance) {
+            Map<String, Object> fields = ((LoxInstance) object).fields();
+            return 24 + hashMapSize(fields.size()) + boxed(fields.values());
+        } else if (object instanceof LoxClass) {
+            return 24 + hashMapSize(((LoxClass) object).methods().size());
+        } else if (object instanceof LoxFunction) {
+            return 24;
+        } else if (object instanceof LoxArray) {
+            LoxArray array = (LoxArray) object;
+            if (array.isNumeric()) return 24 + 16 + 8L * array.capacity();
+            List<Object> elements = new ArrayList<>();
+            for (int i = 0; i < array.size(); i++) elements.add(array.get(i));
+            return 24 + 16 + 4L * array.capacity() + boxed(elements);
+        } else if (object instanceof LoxMap) {
+            LoxMap map = (LoxMap) object;
+            LoxArray keys = map.keys();
+            List<Object> contents = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                contents.add(keys.get(i));
+                contents.add(map.get(keys.get(i)));
+            }
+            return 40 + map.footprint() + boxed(contents);
+        } else if (object instanceof String || object instanceof LoxRope) {
+            return 40 + ((CharSequence) object).length();
+        }
+        return 16; // natives
+    }
+
+    private static long hashMapSize(int entries) {
+        int table = 16;
+        while (table * 3 < entries * 4) table *= 2;
+        return 48 + 16 + 4L * table + 32L * entries;
+    }
+
+    private static long boxed(Iterable<Object> values) {
+        long size = 0;
+        for (Object value : values) {
+            if (value instanceof Double) size += 16;
+        }
+        return size;
+    }
+
+    /* Dominators, by the iterative algorithm of Cooper, Harvey and Kennedy. */
+    private void dominators() {
+        int n = objects.size();
+        int[] order = new int[n];     // postorder number of each node
+        int[] postorder = new int[n]; // nodes by postorder number
+        int count = postorder(order, postorder);
+
+        List<List<Integer>> predecessors = new ArrayList<>();
+        for (int i = 0; i < n; i++) predecessors.add(new ArrayList<>());
+        for (int from = 0; from < n; from++) {
+            for (int to : edges.get(from)) predecessors.get(to).add(from);
+        }
+
+        dominator = new int[n];
+        Arrays.fill(dominator, -1);
+        dominator[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = count - 2; i >= 0; i--) { // reverse postorder, skipping the root
+                int node = postorder[i];
+                int idom = -1;
+                for (int predecessor : predecessors.get(node)) {
+                    if (dominator[predecessor] == -1) continue;
+                    idom = idom == -1 ? predecessor : intersect(predecessor, idom, order);
+                }
+                if (dominator[node] != idom) {
+                    dominator[node] = idom;
+                    changed = true;
+                }
+            }
+        }
+
+        retained = shallow.clone();
+        for (int i = 0; i < count - 1; i++) {
+            int node = postorder[i];
+            retained[dominator[node]] += retained[node];
+        }
+    }
+
+    private int intersect(int a, int b, int[] order) {
+        while (a != b) {
+            while (order[a] < order[b]) a = dominator[a];
+            while (order[b] < order[a]) b = dominator[b];
+        }
+        return a;
+    }
+
+    // Iterative depth-first search; returns the number of nodes reached.
+    private int postorder(int[] order, int[] postorder) {
+        int[] next = new int[objects.size()];
+        boolean[] seen = new boolean[objects.size()];
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(0);
+        seen[0] = true;
+        int count = 0;
+        while (!stack.isEmpty()) {
+            int node = stack.peek();
+            int[] out = edges.get(node);
+            if (next[node] < out.length) {
+                int child = out[next[node]++];
+                if (!seen[child]) {
+                    seen[child] = true;
+                    stack.push(child);
+                }
+            } else {
+                stack.pop();
+                order[node] = count;
+                postorder[count++] = node;
+            }
+        }
+        return count;
+    }
+
+    /* Reports */
+    private static String group(Object object) {
+        if (object instanceof LoxInstance) return "instance " + ((LoxInstance) object).klass().name;
+        if (object instanceof LoxFunction) return "closure " + functionName((LoxFunction) object);
+        if (object instanceof LoxClass) return "class " + ((LoxClass) object).name;
+        if (object instanceof Environment) return "environment";
+        if (object instanceof LoxArray) return "array";
+        if (object instanceof LoxMap) return "map";
+        if (object instanceof String || object instanceof LoxRope) return "string";
+        return "native";
+    }
+
+    private static String functionName(LoxFunction function) {
+        Token name = function.declaration().name;
+        return name.lexeme + ":" + name.line;
+    }
+
+    private static class Group {
+        long count;
+        long shallow;
+        long retained;
+    }
+
+    // Groups objects, adding an object's retained size only when no object
+    // of the same group dominates it, so nothing is counted twice.
+    private Map<String, Group> groups() {
+        int n = objects.size();
+        List<List<Integer>> children = new ArrayList<>();
+        for (int i = 0; i < n; i++) children.add(new ArrayList<>());
+        for (int i = 1; i < n; i++) {
+            if (dominator[i] >= 0) children.get(dominator[i]).add(i);
+        }
+
+        Map<String, Group> groups = new TreeMap<>();
+        Map<String, Integer> open = new HashMap<>(); // group -> ancestors in it
+        String[] names = new String[n];
+        ArrayDeque<int[]> stack = new ArrayDeque<>(); // {node, entered}
+        stack.push(new int[] { 0, 0 });
+        while (!stack.isEmpty()) {
+            int[] top = stack.pop();
+            int node = top[0];
+            if (top[1] == 1) {
+                open.merge(names[node], -1, Integer::sum);
+                continue;
+            }
+
+            if (node != 0) {
+                names[node] = group(objects.get(node));
+                Group group = groups.computeIfAbsent(names[node], name -> new Group());
+                group.count++;
+                group.shallow += shallow[node];
+                if (open.getOrDefault(names[node], 0) == 0) group.retained += retained[node];
+                open.merge(names[node], 1, Integer::sum);
+                stack.push(new int[] { node, 1 });
+            }
+            for (int child : children.get(node)) stack.push(new int[] { child, 0 });
+        }
+        return groups;
+    }
+
+    void write(Writer out) throws IOException {
+        long total = 0;
+        for (int i = 1; i < shallow.length; i++) total += shallow[i];
+
+        out.write("{\n");
+        out.write(String.format(Locale.ROOT, "  \"objects\": %d,%n  \"bytes\": %d,%n", objects.size() - 1, total));
+
+        out.write("  \"groups\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Group> entry : groups().entrySet()) {
+            Group group = entry.getValue();
+            out.write(String.format(Locale.ROOT, "%s    %s: {\"count\": %d, \"shallow\": %d, \"retained\": %d}",
+                    separator, Json.quote(entry.getKey()), group.count, group.shallow, group.retained));
+            separator = ",\n";
+        }
+        out.write("\n  },\n");
+
+        // Closures: what each function value keeps alive through its
+        // captured environment. Global functions capture only the globals.
+        out.write("  \"closures\": [");
+        separator = "\n";
+        for (int id : largest(LoxFunction.class, i -> retained[i])) {
+            LoxFunction function = (LoxFunction) objects.get(id);
+            if (function.closure() == null || !ids.containsKey(function.closure())) continue;
+            int environment = ids.get(function.closure());
+            boolean owned = dominator[environment] == id;
+            out.write(String.format(Locale.ROOT, "%s    {\"function\": %s, \"retained\": %d, \"capturedEnvironment\": %d}",
+                    separator, Json.quote(functionName(function)), retained[id],
+                    owned ? retained[environment] : 0));
+            separator = ",\n";
+        }
+        out.write("\n  ],\n");
+
+        out.write("  \"largestFieldMaps\": [");
+        separator = "\n";
+        for (int id : largest(LoxInstance.class, i -> ((LoxInstance) objects.get(i)).fields().size())) {
+            LoxInstance instance = (LoxInstance) objects.get(id);
+            out.write(String.format(Locale.ROOT, "%s    {\"class\": %s, \"fields\": %d, \"shallow\": %d, \"retained\": %d}",
+                    separator, Json.quote(instance.klass().name), instance.fields().size(), shallow[id], retained[id]));
+            separator = ",\n";
+        }
+        out.write("\n  ]\n}\n");
+    }
+
+    private interface Measure {
+        long of(int id);
+    }
+
+    // Ids of the LARGEST biggest objects of a type, ties broken by id so
+    // the order is stable.
+    private List<Integer> largest(Class<?> type, Measure measure) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 1; i < objects.size(); i++) {
+            if (type.isInstance(objects.get(i))) result.add(i);
+        }
+        result.sort((a, b) -> {
+            int order = Long.compare(measure.of(b), measure.of(a));
+            return order != 0 ? order : Integer.compare(a, b);
+        });
+        return result.subList(0, Math.min(LARGEST, result.size()));
+    }
+
+    void write(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            write(writer);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * --watch: keeps a script's interpreter running while the script is edited.
+ *
+ * A daemon thread watches the script's directory and notes when the
+ * script changes. The thread running the script picks the change up at its
+ * next safepoint, which is where a Budget would tick: loop back-edges and
+ * calls, or before the next line at the prompt once the script is done.
+ * The new source is parsed, and each top-level function or class whose
+ * text changed, or which is new, is resolved, analyzed and declared again
+ * in globals, replacing the old value. Everything else the script built
+ * up stays as it is; other top-level code doesn't run again.
+ *
+ * What was compiled for a replaced declaration is dropped: its closure
+ * engine bodies, and every trace, since traces inline calls. Memoized
+ * results go too, as purity may have changed with the code. Methods
+ * declared again invalidate their ClassHierarchy targets as at the REPL.
+ * Values that already hold an old function or class, such as instances of
+ * a replaced class, keep it.
+ *
+ * A name that holds a class must go on holding one, since TypeInference
+ * has proved that calling it makes an instance. A reload with errors is
+ * reported and skipped; the next save tries again.
+ */
+class HotReload {
+
+    private final Interpreter interpreter;
+    private final Path script;
+    private final Thread owner;
+
+    // Set by the watcher thread when the script changes.
+    private volatile boolean pending = false;
+
+    // Parallel operations running on the owner thread, whose workers read
+    // the program without locking.
+    private int held = 0;
+
+    // The source last loaded, the text of each top-level function and
+    // class in it, and the text of everything else.
+    private String source;
+    private final Map<String, String> declarations = new HashMap<>();
+    private List<String> others;
+
+    HotReload(Interpreter interpreter, Path script, String source) {
+        this.interpreter = interpreter;
+        this.script = script.toAbsolutePath();
+        this.owner = Thread.currentThread();
+        this.source = source;
+
+        Program program = parse(source, new ArrayList<>());
+        for (int i = 0; i < program.names.size(); i++)
+            declarations.put(program.names.get(i), program.texts.get(i));
+        others = program.others;
+    }
+
+    void start() throws IOException {
+        WatchService service = script.getFileSystem().newWatchService();
+        // Editors that save by renaming a new file over the old one create it.
+        script.getParent().register(service,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Path name = script.getFileName();
+
+        Thread watcher = new Thread(() -> {
+            try {
+                for (;;) {
+                    WatchKey key = service.take();
+                    for (WatchEvent<?> event : key.pollEvents())
+                        if (name.equals(event.context())) pending = true;
+                    key.reset();
+                }
+            } catch (InterruptedException e) {
+                // The process is exiting.
+            }
+        }, "lox-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // A safepoint. Only the thread running the script reloads, and not
+    // while workers it started are running.
+    void poll() {
+        if (pending && Thread.currentThread() == owner && held == 0) reload();
+    }
+
+    void hold() {
+        held++;
+    }
+
+    void release() {
+        held--;
+    }
+
+    private void reload() {
+        pending = false;
+        String text;
+        try {
+            text = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        } catch (IOException e) {
+            report("Could not read " + script + ": " + e.getMessage());
+            return;
+        }
+        if (text.equals(source)) return;
+
+        List<IncrementalParser.Diagnostic> errors = new ArrayList<>();
+        Program program = parse(text, errors);
+
+        List<Stmt> changed = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < program.names.size(); i++) {
+            String name = program.names.get(i);
+            if (program.texts.get(i).equals(declarations.get(name))) continue;
+            Stmt statement = program.declarations.get(i);
+            if (interpreter.globals.values().get(name) instanceof LoxClass && !(statement instanceof Stmt.Class)) {
+                report(name + " is a class; restart to make it anything else.");
+                continue;
+            }
+            changed.add(statement);
+            names.add(name);
+            texts.add(program.texts.get(i));
+        }
+
+        if (errors.isEmpty() && !changed.isEmpty()) {
+            Lox.diagnostics.set(errors);
+            try {
+                new Resolver(interpreter).resolve(changed);
+            } finally {
+                Lox.diagnostics.remove();
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            for (IncrementalParser.Diagnostic error : errors)
+                report("[line " + error.line + "] Error: " + error.message);
+            report("Not reloaded.");
+            return;
+        }
+
+        if (!changed.isEmpty()) {
+            Lox.analyze(interpreter, changed, changed);
+            for (String name : names) forget(interpreter.globals.values().get(name));
+            if (interpreter.memo != null) interpreter.memo.clear();
+            if (interpreter.tracer != null) interpreter.tracer.reset();
+
+            try {
+                interpreter.executeBlock(changed, interpreter.globals);
+                for (int i = 0; i < names.size(); i++) declarations.put(names.get(i), texts.get(i));
+                report("Reloaded " + String.join(", ", names) + ".");
+            } catch (RuntimeError error) {
+                // A superclass that isn't a class. What was declared
+                // before it stays, and is declared again next time.
+                report(error.getMessage() + " [line " + error.token.line + "]");
+            } finally {
+                interpreter.forget(changed);
+            }
+        }
+
+        if (!program.others.equals(others))
+            report("Other top-level code changed; it runs when the script is run again.");
+        others = program.others;
+        source = text;
+    }
+
+    // Drops what was compiled for an old function or class and the
+    // functions declared inside it.
+    private void forget(Object old) {
+        List<Stmt.Function> functions = new ArrayList<>();
+        if (old instanceof LoxFunction) functions.add(((LoxFunction) old).declaration());
+        if (old instanceof LoxClass) {
+            for (LoxFunction method : ((LoxClass) old).methods().values())
+                functions.add(method.declaration());
+        }
+
+        AstWalker walker = new AstWalker() {
+            @Override
+            public Void visitFunctionStmt(Stmt.Function stmt) {
+                interpreter.forget(stmt.body);
+                return super.visitFunctionStmt(stmt);
+            }
+        };
+        for (Stmt.Function function : functions) walker.walk(function);
+    }
+
+    private void report(String message) {
+        interpreter.out.flush();
+        System.err.println("[watch] " + message);
+    }
+
+    /* Parsing */
+
+    // The top-level statements of a source, with their text.
+    private static final class Program {
+        final List<Stmt> declarations = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final List<String> texts = new ArrayList<>();
+        final List<String> others = new ArrayList<>();
+    }
+
+    private static Program parse(String source, List<IncrementalParser.Diagnostic> errors) {
+        Program program = new Program();
+        Lox.diagnostics.set(errors);
+        try {
+            List<Token> tokens = new Scanner(source).scanTokens();
+            Parser parser = new Parser(tokens);
+            while (!parser.atEnd()) {
+                Token first = tokens.get(parser.position());
+                Stmt statement = parser.next();
+                Token last = tokens.get(parser.position() - 1);
+                String text = source.substring(first.offset, last.offset + last.lexeme.length());
+
+                String name = statement instanceof Stmt.Function ? ((Stmt.Function) statement).name.lexeme
+                        : statement instanceof Stmt.Class ? ((Stmt.Class) statement).name.lexeme
+                        : null;
+                if (name == null) {
+                    program.others.add(text);
+                } else {
+                    program.declarations.add(statement);
+                    program.names.add(name);
+                    program.texts.add(text);
+                }
+            }
+        } finally {
+            Lox.diagnostics.remove();
+        }
+        return program;
+    }
+}
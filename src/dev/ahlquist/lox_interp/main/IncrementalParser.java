@@ -0,0 +1,262 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The front end for a file being edited, which keeps up with edits
+ * without going over the whole file again.
+ *
+ * The file is kept as a run of chunks, each one top-level declaration and
+ * the text before it, that between them cover the whole text. Nothing at
+ * the top level depends on its neighbours: a declaration scans, parses and
+ * resolves the same wherever it is, since top-level names are globals and
+ * the resolver leaves them alone. So an edit only goes back over the
+ * chunks it touches. Their text is scanned again as one region, parsed a
+ * declaration at a time into new chunks, and each new declaration is
+ * resolved. Chunks before the edit are kept as they are, and those after
+ * it are kept and moved.
+ *
+ * A region that ends inside a string or comment, or whose last
+ * declaration has syntax errors, may have been cut short by the edit (an
+ * opened brace, or a '//' that comments out the rest of its line), so it
+ * takes in more of the chunks after it and goes again. So does one whose
+ * last declaration looked at the token after it, as an 'if' looks for an
+ * 'else'. A declaration with syntax errors ends wherever the parser found
+ * its footing again, which depends on the tokens after it, so one just
+ * before the edit is parsed again too, as is one that looked ahead.
+ *
+ * Tokens keep the line and offset they had in the text they were scanned
+ * from, and each chunk remembers where that text started; diagnostics()
+ * adds the two up.
+ */
+class IncrementalParser {
+
+    // A front-end error. Offset is -1 when only the line is known, and
+    // atEnd is set for errors at the end of the tokens.
+    static final class Diagnostic {
+        final int line;
+        final int offset;
+        final int length;
+        final String message;
+        final boolean atEnd;
+
+        Diagnostic(int line, int offset, int length, String message, boolean atEnd) {
+            this.line = line;
+            this.offset = offset;
+            this.length = length;
+            this.message = message;
+            this.atEnd = atEnd;
+        }
+    }
+
+    private static final class Chunk {
+        // The text this chunk covers, and the line it starts on.
+        int start;
+        int end;
+        int line;
+
+        // Where the text its tokens were scanned from started.
+        int originOffset;
+        int originLine;
+
+        // Its declaration, if there is one, and what resolving it found.
+        final Stmt statement;
+        final boolean syntaxErrors;
+        // Whether parsing it looked at the token after it.
+        final boolean lookedAhead;
+        final Map<Expr, Integer> locals;
+        final List<Diagnostic> diagnostics;
+
+        Chunk(int start, int end, int line, int originOffset, int originLine,
+              Stmt statement, boolean syntaxErrors, boolean lookedAhead,
+              Map<Expr, Integer> locals, List<Diagnostic> diagnostics) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.originOffset = originOffset;
+            this.originLine = originLine;
+            this.statement = statement;
+            this.syntaxErrors = syntaxErrors;
+            this.lookedAhead = lookedAhead;
+            this.locals = locals;
+            this.diagnostics = diagnostics;
+        }
+
+        void move(int offset, int lines) {
+            start += offset;
+            end += offset;
+            line += lines;
+            originOffset += offset;
+            originLine += lines;
+        }
+    }
+
+    private String text = "";
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    // How the last edit went: declarations parsed again, and kept.
+    int reparsed;
+    int kept;
+
+    IncrementalParser(String text) {
+        edit(0, 0, text);
+    }
+
+    String text() {
+        return text;
+    }
+
+    // Replaces the text from start to end with replacement.
+    void edit(int start, int end, String replacement) {
+        int offsetDelta = replacement.length() - (end - start);
+        int lineDelta = newlines(replacement, 0, replacement.length()) - newlines(text, start, end);
+        text = text.substring(0, start) + replacement + text.substring(end);
+
+        // The chunks the edit touches, including those it only borders:
+        // characters added there may join their first or last token.
+        int first = firstEndingAtOrAfter(start);
+        while (first > 0 && (chunks.get(first - 1).syntaxErrors || chunks.get(first - 1).lookedAhead)) first--;
+        int last = first;
+        while (last < chunks.size() && chunks.get(last).start <= end) last++;
+
+        int regionStart = first < chunks.size() ? chunks.get(first).start : 0;
+        int regionLine = first < chunks.size() ? chunks.get(first).line : 1;
+        int regionEnd = last > first ? chunks.get(last - 1).end + offsetDelta : text.length();
+
+        List<Chunk> parsed;
+        while (true) {
+            Region region = parse(regionStart, regionEnd, regionLine);
+            parsed = region.chunks;
+            if (!region.cutShort || last == chunks.size()) break;
+
+            // Doubling, so that a brace opened at the top of a large file
+            // doesn't parse the rest of it once per chunk.
+            last = Math.min(chunks.size(), last + Math.max(1, last - first));
+            regionEnd = chunks.get(last - 1).end + offsetDelta;
+        }
+
+        List<Chunk> damaged = chunks.subList(first, last);
+        damaged.clear();
+        damaged.addAll(parsed);
+        for (int i = first + parsed.size(); i < chunks.size(); i++)
+            chunks.get(i).move(offsetDelta, lineDelta);
+
+        reparsed = 0;
+        for (Chunk chunk : parsed)
+            if (chunk.statement != null) reparsed++;
+        kept = declarations() - reparsed;
+    }
+
+    // The declarations, in order.
+    List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>();
+        for (Chunk chunk : chunks)
+            if (chunk.statement != null) statements.add(chunk.statement);
+        return statements;
+    }
+
+    int declarations() {
+        int count = 0;
+        for (Chunk chunk : chunks)
+            if (chunk.statement != null) count++;
+        return count;
+    }
+
+    // Everything scanning, parsing and resolving found, with lines and
+    // offsets in the whole text.
+    List<Diagnostic> diagnostics() {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            for (Diagnostic found : chunk.diagnostics) {
+                diagnostics.add(new Diagnostic(chunk.originLine + found.line - 1,
+                        found.offset < 0 ? -1 : chunk.originOffset + found.offset,
+                        found.length, found.message, found.atEnd));
+            }
+        }
+        return diagnostics;
+    }
+
+    private static final class Region {
+        final List<Chunk> chunks = new ArrayList<>();
+        boolean cutShort;
+    }
+
+    // Scans, parses and resolves the text from start to end, which starts
+    // on line, into chunks that cover it.
+    private Region parse(int start, int end, int line) {
+        Region region = new Region();
+        List<Diagnostic> scanned = new ArrayList<>();
+        try {
+            Lox.diagnostics.set(scanned);
+            Scanner scanner = new Scanner(text.substring(start, end));
+            List<Token> tokens = scanner.scanTokens();
+            region.cutShort = scanner.unterminated;
+
+            Parser parser = new Parser(tokens);
+            int from = start;
+            int fromLine = line;
+            while (!parser.atEnd()) {
+                List<Diagnostic> found = new ArrayList<>();
+                Lox.diagnostics.set(found);
+                Stmt statement = parser.next();
+                // A declaration with syntax errors has holes in it, and
+                // isn't resolved, as Lox.run resolves nothing after one.
+                Map<Expr, Integer> locals = new HashMap<>();
+                if (found.isEmpty())
+                    new Resolver(null, locals).resolve(Collections.singletonList(statement));
+
+                Token last = tokens.get(parser.position() - 1);
+                int to = start + last.offset + last.lexeme.length();
+                region.chunks.add(new Chunk(from, to, fromLine, start, line,
+                        statement, !found.isEmpty(), parser.lookedAhead(), locals, found));
+                fromLine += newlines(text, from, to);
+                from = to;
+                region.cutShort = scanner.unterminated || !found.isEmpty() || parser.lookedAhead();
+            }
+
+            // Whatever follows the last declaration goes with it.
+            if (region.chunks.isEmpty()) {
+                if (start < end) {
+                    region.chunks.add(new Chunk(start, end, line, start, line,
+                            null, false, false, Collections.emptyMap(), new ArrayList<>()));
+                }
+            } else {
+                region.chunks.get(region.chunks.size() - 1).end = end;
+            }
+
+            // Scanner errors go with the chunk their line is in.
+            for (Diagnostic diagnostic : scanned) {
+                Chunk owner = region.chunks.get(0);
+                for (Chunk chunk : region.chunks)
+                    if (chunk.line - line + 1 <= diagnostic.line) owner = chunk;
+                owner.diagnostics.add(diagnostic);
+            }
+        } finally {
+            Lox.diagnostics.remove();
+        }
+        return region;
+    }
+
+    // The index of the first chunk that ends at or after offset.
+    private int firstEndingAtOrAfter(int offset) {
+        int low = 0;
+        int high = chunks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (chunks.get(middle).end < offset) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private static int newlines(String text, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++)
+            if (text.charAt(i) == '\n') count++;
+        return count;
+    }
+}
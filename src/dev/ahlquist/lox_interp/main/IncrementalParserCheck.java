@@ -0,0 +1,81 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.List;
+import java.util.Random;
+
+// Makes random edits to an IncrementalParser and, after each one, checks
+// that it found the same declarations and diagnostics as parsing the new
+// text from scratch. Exits 70 on the first edit where they differ.
+public class IncrementalParserCheck {
+
+    private static final String[] PIECES = {
+            "print 1;", "print 2 2;", "var a = 1;", "fun f(x) { return x; }", "class C { m() { return this; } }",
+            "{ var b = a; }", "if (a) print a; else print 3;", "while (a < 3) a = a + 1;",
+            "//", "/*", "*/", "\"", "{", "}", "(", ")", ";", "\n", " ", "print", "return 1;", "x", "=",
+    };
+
+    // Edits that once disagreed, before the random ones.
+    private static final String[][] KNOWN = {
+            { "print 1; print 2; print 3 3;", "8", "8", "//" },
+    };
+
+    public static void main(String[] args) {
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        Random random = new Random(seed);
+
+        for (String[] known : KNOWN) {
+            IncrementalParser parser = new IncrementalParser(known[0]);
+            int start = Integer.parseInt(known[1]);
+            check(parser, start, Integer.parseInt(known[2]), known[3], "known edit");
+        }
+
+        for (int trial = 0; trial < trials; trial++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = random.nextInt(12); i >= 0; i--) {
+                text.append(PIECES[random.nextInt(8)]);
+                text.append(random.nextBoolean() ? "\n" : " ");
+            }
+            IncrementalParser parser = new IncrementalParser(text.toString());
+
+            for (int edit = 0; edit < 5; edit++) {
+                int length = parser.text().length();
+                int start = random.nextInt(length + 1);
+                int end = Math.min(length, start + (random.nextInt(3) == 0 ? random.nextInt(12) : 0));
+                String replacement = random.nextInt(4) == 0 ? "" : PIECES[random.nextInt(PIECES.length)];
+                check(parser, start, end, replacement, "trial " + trial + " (seed " + seed + ")");
+            }
+        }
+        System.out.println(trials + " trials agreed.");
+    }
+
+    private static void check(IncrementalParser parser, int start, int end, String replacement, String where) {
+        String before = parser.text();
+        parser.edit(start, end, replacement);
+        IncrementalParser full = new IncrementalParser(parser.text());
+
+        String incremental = describe(parser);
+        String expected = describe(full);
+        if (incremental.equals(expected)) return;
+
+        System.err.println("Incremental and full parses differ, " + where + ".");
+        System.err.printf("Text: %s%nEdit: %d to %d with %s%n", quote(before), start, end, quote(replacement));
+        System.err.println("Incremental:\n" + incremental + "Full:\n" + expected);
+        System.exit(70);
+    }
+
+    private static String describe(IncrementalParser parser) {
+        StringBuilder description = new StringBuilder();
+        description.append(parser.declarations()).append(" declarations\n");
+        List<IncrementalParser.Diagnostic> diagnostics = parser.diagnostics();
+        for (IncrementalParser.Diagnostic diagnostic : diagnostics) {
+            description.append(String.format("  [line %d, offset %d] %s%n",
+                    diagnostic.line, diagnostic.offset, diagnostic.message));
+        }
+        return description.toString();
+    }
+
+    private static String quote(String text) {
+        return "\"" + text.replace("\n", "\\n") + "\"";
+    }
+}
@@ -1,17 +1,59 @@
 package dev.ahlquist.lox_interp.main;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private Map<Expr, Integer> locals = new HashMap<>();
+    final Environment globals;
+    private Environment environment;
+    private final Map<Expr, Integer> locals;
+    Superinstructions superinstructions;
+    final PurityAnalysis purity;
+    TypeInference types;
+    ClassHierarchy hierarchy;
+    Modules modules = new Modules(this);
+    MemoCache memo;
+    LoxOutput out = new LoxOutput(System.out, LoxOutput.DEFAULT_BUFFER);
+    Profiler profiler;
+    Budget budget;
+    RuntimeProfile runtimeProfile;
+
+    // Compiles hot loops; see LoopTracer. Recording is the trace being
+    // recorded by the current iteration, if any.
+    LoopTracer tracer;
+    LoopTracer.Trace recording;
+
+    // Applies edits to the script while it runs; see HotReload.
+    HotReload reload;
+
+    // Hot functions compiled ahead of their first call by warmStart().
+    private ClosureCompiler warmCompiler;
+    ForkJoinPool parallelPool = ForkJoinPool.commonPool();
+
+    // Spawned tasks and the lock they run under; see Tasks.
+    final Tasks tasks;
+
+    // Natives that calls dispatch to directly, without an argument list.
+    final LoxCallable arrayGet;
+    final LoxCallable arraySet;
+    final LoxCallable arrayLength;
+    final LoxCallable mapGet;
+    final LoxCallable mapSet;
 
     public Interpreter() {
+        globals = new Environment();
+        environment = globals;
+        locals = new HashMap<>();
+        purity = new PurityAnalysis(this);
+        tasks = new Tasks();
+
         globals.define("clock", new LoxCallable() {
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
@@ -23,6 +65,377 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return 0;
             }
         });
+
+        globals.define("parallelReduce", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return Parallel.reduce(interpreter, args.get(0), args.get(1), args.get(2), args.get(3));
+            }
+
+            @Override
+            public int arity() {
+                return 4;
+            }
+        });
+
+        globals.define("parallelMap", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return Parallel.map(interpreter, args.get(0), args.get(1));
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+        });
+
+        globals.define("spawn", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return interpreter.tasks.spawn(interpreter, args.get(0));
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("join", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return interpreter.tasks.join(args.get(0));
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("sleep", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                interpreter.tasks.sleep(args.get(0));
+                return null;
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("next", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxGenerator.check(null, args.get(0)).next();
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("hasNext", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxGenerator.check(null, args.get(0)).hasNext();
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("close", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxGenerator.check(null, args.get(0)).close();
+                return null;
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("channel", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                int capacity = Parallel.checkCount(args.get(0));
+                if (capacity == 0) throw new RuntimeError(null, "Channel capacity must be at least 1.");
+                return new LoxChannel(interpreter.tasks, capacity);
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("channelSend", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxChannel.check(null, args.get(0)).send(args.get(1));
+                return null;
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+        });
+
+        globals.define("channelReceive", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxChannel.check(null, args.get(0)).receive();
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("channelClose", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxChannel.check(null, args.get(0)).close();
+                return null;
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("array", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return new LoxArray(Parallel.checkCount(args.get(0)), args.get(1));
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+        });
+
+        arrayGet = new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxArray.get(null, args.get(0), args.get(1));
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+        };
+        globals.define("arrayGet", arrayGet);
+
+        arraySet = new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxArray.set(null, args.get(0), args.get(1), args.get(2));
+            }
+
+            @Override
+            public int arity() {
+                return 3;
+            }
+        };
+        globals.define("arraySet", arraySet);
+
+        arrayLength = new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxArray.length(null, args.get(0));
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        };
+        globals.define("arrayLength", arrayLength);
+
+        globals.define("arrayPush", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxArray array = LoxArray.check(null, args.get(0));
+                array.push(args.get(1));
+                return array;
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+        });
+
+        globals.define("arraySlice", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxArray array = LoxArray.check(null, args.get(0));
+                int from = LoxArray.index(null, args.get(1), array.size() + 1);
+                int to = LoxArray.index(null, args.get(2), array.size() + 1);
+                if (to < from) throw new RuntimeError(null, "Slice end is before its start.");
+                return array.slice(from, to);
+            }
+
+            @Override
+            public int arity() {
+                return 3;
+            }
+        });
+
+        globals.define("heapSnapshot", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                if (!LoxRope.isString(args.get(0))) {
+                    throw new RuntimeError(null, "Snapshot path must be a string.");
+                }
+                String path = LoxRope.flat(args.get(0)).toString();
+                try {
+                    HeapSnapshot.take(interpreter).write(Paths.get(path));
+                } catch (IOException e) {
+                    throw new RuntimeError(null, "Could not write " + path + ": " + e.getMessage());
+                }
+                return null;
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("map", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return new LoxMap();
+            }
+
+            @Override
+            public int arity() {
+                return 0;
+            }
+        });
+
+        mapGet = new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxMap.get(null, args.get(0), args.get(1));
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+        };
+        globals.define("mapGet", mapGet);
+
+        mapSet = new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxMap.set(null, args.get(0), args.get(1), args.get(2));
+            }
+
+            @Override
+            public int arity() {
+                return 3;
+            }
+        };
+        globals.define("mapSet", mapSet);
+
+        globals.define("mapHas", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxMap.check(null, args.get(0)).has(args.get(1));
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+        });
+
+        globals.define("mapRemove", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxMap.check(null, args.get(0)).remove(args.get(1));
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+        });
+
+        globals.define("mapSize", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return (double) LoxMap.check(null, args.get(0)).size();
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+
+        globals.define("mapKeys", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                return LoxMap.check(null, args.get(0)).keys();
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+        });
+    }
+
+    // A worker for another thread: shares the program and globals, but has
+    // its own current environment.
+    Interpreter(Interpreter parent) {
+        globals = parent.globals;
+        environment = globals;
+        locals = parent.locals;
+        superinstructions = parent.superinstructions;
+        purity = parent.purity;
+        hierarchy = parent.hierarchy;
+        modules = parent.modules;
+        memo = parent.memo;
+        out = parent.out;
+        profiler = parent.profiler;
+        budget = parent.budget;
+        runtimeProfile = parent.runtimeProfile;
+        // Not warmCompiler or tracer: their code calls back into the
+        // interpreter that compiled it, which belongs to another thread.
+        // Not reload either: only the script's own thread reloads.
+        parallelPool = parent.parallelPool;
+        tasks = parent.tasks;
+        arrayGet = parent.arrayGet;
+        arraySet = parent.arraySet;
+        arrayLength = parent.arrayLength;
+        mapGet = parent.mapGet;
+        mapSet = parent.mapSet;
+    }
+
+    // Returns an interpreter that can safely run on another thread while
+    // this one is blocked waiting for it.
+    Interpreter fork() {
+        return new Interpreter(this);
     }
 
     void interpret(List<Stmt> statements) {
@@ -31,19 +444,30 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 execute(statement);
             }
         } catch (RuntimeError error) {
+            out.flush(); // keep the error after the output that preceded it
             Lox.runtimeError(error);
+        } finally {
+            out.flush();
         }
     }
 
     private void execute(Stmt stmt) {
+        if (Metrics.ENABLED) Metrics.STATEMENTS.increment();
+        if (profiler != null) profiler.line(stmt);
         stmt.accept(this);
     }
 
     /* Implement Expr.Visitor<Object> */
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.left.type == TypeInference.NUMBER && expr.right.type == TypeInference.NUMBER)
+            return numeric(expr.operator.type, (double)evaluate(expr.left), (double)evaluate(expr.right));
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        if (runtimeProfile != null && runtimeProfile.recording)
+            RuntimeProfile.recordBinary(runtimeProfile.binary(expr.operator), left, right);
+        if (recording != null) recording.binary(expr.operator, left, right);
 
         switch(expr.operator.type) {
             case GREATER:
@@ -60,16 +484,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return (double)left <= (double)right;
 
             case PLUS:
-                return evaluatePlus(expr.operator, left, right);
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
+                return evaluateArithmetic(expr.operator, left, right);
 
             case BANG_EQUAL:
                 return !isEqual(left, right);
@@ -139,14 +557,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = expr.right;
+        Object right = evaluate(expr.right);
 
         switch (expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return (double)right;
+                if (expr.right.type != TypeInference.NUMBER) checkNumberOperand(expr.operator, right);
+                return -(double)right;
 
             default:
                 return null; // unreachable
@@ -183,33 +601,155 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        // Methods with one declaration are called without looking them up.
+        if (expr.callee instanceof Expr.Get && hierarchy != null && recording == null) {
+            ClassHierarchy.Target target = hierarchy.target(((Expr.Get) expr.callee).name.lexeme);
+            if (target != null && target.usable(this)) return devirtualized(expr, target);
+        }
+
         Object callee = evaluate(expr.callee);
 
+        // Array and map indexing goes straight to the collection.
+        if (callee == arrayGet && expr.args.size() == 2) {
+            return LoxArray.get(expr.paren, evaluate(expr.args.get(0)), evaluate(expr.args.get(1)));
+        } else if (callee == arraySet && expr.args.size() == 3) {
+            return LoxArray.set(expr.paren, evaluate(expr.args.get(0)),
+                    evaluate(expr.args.get(1)), evaluate(expr.args.get(2)));
+        } else if (callee == arrayLength && expr.args.size() == 1) {
+            return LoxArray.length(expr.paren, evaluate(expr.args.get(0)));
+        } else if (callee == mapGet && expr.args.size() == 2) {
+            return LoxMap.get(expr.paren, evaluate(expr.args.get(0)), evaluate(expr.args.get(1)));
+        } else if (callee == mapSet && expr.args.size() == 3) {
+            return LoxMap.set(expr.paren, evaluate(expr.args.get(0)),
+                    evaluate(expr.args.get(1)), evaluate(expr.args.get(2)));
+        }
+
         List<Object> args = new ArrayList<>();
         for (Expr arg : expr.args) {
             args.add(evaluate(arg));
         }
 
+        return call(expr.paren, callee, args);
+    }
+
+    private Object devirtualized(Expr.Call expr, ClassHierarchy.Target target) {
+        Expr.Get get = (Expr.Get) expr.callee;
+        Object object = evaluate(get.expr);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name, "Only instances have properties.");
+        }
+        LoxInstance instance = (LoxInstance) object;
+        LoxFunction method = target.resolve(instance);
+        if (method == null) return call(expr.paren, instance.get(get.name), evaluateAll(expr.args));
+
+        List<Object> args = evaluateAll(expr.args);
+        if (args.size() != method.arity()) return call(expr.paren, method.bind(instance), args);
+        return method.callOn(this, expr.paren, instance, args);
+    }
+
+    private List<Object> evaluateAll(List<Expr> exprs) {
+        List<Object> values = new ArrayList<>(exprs.size());
+        for (Expr expr : exprs) values.add(evaluate(expr));
+        return values;
+    }
+
+    Object call(Token paren, Object callee, List<Object> args) {
         if(!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
         }
         LoxCallable function = (LoxCallable) callee;
+        if (recording != null) recording.call(paren, callee);
         if(args.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments, but got " + args.size());
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments, but got " + args.size());
         }
 
-        return function.call(this, args);
+        try {
+            return function.call(this, args);
+        } catch (RuntimeError error) {
+            // Natives don't know where they were called from.
+            if (error.token == null) throw new RuntimeError(paren, error.getMessage());
+            throw error;
+        }
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = expr.expr;
-        if (object instanceof LoxInstance)
+        Object object = evaluate(expr.expr);
+        if (object instanceof LoxInstance) {
+            if (runtimeProfile != null && runtimeProfile.recording) {
+                RuntimeProfile.recordGet(runtimeProfile.get(expr.name),
+                        (LoxInstance) object, expr.name.lexeme);
+            }
             return ((LoxInstance) object).get(expr.name);
+        }
 
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
 
+    /* Superinstructions */
+    @Override
+    public Object visitIncrementExpr(Expr.Increment expr) {
+        count(Superinstructions.Kind.INCREMENT);
+        Token name = expr.original.name;
+        Object value = expr.depth == null
+                ? globals.get(name) : environment.getAt(name.lexeme, expr.depth);
+        if (!(value instanceof Double)) return visitAssignExpr(expr.original);
+
+        Object result = (double)value + expr.delta;
+        if (expr.depth == null) {
+            globals.assign(name, result);
+        } else {
+            environment.assignAt(name, result, expr.depth);
+        }
+        return result;
+    }
+
+    @Override
+    public Object visitCompareConstExpr(Expr.CompareConst expr) {
+        count(Superinstructions.Kind.COMPARE_CONST);
+        Object value = expr.depth == null
+                ? globals.get(expr.name) : environment.getAt(expr.name.lexeme, expr.depth);
+        if (!(value instanceof Double)) return visitBinaryExpr(expr.original);
+
+        return compare(expr.original.operator.type, (double)value, expr.constant);
+    }
+
+    @Override
+    public Object visitAssignLocalExpr(Expr.AssignLocal expr) {
+        count(Superinstructions.Kind.ASSIGN_LOCAL);
+        Object value = evaluate(expr.original.value);
+        environment.assignAt(expr.original.name, value, expr.depth);
+        return value;
+    }
+
+    @Override
+    public Object visitCallGlobalExpr(Expr.CallGlobal expr) {
+        count(Superinstructions.Kind.CALL_GLOBAL);
+        Object callee = globals.get(expr.name);
+        Object arg = evaluateArithmetic(expr.arg.operator, evaluate(expr.arg.left), evaluate(expr.arg.right));
+        return call(expr.original.paren, callee, Collections.singletonList(arg));
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        environment.define(stmt.name.lexeme, modules.run(stmt, this));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        count(Superinstructions.Kind.PRINT_VARIABLE);
+        Object value = stmt.depth == null
+                ? globals.get(stmt.name) : environment.getAt(stmt.name.lexeme, stmt.depth);
+        out.println(value);
+        return null;
+    }
+
+    private void count(Superinstructions.Kind kind) {
+        if (superinstructions != null && superinstructions.counting)
+            superinstructions.executed[kind.ordinal()]++;
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
@@ -219,6 +759,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new Return(value);
     }
 
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        LoxGenerator.yield(stmt.keyword, evaluate(stmt.value));
+        return null;
+    }
+
     /* Implement Stmt.Visitor<Void> */
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
@@ -229,7 +775,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object result = evaluate(stmt.expression);
-        System.out.println(stringify(result));
+        out.println(result);
         return null;
     }
 
@@ -292,7 +838,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
-        if(isTruthy(evaluate(stmt.condition))) {
+        boolean taken = isTruthy(evaluate(stmt.condition));
+        if (recording != null) recording.branch(stmt, taken);
+        if(taken) {
             execute(stmt.thenBranch);
         } else if(stmt.elseBranch != null) {
             execute(stmt.elseBranch);
@@ -302,13 +850,46 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        if (tracer != null) return traced(stmt);
+
         while(isTruthy(evaluate(stmt.condition))) {
+            if (budget != null) budget.tick(stmt.keyword);
+            if (reload != null) reload.poll();
             execute(stmt.body);
         }
         return null;
     }
 
+    // visitWhileStmt with a tracer: interpreted until the loop is hot, then
+    // through its trace for as long as the trace holds up.
+    private Void traced(Stmt.While stmt) {
+        LoopTracer.Loop loop = tracer.loop(stmt);
+        for (;;) {
+            // While an iteration is being recorded, inner loops are
+            // interpreted so the recording sees inside them.
+            if (loop.trace != null && recording == null && loop.runTrace(environment)) return null;
+
+            if (!isTruthy(evaluate(stmt.condition))) return null;
+            if (budget != null) budget.tick(stmt.keyword);
+            if (reload != null) reload.poll();
+            if (tracer.shouldRecord(loop)) {
+                tracer.record(loop, this, () -> execute(stmt.body));
+            } else {
+                execute(stmt.body);
+            }
+        }
+    }
+
     public void executeBlock(List<Stmt> statements, Environment env) {
+        if (warmCompiler != null) {
+            ClosureCompiler.Action[] compiled = warmCompiler.compiled(statements);
+            if (compiled != null) {
+                for (ClosureCompiler.Action action : compiled)
+                    action.run(env);
+                return;
+            }
+        }
+
         Environment previous = this.environment;
         try {
             this.environment = env;
@@ -321,46 +902,93 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     /* Private Methods */
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
+    static Object evaluateArithmetic(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case PLUS:
+                return evaluatePlus(operator, left, right);
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return (double)left - (double)right;
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                return (double)left / (double)right;
+            case STAR:
+                checkNumberOperands(operator, left, right);
+                return (double)left * (double)right;
+
+            default:
+                return null; // unreachable
+        }
+    }
+
+    // An operator on operands TypeInference proved are numbers: no checks.
+    // Equality is Double.equals, as isEqual() does it.
+    static Object numeric(TokenType type, double left, double right) {
+        switch (type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            case SLASH: return left / right;
+            case EQUAL_EQUAL: return Double.compare(left, right) == 0;
+            case BANG_EQUAL: return Double.compare(left, right) != 0;
+
+            default:
+                return compare(type, left, right);
+        }
+    }
+
+    static boolean compare(TokenType type, double left, double right) {
+        switch (type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+
+            default:
+                return false; // unreachable
+        }
+    }
+
     // Add numbers or concatenate strings
-    private Object evaluatePlus(Token operator, Object left, Object right) {
+    static Object evaluatePlus(Token operator, Object left, Object right) {
         if(left instanceof Double && right instanceof Double)
             return (double)left + (double)right;
-        else if(left instanceof String && right instanceof String)
-            return (String)left + (String)right;
+        else if(LoxRope.isString(left) && LoxRope.isString(right))
+            return LoxRope.concat(left, right);
         else
             throw new RuntimeError(operator, "Operands must be both numbers or both strings.");
     }
 
     // 'nil' and 'false' are falsey. Everything else is truthy.
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         // 'nil' is only equal to 'nil'
         if(left == null && right == null) return true;
         if(left == null) return false; // avoid NPE below
 
-        return left.equals(right);
+        return LoxRope.flat(left).equals(LoxRope.flat(right));
     }
 
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         // Hack. Work around Java adding ".0" to integer-valued doubles.
@@ -378,4 +1006,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public void resolve(Expr expr, int depth) {
         locals.put(expr, depth);
     }
+
+    void resolve(Map<Expr, Integer> depths) {
+        locals.putAll(depths);
+    }
+
+    // Compiles the functions a loaded RuntimeProfile says are hot, so they
+    // run as closures, specialized on the profile, from their first call.
+    void warmStart(List<Stmt> statements) {
+        if (runtimeProfile == null || runtimeProfile.recording) return;
+        List<Stmt.Function> hot = runtimeProfile.hotFunctions(statements);
+        if (hot.isEmpty()) return;
+
+        if (warmCompiler == null) warmCompiler = new ClosureCompiler(this);
+        for (Stmt.Function function : hot)
+            warmCompiler.body(function.body);
+    }
+
+    // Drops what was compiled for a function body that a reload replaced.
+    void forget(List<Stmt> body) {
+        if (warmCompiler != null) warmCompiler.forget(body);
+    }
+
+    // Where the code being run is, for natives that inspect it.
+    Environment currentEnvironment() {
+        return environment;
+    }
+
+    // The depth recorded by the Resolver, or null for a global.
+    Integer resolvedDepth(Expr expr) {
+        return locals.get(expr);
+    }
 }
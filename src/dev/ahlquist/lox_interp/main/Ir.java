@@ -0,0 +1,413 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * An SSA form of one function body: a control-flow graph of basic blocks,
+ * each a list of instructions ending in a jump, branch or return. Built by
+ * IrBuilder, optimized by IrOptimizer and printed by IrDump.
+ *
+ * Every instruction is also the value it produces. Locals that no nested
+ * function captures become plain SSA values, merged with phis. Everything
+ * else lives in environments as it does at run time, and is read and
+ * written with explicit loads and stores:
+ *
+ *   globals              LOAD_GLOBAL / STORE_GLOBAL, by name
+ *   captured locals      DEFINE_CAPTURED / LOAD_CAPTURED / STORE_CAPTURED,
+ *                        by declaring token
+ *   enclosing functions  LOAD_OUTER / STORE_OUTER, by name and depth above
+ *                        the function's closure (this included)
+ */
+final class Ir {
+
+    enum Op {
+        CONST, PARAM, PHI,
+        ADD, SUB, MUL, DIV, LT, LE, GT, GE, EQ, NE, NEG, NOT,
+        LOAD_GLOBAL, STORE_GLOBAL, LOAD_OUTER, STORE_OUTER,
+        DEFINE_CAPTURED, LOAD_CAPTURED, STORE_CAPTURED,
+        GET, SET, SUPER, CALL, CLOSURE, CLASS, PRINT, YIELD,
+        JUMP, BRANCH, RETURN;
+
+        boolean isTerminator() {
+            return this == JUMP || this == BRANCH || this == RETURN;
+        }
+    }
+
+    private Ir() {}
+
+    static final class Instr {
+        final int id;
+        Op op;
+        final List<Instr> args = new ArrayList<>();
+        // The CONST value; the name a load, store or property access uses;
+        // the declaring token of a captured local; or the Stmt.Function or
+        // Stmt.Class that CLOSURE or CLASS creates.
+        Object constant;
+        int depth;    // LOAD_OUTER, STORE_OUTER and SUPER; the index of a PARAM
+        Token token;  // where a runtime error would be reported
+        Block block;
+
+        Instr(int id, Op op) {
+            this.id = id;
+            this.op = op;
+        }
+
+        // Whether anything can use this as a value.
+        boolean hasValue() {
+            switch (op) {
+                case STORE_GLOBAL: case STORE_OUTER: case DEFINE_CAPTURED: case STORE_CAPTURED:
+                case SET: case PRINT: case YIELD: case JUMP: case BRANCH: case RETURN:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "v" + id;
+        }
+    }
+
+    static final class Block {
+        final int id;
+        final List<Instr> instrs = new ArrayList<>();
+        final List<Block> preds = new ArrayList<>();
+        final List<Block> succs = new ArrayList<>();
+
+        Block(int id) {
+            this.id = id;
+        }
+
+        Instr terminator() {
+            return instrs.isEmpty() ? null : instrs.get(instrs.size() - 1);
+        }
+
+        boolean isTerminated() {
+            Instr last = terminator();
+            return last != null && last.op.isTerminator();
+        }
+
+        // Where the next phi goes: after the ones already there.
+        int phiEnd() {
+            int i = 0;
+            while (i < instrs.size() && instrs.get(i).op == Op.PHI) i++;
+            return i;
+        }
+
+        @Override
+        public String toString() {
+            return "b" + id;
+        }
+    }
+
+    static final class Function {
+        final Stmt.Function declaration;
+        final List<Block> blocks = new ArrayList<>();
+        private int nextInstr = 0;
+        private int nextBlock = 0;
+
+        Function(Stmt.Function declaration) {
+            this.declaration = declaration;
+        }
+
+        Block entry() {
+            return blocks.get(0);
+        }
+
+        Block newBlock() {
+            Block block = new Block(nextBlock++);
+            blocks.add(block);
+            return block;
+        }
+
+        Instr newInstr(Op op) {
+            return new Instr(nextInstr++, op);
+        }
+
+        int size() {
+            int size = 0;
+            for (Block block : blocks) size += block.instrs.size();
+            return size;
+        }
+
+        void remove(Instr instr) {
+            instr.block.instrs.remove(instr);
+            instr.block = null;
+        }
+
+        void replaceAllUses(Instr old, Instr replacement) {
+            for (Block block : blocks) {
+                for (Instr instr : block.instrs) {
+                    for (int i = 0; i < instr.args.size(); i++)
+                        if (instr.args.get(i) == old) instr.args.set(i, replacement);
+                }
+            }
+        }
+
+        int uses(Instr value) {
+            int uses = 0;
+            for (Block block : blocks)
+                for (Instr instr : block.instrs)
+                    for (Instr arg : instr.args)
+                        if (arg == value) uses++;
+            return uses;
+        }
+
+        // Drops blocks no path from the entry reaches, and their phi operands.
+        void removeUnreachable() {
+            List<Block> reachable = reversePostorder();
+            for (Block block : new ArrayList<>(blocks)) {
+                if (reachable.contains(block)) continue;
+                blocks.remove(block);
+                for (Block succ : block.succs) {
+                    int index = succ.preds.indexOf(block);
+                    succ.preds.remove(index);
+                    for (Instr phi : succ.instrs) {
+                        if (phi.op != Op.PHI) break;
+                        phi.args.remove(index);
+                    }
+                }
+            }
+        }
+
+        // Merges each block into its predecessor when that is the only way
+        // in and the predecessor has nowhere else to go.
+        void mergeStraightLines() {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Block block : blocks) {
+                    if (block.succs.size() != 1) continue;
+                    Block next = block.succs.get(0);
+                    if (next == entry() || next == block || next.preds.size() != 1) continue;
+                    removeTrivialPhis();
+                    block.instrs.remove(block.instrs.size() - 1);
+                    for (Instr instr : next.instrs) {
+                        instr.block = block;
+                        block.instrs.add(instr);
+                    }
+                    block.succs.clear();
+                    block.succs.addAll(next.succs);
+                    for (Block succ : next.succs) succ.preds.set(succ.preds.indexOf(next), block);
+                    blocks.remove(next);
+                    changed = true;
+                    break;
+                }
+            }
+        }
+
+        // Removes phis whose operands are all one value (or the phi itself).
+        int removeTrivialPhis() {
+            int removed = 0;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Block block : blocks) {
+                    for (Instr phi : new ArrayList<>(block.instrs)) {
+                        if (phi.op != Op.PHI) break;
+                        Instr same = null;
+                        boolean trivial = true;
+                        for (Instr arg : phi.args) {
+                            if (arg == phi || arg == same) continue;
+                            if (same != null) {
+                                trivial = false;
+                                break;
+                            }
+                            same = arg;
+                        }
+                        if (!trivial || same == null) continue;
+                        replaceAllUses(phi, same);
+                        remove(phi);
+                        removed++;
+                        changed = true;
+                    }
+                }
+            }
+            return removed;
+        }
+
+        List<Block> reversePostorder() {
+            List<Block> order = new ArrayList<>();
+            List<Block> visited = new ArrayList<>();
+            // Iterative DFS: a block and the index of its next successor.
+            List<Block> stack = new ArrayList<>();
+            List<Integer> next = new ArrayList<>();
+            stack.add(entry());
+            next.add(0);
+            visited.add(entry());
+            while (!stack.isEmpty()) {
+                int top = stack.size() - 1;
+                Block block = stack.get(top);
+                int i = next.get(top);
+                if (i < block.succs.size()) {
+                    next.set(top, i + 1);
+                    Block succ = block.succs.get(i);
+                    if (!visited.contains(succ)) {
+                        visited.add(succ);
+                        stack.add(succ);
+                        next.add(0);
+                    }
+                } else {
+                    order.add(block);
+                    stack.remove(top);
+                    next.remove(top);
+                }
+            }
+            java.util.Collections.reverse(order);
+            return order;
+        }
+
+        // Immediate dominators (Cooper, Harvey and Kennedy); the entry maps to itself.
+        Map<Block, Block> dominators() {
+            List<Block> order = reversePostorder();
+            Map<Block, Integer> index = new HashMap<>();
+            for (int i = 0; i < order.size(); i++) index.put(order.get(i), i);
+
+            int[] idom = new int[order.size()];
+            Arrays.fill(idom, -1);
+            idom[0] = 0;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int b = 1; b < order.size(); b++) {
+                    int dom = -1;
+                    for (Block pred : order.get(b).preds) {
+                        Integer p = index.get(pred);
+                        if (p == null || idom[p] == -1) continue;
+                        dom = dom == -1 ? p : intersect(idom, dom, p);
+                    }
+                    if (dom != idom[b]) {
+                        idom[b] = dom;
+                        changed = true;
+                    }
+                }
+            }
+
+            Map<Block, Block> dominators = new HashMap<>();
+            for (int b = 0; b < order.size(); b++) dominators.put(order.get(b), order.get(idom[b]));
+            return dominators;
+        }
+
+        private static int intersect(int[] idom, int a, int b) {
+            while (a != b) {
+                while (a > b) a = idom[a];
+                while (b > a) b = idom[b];
+            }
+            return a;
+        }
+
+        static boolean dominates(Map<Block, Block> idom, Block a, Block b) {
+            for (Block block = b; ; block = idom.get(block)) {
+                if (block == a) return true;
+                if (idom.get(block) == block) return false;
+            }
+        }
+
+        // Checks the invariants the passes rely on, and throws if one fails.
+        void verify() {
+            Map<Block, Block> idom = dominators();
+            for (Block block : blocks) {
+                if (!block.isTerminated()) fail(block + " has no terminator");
+                for (Block succ : block.succs)
+                    if (!succ.preds.contains(block)) fail(block + " -> " + succ + " is missing its pred");
+                for (int i = 0; i < block.instrs.size(); i++) {
+                    Instr instr = block.instrs.get(i);
+                    if (instr.block != block) fail(instr + " is in the wrong block");
+                    if (instr.op.isTerminator() && i != block.instrs.size() - 1) fail(instr + " is not last");
+                    if (instr.op == Op.PHI) {
+                        if (i >= block.phiEnd()) fail(instr + " is after a non-phi");
+                        if (instr.args.size() != block.preds.size()) fail(instr + " has the wrong arity");
+                    }
+                    for (int a = 0; a < instr.args.size(); a++) {
+                        Instr arg = instr.args.get(a);
+                        if (arg.block == null || !blocks.contains(arg.block)) fail(instr + " uses removed " + arg);
+                        Block at = instr.op == Op.PHI ? block.preds.get(a) : block;
+                        if (!dominates(idom, arg.block, at)) fail(arg + " does not dominate " + instr);
+                        if (arg.block == block && instr.op != Op.PHI
+                                && block.instrs.indexOf(arg) > i) fail(arg + " is used before it is defined");
+                    }
+                }
+            }
+        }
+
+        private static void fail(String message) {
+            throw new IllegalStateException("Invalid IR: " + message + ".");
+        }
+
+        /* Printing */
+        String dump() {
+            StringBuilder out = new StringBuilder("fun ").append(declaration.name.lexeme).append('(');
+            for (int i = 0; i < declaration.params.size(); i++)
+                out.append(i > 0 ? ", " : "").append(declaration.params.get(i).lexeme);
+            out.append(")\n");
+            for (Block block : blocks) {
+                out.append(block).append(':');
+                if (!block.preds.isEmpty()) out.append("  preds ").append(join(block.preds));
+                out.append('\n');
+                for (Instr instr : block.instrs)
+                    out.append("  ").append(format(instr)).append('\n');
+            }
+            return out.toString();
+        }
+
+        private static String format(Instr instr) {
+            StringBuilder line = new StringBuilder();
+            if (instr.hasValue()) line.append(instr).append(" = ");
+            line.append(instr.op.name().toLowerCase());
+            switch (instr.op) {
+                case CONST:
+                    line.append(' ').append(literal(instr.constant));
+                    break;
+                case PARAM:
+                    line.append(' ').append(instr.depth).append(' ').append(instr.constant);
+                    break;
+                case LOAD_OUTER: case STORE_OUTER: case SUPER:
+                    line.append(' ').append(instr.constant).append('@').append(instr.depth);
+                    break;
+                case DEFINE_CAPTURED: case LOAD_CAPTURED: case STORE_CAPTURED:
+                    line.append(' ').append(((Token) instr.constant).lexeme);
+                    break;
+                case CLOSURE:
+                    line.append(' ').append(((Stmt.Function) instr.constant).name.lexeme);
+                    break;
+                case CLASS:
+                    line.append(' ').append(((Stmt.Class) instr.constant).name.lexeme);
+                    break;
+                case LOAD_GLOBAL: case STORE_GLOBAL: case GET: case SET:
+                    line.append(' ').append(instr.constant);
+                    break;
+                default:
+                    break;
+            }
+            if (!instr.args.isEmpty()) line.append(instr.constant != null || instr.op == Op.CONST ? ", " : " ")
+                    .append(join(instr.args));
+            if (instr.op == Op.JUMP || instr.op == Op.BRANCH)
+                line.append(" -> ").append(join(instr.block.succs));
+            if (instr.token != null) {
+                while (line.length() < 40) line.append(' ');
+                line.append(" ; line ").append(instr.token.line);
+            }
+            return line.toString();
+        }
+
+        private static String literal(Object value) {
+            if (value == null) return "nil";
+            if (value instanceof String) return "\"" + value + "\"";
+            return Interpreter.stringify(value);
+        }
+
+        private static String join(List<?> items) {
+            StringBuilder joined = new StringBuilder();
+            for (Object item : items) {
+                if (joined.length() > 0) joined.append(", ");
+                joined.append(item);
+            }
+            return joined.toString();
+        }
+    }
+}
@@ -0,0 +1,730 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Lowers one resolved function body into Ir. SSA construction follows Braun
+ * et al., "Simple and Efficient Construction of Static Single Assignment
+ * Form": locals are looked up per block as they are read, blocks are sealed
+ * once all their predecessors are known, and phis in unsealed blocks
+ * (loop headers) get their operands at sealing. Trivial phis are cleaned
+ * up at the end.
+ *
+ * Scopes mirror the Resolver's, so the depth it recorded for a variable
+ * says whether it is a global, one of this function's locals or something
+ * the function closes over.
+ */
+class IrBuilder implements Expr.Visitor<Ir.Instr>, Stmt.Visitor<Void> {
+
+    private final Interpreter interpreter;
+    private final Ir.Function function;
+    private final Set<Token> captured;
+
+    // The function's own scopes, innermost last: name to declaring token.
+    private final List<Map<String, Token>> scopes = new ArrayList<>();
+    private Ir.Block current;
+
+    // SSA construction state.
+    private final Map<Token, Map<Ir.Block, Ir.Instr>> definitions = new IdentityHashMap<>();
+    private final Set<Ir.Block> sealed = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Ir.Block, Map<Token, Ir.Instr>> incompletePhis = new IdentityHashMap<>();
+    private Ir.Instr undefined;
+
+    private IrBuilder(Interpreter interpreter, Stmt.Function declaration) {
+        this.interpreter = interpreter;
+        this.function = new Ir.Function(declaration);
+        this.captured = captured(interpreter, declaration.params, declaration.body);
+    }
+
+    static Ir.Function build(Interpreter interpreter, Stmt.Function declaration) {
+        return new IrBuilder(interpreter, declaration).build();
+    }
+
+    private Ir.Function build() {
+        Stmt.Function declaration = function.declaration;
+        current = function.newBlock();
+        seal(current);
+
+        scopes.add(new HashMap<>());
+        for (int i = 0; i < declaration.params.size(); i++) {
+            Token param = declaration.params.get(i);
+            Ir.Instr value = emit(Ir.Op.PARAM, param);
+            value.constant = param.lexeme;
+            value.depth = i;
+            declare(param, value);
+        }
+        lower(declaration.body);
+        if (!current.isTerminated()) emit(Ir.Op.RETURN, null, constant(null));
+        scopes.remove(scopes.size() - 1);
+
+        function.removeUnreachable();
+        function.removeTrivialPhis();
+        function.mergeStraightLines();
+        return function;
+    }
+
+    /* Emitting */
+    private Ir.Instr emit(Ir.Op op, Token token, Ir.Instr... args) {
+        Ir.Instr instr = function.newInstr(op);
+        instr.token = token;
+        Collections.addAll(instr.args, args);
+        instr.block = current;
+        current.instrs.add(instr);
+        return instr;
+    }
+
+    private Ir.Instr constant(Object value) {
+        Ir.Instr instr = emit(Ir.Op.CONST, null);
+        instr.constant = value;
+        return instr;
+    }
+
+    private static void link(Ir.Block from, Ir.Block to) {
+        from.succs.add(to);
+        to.preds.add(from);
+    }
+
+    private void jump(Ir.Block target) {
+        emit(Ir.Op.JUMP, null);
+        link(current, target);
+    }
+
+    private void branch(Ir.Instr condition, Token token, Ir.Block then, Ir.Block otherwise) {
+        emit(Ir.Op.BRANCH, token, condition);
+        link(current, then);
+        link(current, otherwise);
+    }
+
+    /* SSA construction */
+    private void write(Token variable, Ir.Block block, Ir.Instr value) {
+        definitions.computeIfAbsent(variable, v -> new IdentityHashMap<>()).put(block, value);
+    }
+
+    private Ir.Instr read(Token variable, Ir.Block block) {
+        Map<Ir.Block, Ir.Instr> defs = definitions.get(variable);
+        if (defs != null && defs.containsKey(block)) return defs.get(block);
+
+        Ir.Instr value;
+        if (!sealed.contains(block)) {
+            value = phi(block);
+            incompletePhis.computeIfAbsent(block, b -> new IdentityHashMap<>()).put(variable, value);
+        } else if (block.preds.size() == 1) {
+            value = read(variable, block.preds.get(0));
+        } else if (block.preds.isEmpty()) {
+            value = undefined();
+        } else {
+            // Write the phi first, so a loop back to this block finds it.
+            value = phi(block);
+            write(variable, block, value);
+            addPhiOperands(variable, value);
+        }
+        write(variable, block, value);
+        return value;
+    }
+
+    private Ir.Instr phi(Ir.Block block) {
+        Ir.Instr phi = function.newInstr(Ir.Op.PHI);
+        phi.block = block;
+        block.instrs.add(block.phiEnd(), phi);
+        return phi;
+    }
+
+    private void addPhiOperands(Token variable, Ir.Instr phi) {
+        for (Ir.Block pred : phi.block.preds)
+            phi.args.add(read(variable, pred));
+    }
+
+    private void seal(Ir.Block block) {
+        Map<Token, Ir.Instr> pending = incompletePhis.remove(block);
+        if (pending != null)
+            pending.forEach(this::addPhiOperands);
+        sealed.add(block);
+    }
+
+    // What a local reads on a path that never assigned it: only dead code
+    // (after a return) gets here, but it still needs a value.
+    private Ir.Instr undefined() {
+        if (undefined == null) {
+            undefined = function.newInstr(Ir.Op.CONST);
+            undefined.block = function.entry();
+            function.entry().instrs.add(0, undefined);
+        }
+        return undefined;
+    }
+
+    /* Variables */
+    private void declare(Token name, Ir.Instr value) {
+        scopes.get(scopes.size() - 1).put(name.lexeme, name);
+        if (captured.contains(name)) {
+            Ir.Instr define = emit(Ir.Op.DEFINE_CAPTURED, name, value);
+            define.constant = name;
+        } else {
+            write(name, current, value);
+        }
+    }
+
+    // The declaring token of a local of this function, or null.
+    private Token local(Integer depth, Token name) {
+        if (depth == null || depth >= scopes.size()) return null;
+        return scopes.get(scopes.size() - 1 - depth).get(name.lexeme);
+    }
+
+    private Ir.Instr load(Expr expr, Token name) {
+        Integer depth = interpreter.resolvedDepth(expr);
+        if (depth == null) {
+            Ir.Instr load = emit(Ir.Op.LOAD_GLOBAL, name);
+            load.constant = name.lexeme;
+            return load;
+        }
+        Token declaration = local(depth, name);
+        if (declaration == null) {
+            Ir.Instr load = emit(Ir.Op.LOAD_OUTER, name);
+            load.constant = name.lexeme;
+            load.depth = depth - scopes.size();
+            return load;
+        }
+        if (captured.contains(declaration)) {
+            Ir.Instr load = emit(Ir.Op.LOAD_CAPTURED, name);
+            load.constant = declaration;
+            return load;
+        }
+        return read(declaration, current);
+    }
+
+    private void store(Expr expr, Token name, Ir.Instr value) {
+        Integer depth = interpreter.resolvedDepth(expr);
+        Ir.Instr store;
+        if (depth == null) {
+            store = emit(Ir.Op.STORE_GLOBAL, name, value);
+            store.constant = name.lexeme;
+            return;
+        }
+        Token declaration = local(depth, name);
+        if (declaration == null) {
+            store = emit(Ir.Op.STORE_OUTER, name, value);
+            store.constant = name.lexeme;
+            store.depth = depth - scopes.size();
+        } else if (captured.contains(declaration)) {
+            store = emit(Ir.Op.STORE_CAPTURED, name, value);
+            store.constant = declaration;
+        } else {
+            write(declaration, current, value);
+        }
+    }
+
+    /* Statements */
+    private void lower(List<Stmt> statements) {
+        for (Stmt statement : statements)
+            statement.accept(this);
+    }
+
+    private Ir.Instr lower(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashMap<>());
+        lower(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        Ir.Instr klass = stmt.superclass == null
+                ? emit(Ir.Op.CLASS, stmt.name)
+                : emit(Ir.Op.CLASS, stmt.name, lower(stmt.superclass));
+        klass.constant = stmt;
+        declare(stmt.name, klass);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        lower(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        Ir.Instr closure = emit(Ir.Op.CLOSURE, stmt.name);
+        closure.constant = stmt;
+        declare(stmt.name, closure);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Ir.Instr condition = lower(stmt.condition);
+        Ir.Block then = function.newBlock();
+        Ir.Block otherwise = function.newBlock();
+        Ir.Block join = function.newBlock();
+        branch(condition, null, then, otherwise);
+        seal(then);
+        seal(otherwise);
+
+        current = then;
+        stmt.thenBranch.accept(this);
+        jump(join);
+        current = otherwise;
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        jump(join);
+
+        seal(join);
+        current = join;
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        emit(Ir.Op.PRINT, null, lower(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return visitPrintStmt(stmt.original);
+    }
+
+    // The resolver only allows imports at the top level of a file.
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        throw new IllegalStateException("Import in a function body.");
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        Ir.Instr value = stmt.value == null ? constant(null) : lower(stmt.value);
+        emit(Ir.Op.RETURN, stmt.keyword, value);
+
+        // Anything after a return is unreachable; it still gets a block,
+        // which removeUnreachable() drops.
+        current = function.newBlock();
+        seal(current);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        emit(Ir.Op.YIELD, stmt.keyword, lower(stmt.value));
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Ir.Instr value = stmt.initializer == null ? constant(null) : lower(stmt.initializer);
+        declare(stmt.name, value);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Ir.Block header = function.newBlock();
+        jump(header);
+        current = header;
+
+        Ir.Instr condition = lower(stmt.condition);
+        Ir.Block body = function.newBlock();
+        Ir.Block exit = function.newBlock();
+        branch(condition, stmt.keyword, body, exit);
+        seal(body);
+        seal(exit);
+
+        current = body;
+        stmt.body.accept(this);
+        jump(header);
+        seal(header);
+
+        current = exit;
+        return null;
+    }
+
+    /* Expressions */
+    @Override
+    public Ir.Instr visitAssignExpr(Expr.Assign expr) {
+        Ir.Instr value = lower(expr.value);
+        store(expr, expr.name, value);
+        return value;
+    }
+
+    @Override
+    public Ir.Instr visitBinaryExpr(Expr.Binary expr) {
+        Ir.Instr left = lower(expr.left);
+        Ir.Instr right = lower(expr.right);
+        return emit(binaryOp(expr.operator.type), expr.operator, left, right);
+    }
+
+    private static Ir.Op binaryOp(TokenType type) {
+        switch (type) {
+            case PLUS: return Ir.Op.ADD;
+            case MINUS: return Ir.Op.SUB;
+            case STAR: return Ir.Op.MUL;
+            case SLASH: return Ir.Op.DIV;
+            case LESS: return Ir.Op.LT;
+            case LESS_EQUAL: return Ir.Op.LE;
+            case GREATER: return Ir.Op.GT;
+            case GREATER_EQUAL: return Ir.Op.GE;
+            case EQUAL_EQUAL: return Ir.Op.EQ;
+            case BANG_EQUAL: return Ir.Op.NE;
+            default: throw new IllegalArgumentException("Not a binary operator: " + type);
+        }
+    }
+
+    @Override
+    public Ir.Instr visitCallExpr(Expr.Call expr) {
+        List<Ir.Instr> args = new ArrayList<>();
+        args.add(lower(expr.callee));
+        for (Expr arg : expr.args) args.add(lower(arg));
+        return emit(Ir.Op.CALL, expr.paren, args.toArray(new Ir.Instr[0]));
+    }
+
+    @Override
+    public Ir.Instr visitGetExpr(Expr.Get expr) {
+        Ir.Instr get = emit(Ir.Op.GET, expr.name, lower(expr.expr));
+        get.constant = expr.name.lexeme;
+        return get;
+    }
+
+    @Override
+    public Ir.Instr visitGroupingExpr(Expr.Grouping expr) {
+        return lower(expr.expression);
+    }
+
+    @Override
+    public Ir.Instr visitLiteralExpr(Expr.Literal expr) {
+        return constant(expr.value);
+    }
+
+    // 'a or b' and 'a and b' branch around b; the result is a phi of the
+    // two operands.
+    @Override
+    public Ir.Instr visitLogicalExpr(Expr.Logical expr) {
+        Ir.Instr left = lower(expr.left);
+        Ir.Block right = function.newBlock();
+        Ir.Block join = function.newBlock();
+        if (expr.operator.type == TokenType.OR) {
+            branch(left, null, join, right);
+        } else {
+            branch(left, null, right, join);
+        }
+        seal(right);
+
+        current = right;
+        Ir.Instr value = lower(expr.right);
+        jump(join);
+        seal(join);
+
+        current = join;
+        Ir.Instr phi = phi(join);
+        // join's preds are the left side's block, then the right side's.
+        phi.args.add(left);
+        phi.args.add(value);
+        return phi;
+    }
+
+    @Override
+    public Ir.Instr visitSetExpr(Expr.Set expr) {
+        Ir.Instr object = lower(expr.expr);
+        Ir.Instr value = lower(expr.value);
+        Ir.Instr set = emit(Ir.Op.SET, expr.name, object, value);
+        set.constant = expr.name.lexeme;
+        return value;
+    }
+
+    @Override
+    public Ir.Instr visitSuperExpr(Expr.Super expr) {
+        Ir.Instr zuper = emit(Ir.Op.SUPER, expr.method);
+        zuper.constant = expr.method.lexeme;
+        zuper.depth = interpreter.resolvedDepth(expr) - scopes.size();
+        return zuper;
+    }
+
+    @Override
+    public Ir.Instr visitThisExpr(Expr.This expr) {
+        return load(expr, expr.keyword);
+    }
+
+    @Override
+    public Ir.Instr visitUnaryExpr(Expr.Unary expr) {
+        Ir.Instr operand = lower(expr.right);
+        return emit(expr.operator.type == TokenType.MINUS ? Ir.Op.NEG : Ir.Op.NOT, expr.operator, operand);
+    }
+
+    @Override
+    public Ir.Instr visitVariableExpr(Expr.Variable expr) {
+        return load(expr, expr.name);
+    }
+
+    // Superinstructions lower as the nodes they replaced.
+    @Override
+    public Ir.Instr visitIncrementExpr(Expr.Increment expr) {
+        return visitAssignExpr(expr.original);
+    }
+
+    @Override
+    public Ir.Instr visitCompareConstExpr(Expr.CompareConst expr) {
+        return visitBinaryExpr(expr.original);
+    }
+
+    @Override
+    public Ir.Instr visitAssignLocalExpr(Expr.AssignLocal expr) {
+        return visitAssignExpr(expr.original);
+    }
+
+    @Override
+    public Ir.Instr visitCallGlobalExpr(Expr.CallGlobal expr) {
+        return visitCallExpr(expr.original);
+    }
+
+    /*
+     * The declaring tokens of a function's locals that a nested function or
+     * method refers to. Those have to stay in the environment, since the
+     * closure sees assignments made after it was created. For top-level
+     * code, pass no params.
+     */
+    static Set<Token> captured(Interpreter interpreter, List<Token> params, List<Stmt> body) {
+        Captures captures = new Captures(interpreter);
+        captures.function(params, body);
+        return captures.found;
+    }
+
+    // Walks the body with the same scopes the Resolver used, so a recorded
+    // depth picks the same scope.
+    private static final class Captures implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Interpreter interpreter;
+        private final List<Map<String, Token>> scopes = new ArrayList<>();
+        private final Set<Token> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        // How many scopes belong to the function being analyzed.
+        private int own = -1;
+
+        Captures(Interpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        private void function(List<Token> params, List<Stmt> body) {
+            scopes.add(new HashMap<>());
+            for (Token param : params) declare(param);
+            walk(body);
+            scopes.remove(scopes.size() - 1);
+        }
+
+        private void declare(Token name) {
+            scopes.get(scopes.size() - 1).put(name.lexeme, name);
+        }
+
+        private void walk(List<Stmt> statements) {
+            for (Stmt statement : statements) statement.accept(this);
+        }
+
+        private void walk(Expr expr) {
+            expr.accept(this);
+        }
+
+        private void reference(Expr expr, Token name) {
+            Integer depth = interpreter.resolvedDepth(expr);
+            if (depth == null || own < 0 || depth >= scopes.size()) return;
+            int index = scopes.size() - 1 - depth;
+            if (index < own) {
+                Token declaration = scopes.get(index).get(name.lexeme);
+                if (declaration != null) found.add(declaration);
+            }
+        }
+
+        // Walks a nested function or method: references from inside it to
+        // the outer function's scopes are captures.
+        private void nested(Runnable walk) {
+            boolean outermost = own < 0;
+            if (outermost) own = scopes.size();
+            walk.run();
+            if (outermost) own = -1;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scopes.add(new HashMap<>());
+            walk(stmt.statements);
+            scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            declare(stmt.name);
+            if (stmt.superclass != null) walk(stmt.superclass);
+            nested(() -> {
+                if (stmt.superclass != null) scopes.add(new HashMap<>());
+                scopes.add(new HashMap<>());
+                for (Stmt.Function method : stmt.methods) function(method.params, method.body);
+                scopes.remove(scopes.size() - 1);
+                if (stmt.superclass != null) scopes.remove(scopes.size() - 1);
+            });
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            declare(stmt.name);
+            nested(() -> function(stmt.params, stmt.body));
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            walk(stmt.condition);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+            return visitPrintStmt(stmt.original);
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            declare(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) walk(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitYieldStmt(Stmt.Yield stmt) {
+            walk(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) walk(stmt.initializer);
+            declare(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            walk(stmt.condition);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            walk(expr.value);
+            reference(expr, expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            walk(expr.callee);
+            for (Expr arg : expr.args) walk(arg);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            walk(expr.expr);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            walk(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            walk(expr.expr);
+            walk(expr.value);
+            return null;
+        }
+
+        // 'this' and 'super' live in class scopes, never a function's locals.
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            reference(expr, expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitIncrementExpr(Expr.Increment expr) {
+            return visitAssignExpr(expr.original);
+        }
+
+        @Override
+        public Void visitCompareConstExpr(Expr.CompareConst expr) {
+            return visitBinaryExpr(expr.original);
+        }
+
+        @Override
+        public Void visitAssignLocalExpr(Expr.AssignLocal expr) {
+            return visitAssignExpr(expr.original);
+        }
+
+        @Override
+        public Void visitCallGlobalExpr(Expr.CallGlobal expr) {
+            return visitCallExpr(expr.original);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Prints the SSA IR of a script's functions, before and after optimization.
+public class IrDump {
+
+    public static void main(String[] args) throws IOException {
+        String script = null;
+        boolean optimize = true;
+        List<String> names = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--no-opt")) {
+                optimize = false;
+            } else if (script == null) {
+                script = arg;
+            } else {
+                names.add(arg);
+            }
+        }
+        if (script == null) {
+            System.err.println("Usage: ir_dump <script> [function...] [--no-opt]");
+            System.exit(64);
+        }
+
+        String source = new String(Files.readAllBytes(Paths.get(script)), Charset.defaultCharset());
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        if (!Lox.hadError) new Resolver(interpreter).resolve(statements);
+        if (Lox.hadError) System.exit(65);
+
+        List<Stmt.Function> functions = new ArrayList<>();
+        List<String> qualified = new ArrayList<>();
+        collect(statements, "", functions, qualified);
+
+        for (int i = 0; i < functions.size(); i++) {
+            String name = qualified.get(i);
+            if (!names.isEmpty() && !names.contains(name) && !names.contains(functions.get(i).name.lexeme))
+                continue;
+
+            Ir.Function ir = IrBuilder.build(interpreter, functions.get(i));
+            ir.verify();
+            System.out.println("== " + name + " (line " + functions.get(i).name.line + ") ==");
+            System.out.print(ir.dump());
+            if (!optimize) {
+                System.out.println();
+                continue;
+            }
+
+            int before = ir.size();
+            IrOptimizer optimizer = new IrOptimizer();
+            optimizer.optimize(ir);
+            ir.verify();
+            System.out.println("-- optimized: " + before + " -> " + ir.size() + " instructions; "
+                    + optimizer.summary());
+            System.out.print(ir.dump());
+            System.out.println();
+        }
+    }
+
+    // Every function and method, nested ones included, as outer.inner names.
+    private static void collect(List<Stmt> statements, String prefix,
+                                List<Stmt.Function> functions, List<String> names) {
+        for (Stmt statement : statements) collect(statement, prefix, functions, names);
+    }
+
+    private static void collect(Stmt statement, String prefix,
+                                List<Stmt.Function> functions, List<String> names) {
+        if (statement instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) statement;
+            functions.add(function);
+            names.add(prefix + function.name.lexeme);
+            collect(function.body, prefix + function.name.lexeme + ".", functions, names);
+        } else if (statement instanceof Stmt.Class) {
+            Stmt.Class klass = (Stmt.Class) statement;
+            for (Stmt.Function method : klass.methods)
+                collect(method, prefix + klass.name.lexeme + ".", functions, names);
+        } else if (statement instanceof Stmt.Block) {
+            collect(((Stmt.Block) statement).statements, prefix, functions, names);
+        } else if (statement instanceof Stmt.If) {
+            collect(((Stmt.If) statement).thenBranch, prefix, functions, names);
+            Stmt elseBranch = ((Stmt.If) statement).elseBranch;
+            if (elseBranch != null) collect(elseBranch, prefix, functions, names);
+        } else if (statement instanceof Stmt.While) {
+            collect(((Stmt.While) statement).body, prefix, functions, names);
+        }
+    }
+}
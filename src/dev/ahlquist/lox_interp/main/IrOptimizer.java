@@ -0,0 +1,458 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Optimization passes over Ir, run in this order:
+ *
+ *   gvn   global value numbering over the dominator tree: folds constant
+ *         arithmetic and merges repeated pure computations (CSE); within a
+ *         block, repeated loads and loads after a store reuse the value
+ *   licm  hoists loop-invariant computations and loads out of while loops
+ *   dse   drops stores another store overwrites before anything can see them
+ *   dce   drops values nothing uses, when computing them has no effect
+ *
+ * Nothing may change what a program does, including which runtime error it
+ * reports and where. So an operator only counts as pure once its operands
+ * are known to be numbers, and a load only moves past code that can't
+ * change what it reads.
+ */
+class IrOptimizer {
+
+    // Statistics
+    int folded;
+    int merged;
+    int loadsReused;
+    int hoisted;
+    int deadStores;
+    int deadValues;
+
+    void optimize(Ir.Function function) {
+        gvn(function);
+        licm(function);
+        dse(function);
+        dce(function);
+    }
+
+    String summary() {
+        return String.format("folded %d, merged %d, loads reused %d, hoisted %d, dead stores %d, dead values %d",
+                folded, merged, loadsReused, hoisted, deadStores, deadValues);
+    }
+
+    /* Facts */
+    private final Map<Ir.Instr, Boolean> numbers = new IdentityHashMap<>();
+
+    // Whether value is a number whenever it is computed. Values are assumed
+    // numbers while a cycle through them is being checked, so an induction
+    // variable counts when everything flowing into it does. Every rule is
+    // an 'and', so a failed assumption fails the whole query, and only a
+    // query that succeeds is remembered for everything it visited.
+    boolean isNumber(Ir.Instr value) {
+        Boolean known = numbers.get(value);
+        if (known != null) return known;
+        Set<Ir.Instr> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean number = isNumber(value, visited);
+        if (number) {
+            for (Ir.Instr seen : visited) numbers.put(seen, true);
+        } else {
+            numbers.put(value, false);
+        }
+        return number;
+    }
+
+    private boolean isNumber(Ir.Instr value, Set<Ir.Instr> visited) {
+        Boolean known = numbers.get(value);
+        if (known != null) return known;
+        if (!visited.add(value)) return true;
+        boolean number;
+        switch (value.op) {
+            case CONST:
+                number = value.constant instanceof Double;
+                break;
+            case SUB: case MUL: case DIV: case NEG:
+                number = true;  // or it threw
+                break;
+            case ADD:
+                number = isNumber(value.args.get(0), visited) && isNumber(value.args.get(1), visited);
+                break;
+            case PHI:
+                number = true;
+                for (Ir.Instr arg : value.args) number = number && isNumber(arg, visited);
+                break;
+            default:
+                number = false;
+        }
+        return number;
+    }
+
+    private static boolean isArithmetic(Ir.Op op) {
+        switch (op) {
+            case ADD: case SUB: case MUL: case DIV: case LT: case LE: case GT: case GE: case NEG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Whether computing instr can throw a runtime error.
+    boolean canThrow(Ir.Instr instr) {
+        if (isArithmetic(instr.op)) {
+            for (Ir.Instr arg : instr.args)
+                if (!isNumber(arg)) return true;
+            return false;
+        }
+        switch (instr.op) {
+            case LOAD_GLOBAL: case STORE_GLOBAL: case GET: case SET: case SUPER: case CALL: case CLASS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Whether instr computes a value from its operands and nothing else.
+    private boolean isPure(Ir.Instr instr) {
+        switch (instr.op) {
+            case CONST: case EQ: case NE: case NOT:
+                return true;
+            default:
+                return isArithmetic(instr.op) && !canThrow(instr);
+        }
+    }
+
+    /* Global value numbering */
+    private void gvn(Ir.Function function) {
+        Map<Ir.Block, Ir.Block> idom = function.dominators();
+        Map<Ir.Block, List<Ir.Block>> children = new IdentityHashMap<>();
+        for (Ir.Block block : function.reversePostorder()) {
+            Ir.Block parent = idom.get(block);
+            if (parent != block) children.computeIfAbsent(parent, b -> new ArrayList<>()).add(block);
+        }
+
+        // Values available in the current block: those of its dominators.
+        Map<List<Object>, Ir.Instr> available = new HashMap<>();
+        List<Object> work = new ArrayList<>();
+        work.add(function.entry());
+        List<List<List<Object>>> added = new ArrayList<>();
+        while (!work.isEmpty()) {
+            Object next = work.remove(work.size() - 1);
+            if (next instanceof Integer) {
+                // Leaving a subtree: forget what it added.
+                for (List<Object> key : added.remove(added.size() - 1)) available.remove(key);
+                continue;
+            }
+            Ir.Block block = (Ir.Block) next;
+            List<List<Object>> keys = new ArrayList<>();
+            added.add(keys);
+            work.add(0);
+            numberBlock(function, block, available, keys);
+            reuseLoads(function, block);
+            List<Ir.Block> kids = children.getOrDefault(block, Collections.emptyList());
+            for (int i = kids.size() - 1; i >= 0; i--) work.add(kids.get(i));
+        }
+        function.removeTrivialPhis();
+    }
+
+    private void numberBlock(Ir.Function function, Ir.Block block,
+                             Map<List<Object>, Ir.Instr> available, List<List<Object>> keys) {
+        for (Ir.Instr instr : new ArrayList<>(block.instrs)) {
+            fold(instr);
+            if (!isPure(instr)) continue;
+            List<Object> key = key(instr);
+            Ir.Instr existing = available.get(key);
+            if (existing != null) {
+                function.replaceAllUses(instr, existing);
+                function.remove(instr);
+                merged++;
+            } else {
+                available.put(key, instr);
+                keys.add(key);
+            }
+        }
+    }
+
+    private static List<Object> key(Ir.Instr instr) {
+        List<Object> key = new ArrayList<>();
+        key.add(instr.op);
+        if (instr.op == Ir.Op.CONST) {
+            key.add(instr.constant == null ? null : instr.constant.getClass());
+            key.add(instr.constant);
+            return key;
+        }
+        List<Integer> args = new ArrayList<>();
+        for (Ir.Instr arg : instr.args) args.add(arg.id);
+        // Operand order doesn't matter for these.
+        if (instr.op == Ir.Op.MUL || instr.op == Ir.Op.EQ || instr.op == Ir.Op.NE) Collections.sort(args);
+        key.addAll(args);
+        return key;
+    }
+
+    // Turns an operator on constants into a constant.
+    private void fold(Ir.Instr instr) {
+        Object value;
+        List<Ir.Instr> args = instr.args;
+        for (Ir.Instr arg : args) if (arg.op != Ir.Op.CONST) return;
+        switch (instr.op) {
+            case EQ: value = Interpreter.isEqual(args.get(0).constant, args.get(1).constant); break;
+            case NE: value = !Interpreter.isEqual(args.get(0).constant, args.get(1).constant); break;
+            case NOT: value = !Interpreter.isTruthy(args.get(0).constant); break;
+            default:
+                if (!isArithmetic(instr.op) || canThrow(instr)) return;
+                value = arithmetic(instr.op, args);
+        }
+        instr.op = Ir.Op.CONST;
+        instr.args.clear();
+        instr.constant = value;
+        instr.token = null;
+        numbers.remove(instr);
+        folded++;
+    }
+
+    private static Object arithmetic(Ir.Op op, List<Ir.Instr> args) {
+        double left = (Double) args.get(0).constant;
+        if (op == Ir.Op.NEG) return -left;
+        double right = (Double) args.get(1).constant;
+        switch (op) {
+            case ADD: return left + right;
+            case SUB: return left - right;
+            case MUL: return left * right;
+            case DIV: return left / right;
+            case LT: return left < right;
+            case LE: return left <= right;
+            case GT: return left > right;
+            default: return left >= right;
+        }
+    }
+
+    /* Memory: what a load or store reads or writes */
+
+    // A key naming the location instr reads or writes, or null.
+    private static Object location(Ir.Instr instr) {
+        switch (instr.op) {
+            case LOAD_GLOBAL: case STORE_GLOBAL:
+                return "global:" + instr.constant;
+            case LOAD_OUTER: case STORE_OUTER:
+                return "outer:" + instr.depth + ":" + instr.constant;
+            case DEFINE_CAPTURED: case LOAD_CAPTURED: case STORE_CAPTURED:
+                return instr.constant;  // the declaring token
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isLoad(Ir.Op op) {
+        return op == Ir.Op.LOAD_GLOBAL || op == Ir.Op.LOAD_OUTER || op == Ir.Op.LOAD_CAPTURED;
+    }
+
+    private static boolean isStore(Ir.Op op) {
+        return op == Ir.Op.STORE_GLOBAL || op == Ir.Op.STORE_OUTER
+                || op == Ir.Op.DEFINE_CAPTURED || op == Ir.Op.STORE_CAPTURED;
+    }
+
+    // Within one block: a load after a load or store of the same variable
+    // reuses that value, as does a property read after a write to the same
+    // object. A call can change anything; a property write can change that
+    // property on any object. Property reads never reuse each other, since
+    // reading a method binds a fresh function each time.
+    private void reuseLoads(Ir.Function function, Ir.Block block) {
+        Map<Object, Ir.Instr> known = new HashMap<>();
+        Map<List<Object>, Ir.Instr> fields = new HashMap<>();
+        for (Ir.Instr instr : new ArrayList<>(block.instrs)) {
+            Object location = location(instr);
+            if (isLoad(instr.op)) {
+                Ir.Instr value = known.get(location);
+                if (value != null) {
+                    function.replaceAllUses(instr, value);
+                    function.remove(instr);
+                    loadsReused++;
+                } else {
+                    known.put(location, instr);
+                }
+            } else if (isStore(instr.op)) {
+                known.put(location, instr.args.get(0));
+            } else if (instr.op == Ir.Op.GET) {
+                Ir.Instr value = fields.get(field(instr));
+                if (value != null) {
+                    function.replaceAllUses(instr, value);
+                    function.remove(instr);
+                    loadsReused++;
+                }
+            } else if (instr.op == Ir.Op.SET) {
+                fields.keySet().removeIf(key -> key.get(1).equals(instr.constant));
+                fields.put(field(instr), instr.args.get(1));
+            } else if (instr.op == Ir.Op.CALL || instr.op == Ir.Op.YIELD || instr.op == Ir.Op.CLASS) {
+                // A class with a superclass runs no code, but stays simple.
+                // A yield lets the generator's consumer run.
+                known.clear();
+                fields.clear();
+            }
+        }
+    }
+
+    private static List<Object> field(Ir.Instr instr) {
+        List<Object> key = new ArrayList<>();
+        key.add(instr.args.get(0).id);
+        key.add(instr.constant);
+        return key;
+    }
+
+    /* Loop-invariant code motion */
+    private void licm(Ir.Function function) {
+        Map<Ir.Block, Ir.Block> idom = function.dominators();
+        List<Set<Ir.Block>> loops = new ArrayList<>();
+        List<Ir.Block> headers = new ArrayList<>();
+        for (Ir.Block block : function.blocks) {
+            for (Ir.Block succ : block.succs) {
+                if (!Ir.Function.dominates(idom, succ, block)) continue;
+                headers.add(succ);
+                loops.add(naturalLoop(succ, block));
+            }
+        }
+
+        // Innermost loops first, so code can move out one level at a time.
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < loops.size(); i++) order.add(i);
+        order.sort((a, b) -> Integer.compare(loops.get(a).size(), loops.get(b).size()));
+        List<Ir.Block> rpo = function.reversePostorder();
+        for (int i : order) hoist(loops.get(i), headers.get(i), rpo);
+    }
+
+    // The blocks of the loop with back edge latch -> header.
+    private static Set<Ir.Block> naturalLoop(Ir.Block header, Ir.Block latch) {
+        Set<Ir.Block> body = Collections.newSetFromMap(new IdentityHashMap<>());
+        body.add(header);
+        List<Ir.Block> work = new ArrayList<>();
+        if (body.add(latch)) work.add(latch);
+        while (!work.isEmpty()) {
+            Ir.Block block = work.remove(work.size() - 1);
+            for (Ir.Block pred : block.preds)
+                if (body.add(pred)) work.add(pred);
+        }
+        return body;
+    }
+
+    private void hoist(Set<Ir.Block> loop, Ir.Block header, List<Ir.Block> rpo) {
+        // Code moves to the one block that enters the loop, which always
+        // jumps straight to the header for a while loop.
+        Ir.Block preheader = null;
+        for (Ir.Block pred : header.preds) {
+            if (loop.contains(pred)) continue;
+            if (preheader != null) return;
+            preheader = pred;
+        }
+        if (preheader == null || preheader.succs.size() != 1) return;
+
+        boolean calls = false;
+        Set<Object> stored = new HashSet<>();
+        for (Ir.Block block : loop) {
+            for (Ir.Instr instr : block.instrs) {
+                if (instr.op == Ir.Op.CALL || instr.op == Ir.Op.YIELD) calls = true;
+                if (isStore(instr.op)) stored.add(location(instr));
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Ir.Block block : rpo) {
+                if (!loop.contains(block)) continue;
+                for (Ir.Instr instr : new ArrayList<>(block.instrs)) {
+                    if (!invariant(instr, loop, calls, stored)) continue;
+                    block.instrs.remove(instr);
+                    preheader.instrs.add(preheader.instrs.size() - 1, instr);
+                    instr.block = preheader;
+                    hoisted++;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean invariant(Ir.Instr instr, Set<Ir.Block> loop, boolean calls, Set<Object> stored) {
+        for (Ir.Instr arg : instr.args)
+            if (loop.contains(arg.block)) return false;
+        if (isPure(instr)) return true;
+        // Loads that can't fail, of variables nothing in the loop changes.
+        return (instr.op == Ir.Op.LOAD_OUTER || instr.op == Ir.Op.LOAD_CAPTURED)
+                && !calls && !stored.contains(location(instr));
+    }
+
+    /* Dead store elimination */
+
+    // Walking each block backwards: a store is dead if a later store in the
+    // block writes the same place and nothing between can read it, throw
+    // or call out. Stores still pending at the end of a block may be read
+    // by a successor, or by a closure after a return, so they all stay.
+    private void dse(Ir.Function function) {
+        for (Ir.Block block : function.blocks) {
+            Set<Object> overwritten = new HashSet<>();
+            Set<List<Object>> fields = new HashSet<>();
+            for (int i = block.instrs.size() - 1; i >= 0; i--) {
+                Ir.Instr instr = block.instrs.get(i);
+                Object location = location(instr);
+                if (instr.op == Ir.Op.STORE_GLOBAL || instr.op == Ir.Op.STORE_OUTER
+                        || instr.op == Ir.Op.STORE_CAPTURED) {
+                    if (overwritten.contains(location)) {
+                        function.remove(instr);
+                        deadStores++;
+                        continue;
+                    }
+                } else if (instr.op == Ir.Op.SET && fields.contains(field(instr))) {
+                    function.remove(instr);
+                    deadStores++;
+                    continue;
+                }
+
+                if (instr.op == Ir.Op.CALL || instr.op == Ir.Op.YIELD || canThrow(instr)) {
+                    overwritten.clear();
+                    fields.clear();
+                }
+                if (isLoad(instr.op)) overwritten.remove(location);
+                if (instr.op == Ir.Op.GET)
+                    fields.removeIf(key -> key.get(1).equals(instr.constant));
+                if (isStore(instr.op)) overwritten.add(location);
+                if (instr.op == Ir.Op.SET) fields.add(field(instr));
+            }
+        }
+    }
+
+    /* Dead code elimination */
+    private void dce(Ir.Function function) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Map<Ir.Instr, Integer> uses = new IdentityHashMap<>();
+            for (Ir.Block block : function.blocks)
+                for (Ir.Instr instr : block.instrs)
+                    for (Ir.Instr arg : instr.args) uses.merge(arg, 1, Integer::sum);
+
+            for (Ir.Block block : function.blocks) {
+                Iterator<Ir.Instr> it = block.instrs.iterator();
+                while (it.hasNext()) {
+                    Ir.Instr instr = it.next();
+                    if (uses.containsKey(instr) || !removable(instr)) continue;
+                    it.remove();
+                    instr.block = null;
+                    deadValues++;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean removable(Ir.Instr instr) {
+        switch (instr.op) {
+            case PHI: case LOAD_OUTER: case LOAD_CAPTURED: case CLOSURE:
+                return true;
+            default:
+                return isPure(instr);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Just enough JSON for the files the interpreter writes and reads back:
+ * quoting strings on the way out, and a parser for the way in. Objects
+ * become LinkedHashMaps, arrays ArrayLists, numbers Doubles.
+ */
+final class Json {
+
+    private final String text;
+    private int current = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+                    else quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value();
+        json.skipWhitespace();
+        if (json.current != text.length()) throw json.error("Unexpected trailing input");
+        return value;
+    }
+
+    private Object value() {
+        skipWhitespace();
+        if (current >= text.length()) throw error("Unexpected end of input");
+        char c = text.charAt(current);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': return literal("true", Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return number();
+                throw error("Unexpected '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        current++;
+        if (match('}')) return object;
+        do {
+            skipWhitespace();
+            if (current >= text.length() || text.charAt(current) != '"') throw error("Expected a key");
+            String key = string();
+            if (!match(':')) throw error("Expected ':'");
+            object.put(key, value());
+        } while (match(','));
+        if (!match('}')) throw error("Expected ',' or '}'");
+        return object;
+    }
+
+    private List<Object> array() {
+        List<Object> array = new ArrayList<>();
+        current++;
+        if (match(']')) return array;
+        do {
+            array.add(value());
+        } while (match(','));
+        if (!match(']')) throw error("Expected ',' or ']'");
+        return array;
+    }
+
+    private String string() {
+        StringBuilder string = new StringBuilder();
+        current++;
+        while (current < text.length()) {
+            char c = text.charAt(current++);
+            if (c == '"') return string.toString();
+            if (c != '\\') {
+                string.append(c);
+                continue;
+            }
+            if (current >= text.length()) break;
+            char escaped = text.charAt(current++);
+            switch (escaped) {
+                case 'b': string.append('\b'); break;
+                case 'f': string.append('\f'); break;
+                case 'n': string.append('\n'); break;
+                case 'r': string.append('\r'); break;
+                case 't': string.append('\t'); break;
+                case 'u':
+                    if (current + 4 > text.length()) throw error("Bad unicode escape");
+                    string.append((char) Integer.parseInt(text.substring(current, current + 4), 16));
+                    current += 4;
+                    break;
+                default: string.append(escaped); break;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Double number() {
+        int start = current;
+        while (current < text.length() && "+-0123456789.eE".indexOf(text.charAt(current)) >= 0)
+            current++;
+        try {
+            return Double.parseDouble(text.substring(start, current));
+        } catch (NumberFormatException e) {
+            throw error("Bad number");
+        }
+    }
+
+    private Object literal(String word, Object value) {
+        if (!text.startsWith(word, current)) throw error("Unexpected input");
+        current += word.length();
+        return value;
+    }
+
+    private boolean match(char expected) {
+        skipWhitespace();
+        if (current < text.length() && text.charAt(current) == expected) {
+            current++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (current < text.length() && Character.isWhitespace(text.charAt(current)))
+            current++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + current + ".");
+    }
+}
@@ -0,0 +1,230 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A language server for editors, over stdin and stdout: just the document
+ * sync and diagnostics parts of the protocol. Open documents are kept in
+ * IncrementalParsers, which editors send ranged changes to, and each
+ * change is answered with the document's diagnostics. What each change
+ * cost is logged to stderr, which editors show in the server's log.
+ */
+public class LanguageServer {
+
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Map<String, IncrementalParser> documents = new HashMap<>();
+    private boolean shutdown = false;
+
+    private LanguageServer(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(in);
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        new LanguageServer(System.in, System.out).serve();
+    }
+
+    private void serve() throws IOException {
+        for (String message = read(); message != null; message = read()) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> request = (Map<String, Object>) Json.parse(message);
+            Object id = request.get("id");
+            try {
+                handle((String) request.get("method"), id, object(request.get("params")));
+            } catch (RuntimeException error) {
+                if (id != null) respondError(id, -32603, String.valueOf(error.getMessage()));
+                System.err.println("jlox: " + error);
+            }
+        }
+    }
+
+    private void handle(String method, Object id, Map<String, Object> params) throws IOException {
+        switch (method) {
+            case "initialize":
+                // Changes come as ranges; 2 is incremental sync.
+                respond(id, "{\"capabilities\":{\"textDocumentSync\":{\"openClose\":true,\"change\":2}},"
+                        + "\"serverInfo\":{\"name\":\"jlox\"}}");
+                return;
+            case "shutdown":
+                shutdown = true;
+                respond(id, "null");
+                return;
+            case "exit":
+                System.exit(shutdown ? 0 : 1);
+                return;
+            case "textDocument/didOpen": {
+                Map<String, Object> document = object(params.get("textDocument"));
+                String uri = (String) document.get("uri");
+                long started = System.nanoTime();
+                IncrementalParser parser = new IncrementalParser((String) document.get("text"));
+                documents.put(uri, parser);
+                publish(uri, parser, started);
+                return;
+            }
+            case "textDocument/didChange": {
+                String uri = (String) object(params.get("textDocument")).get("uri");
+                IncrementalParser parser = documents.get(uri);
+                if (parser == null) return;
+                long started = System.nanoTime();
+                for (Object change : (List<?>) params.get("contentChanges"))
+                    apply(parser, object(change));
+                publish(uri, parser, started);
+                return;
+            }
+            case "textDocument/didClose": {
+                String uri = (String) object(params.get("textDocument")).get("uri");
+                documents.remove(uri);
+                notify("textDocument/publishDiagnostics",
+                        "{\"uri\":" + Json.quote(uri) + ",\"diagnostics\":[]}");
+                return;
+            }
+            default:
+                // Notifications we don't handle are dropped; requests get an error.
+                if (id != null) respondError(id, -32601, "Method not found: " + method);
+        }
+    }
+
+    // A change is a range and its new text, or the whole new text.
+    private static void apply(IncrementalParser parser, Map<String, Object> change) {
+        String replacement = (String) change.get("text");
+        Map<String, Object> range = object(change.get("range"));
+        if (range.isEmpty()) {
+            parser.edit(0, parser.text().length(), replacement);
+            return;
+        }
+        int[] lines = lineStarts(parser.text());
+        int start = offset(parser.text(), lines, object(range.get("start")));
+        int end = offset(parser.text(), lines, object(range.get("end")));
+        parser.edit(start, end, replacement);
+    }
+
+    private void publish(String uri, IncrementalParser parser, long started) throws IOException {
+        String text = parser.text();
+        int[] lines = lineStarts(text);
+        StringBuilder diagnostics = new StringBuilder();
+        for (IncrementalParser.Diagnostic diagnostic : parser.diagnostics()) {
+            int line = Math.min(Math.max(diagnostic.line - 1, 0), lines.length - 1);
+            int start;
+            int end;
+            if (diagnostic.offset < 0) {
+                // Only the line is known.
+                start = lines[line];
+                end = line + 1 < lines.length ? lines[line + 1] - 1 : text.length();
+            } else {
+                start = Math.min(diagnostic.offset, text.length());
+                end = Math.min(start + diagnostic.length, text.length());
+            }
+            if (diagnostics.length() > 0) diagnostics.append(',');
+            diagnostics.append("{\"range\":{\"start\":").append(position(lines, start))
+                    .append(",\"end\":").append(position(lines, end))
+                    .append("},\"severity\":1,\"source\":\"jlox\",\"message\":")
+                    .append(Json.quote(diagnostic.message)).append('}');
+        }
+        notify("textDocument/publishDiagnostics",
+                "{\"uri\":" + Json.quote(uri) + ",\"diagnostics\":[" + diagnostics + "]}");
+
+        System.err.printf("jlox: %s: %d declarations parsed, %d kept, %.2f ms%n",
+                uri, parser.reparsed, parser.kept, (System.nanoTime() - started) / 1e6);
+    }
+
+    /* Positions */
+
+    // The offset each line starts at.
+    private static int[] lineStarts(String text) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < text.length(); i++)
+            if (text.charAt(i) == '\n') starts.add(i + 1);
+        int[] lines = new int[starts.size()];
+        for (int i = 0; i < lines.length; i++) lines[i] = starts.get(i);
+        return lines;
+    }
+
+    // Positions count UTF-16 code units, as Java strings do.
+    private static int offset(String text, int[] lines, Map<String, Object> position) {
+        int line = ((Number) position.get("line")).intValue();
+        int character = ((Number) position.get("character")).intValue();
+        if (line >= lines.length) return text.length();
+        return Math.min(lines[line] + character, text.length());
+    }
+
+    private static String position(int[] lines, int offset) {
+        int low = 0;
+        int high = lines.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (lines[middle] <= offset) low = middle;
+            else high = middle - 1;
+        }
+        return "{\"line\":" + low + ",\"character\":" + (offset - lines[low]) + "}";
+    }
+
+    /* Messages */
+
+    // The next message's content, or null at the end of the input.
+    private String read() throws IOException {
+        int length = -1;
+        for (String header = header(); ; header = header()) {
+            if (header == null) return null;
+            if (header.isEmpty()) break;
+            if (header.toLowerCase().startsWith("content-length:"))
+                length = Integer.parseInt(header.substring("content-length:".length()).trim());
+        }
+        if (length < 0) throw new IOException("Message without a Content-Length header.");
+
+        byte[] content = new byte[length];
+        in.readFully(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    private String header() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) return line.size() == 0 ? null : line.toString("US-ASCII");
+            if (b != '\r') line.write(b);
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private void respond(Object id, String result) throws IOException {
+        write("{\"jsonrpc\":\"2.0\",\"id\":" + id(id) + ",\"result\":" + result + "}");
+    }
+
+    private void respondError(Object id, int code, String message) throws IOException {
+        write("{\"jsonrpc\":\"2.0\",\"id\":" + id(id) + ",\"error\":{\"code\":" + code
+                + ",\"message\":" + Json.quote(message) + "}}");
+    }
+
+    private void notify(String method, String params) throws IOException {
+        write("{\"jsonrpc\":\"2.0\",\"method\":" + Json.quote(method) + ",\"params\":" + params + "}");
+    }
+
+    private void write(String message) throws IOException {
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        out.write(("Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.flush();
+    }
+
+    // Ids are numbers or strings; Json reads numbers as doubles.
+    private static String id(Object id) {
+        if (id instanceof Double && (Double) id == Math.rint((Double) id)) return String.valueOf(((Double) id).longValue());
+        if (id instanceof String) return Json.quote((String) id);
+        return String.valueOf(id);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> object(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : new HashMap<>();
+    }
+}
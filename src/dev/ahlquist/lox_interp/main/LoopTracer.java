@@ -0,0 +1,212 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Traces hot while loops in the tree-walking engine. Each loop counts its
+ * back-edges; once a loop passes the threshold, the next iteration is
+ * interpreted with a Trace attached, which notes what actually happened:
+ * the operand types of each binary operator, which way each if went and
+ * which function each call site called. TraceCompiler then compiles the
+ * loop into closures specialized on that trace, and the rest of the loop
+ * (and every later run of it) goes through the compiled form.
+ *
+ * Specialized code checks its assumptions with guards. A failed guard
+ * takes a side exit to the general path: the interpreter runs the branch
+ * the trace never saw, or the generic operator or call runs instead of the
+ * specialized one. When side exits get common, the loop drops its trace at
+ * the next iteration boundary and records a new one that also includes
+ * what the old one saw. A loop that keeps failing is left interpreted.
+ *
+ * One tracer per interpreter; parallel workers don't trace.
+ */
+class LoopTracer {
+
+    private static final int MAX_RECORDINGS = 3;
+
+    private final int threshold;
+    private final Map<Stmt.While, Loop> loops = new IdentityHashMap<>();
+    private boolean recordingAny = false;
+
+    LoopTracer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    Loop loop(Stmt.While stmt) {
+        Loop loop = loops.get(stmt);
+        if (loop == null) {
+            loop = new Loop(stmt);
+            loops.put(stmt, loop);
+        }
+        return loop;
+    }
+
+    // Counts a back-edge and says whether this iteration should be recorded.
+    // Loops inside an iteration being recorded belong to that trace.
+    boolean shouldRecord(Loop loop) {
+        if (++loop.interpreted < threshold || recordingAny || loop.abandoned) return false;
+        return loop.trace == null;
+    }
+
+    // Runs one iteration of body with a trace attached, then compiles the
+    // loop from it. An iteration that ends in an exception (a return, a
+    // runtime error) leaves the loop untraced until the next attempt.
+    void record(Loop loop, Interpreter interpreter, Runnable iteration) {
+        Trace trace = new Trace(loop.previous);
+        recordingAny = true;
+        interpreter.recording = trace;
+        try {
+            iteration.run();
+        } finally {
+            interpreter.recording = null;
+            recordingAny = false;
+        }
+
+        loop.recordings++;
+        trace.compiled = new TraceCompiler(interpreter, trace).compileLoop(loop.stmt);
+        loop.trace = trace;
+        loop.previous = trace;
+    }
+
+    // Drops every trace and what led to it, for a reload: traces inline
+    // calls to functions that may have been replaced. A trace that is
+    // running stops at its next iteration boundary.
+    void reset() {
+        for (Loop loop : loops.values()) {
+            if (loop.trace != null) {
+                loop.trace.dropped = true;
+                loop.retire(loop.trace);
+            }
+            loop.trace = null;
+            loop.previous = null;
+            loop.recordings = 0;
+            loop.abandoned = false;
+        }
+    }
+
+    /* Per-loop state */
+    static final class Loop {
+        final Stmt.While stmt;
+        Trace trace;          // compiled and in use, or null
+        Trace previous;       // what earlier traces saw, carried into the next
+        long interpreted;
+        int recordings;
+        boolean abandoned;
+
+        // What traces that were dropped did, for the report.
+        long iterations;
+        long sideExits;
+        long typeMisses;
+        long calleeMisses;
+        long inlined;
+
+        Loop(Stmt.While stmt) {
+            this.stmt = stmt;
+        }
+
+        // Runs the loop through its trace. Returns true if the loop finished,
+        // false if the trace was dropped and the caller should carry on.
+        boolean runTrace(Environment env) {
+            Trace trace = this.trace;
+            if (trace.compiled.run(env, trace)) return true;
+
+            this.trace = null;
+            retire(trace);
+            if (recordings >= MAX_RECORDINGS) abandoned = true;
+            return false;
+        }
+
+        // Adds a dropped trace's statistics to the loop's, once.
+        void retire(Trace trace) {
+            if (trace.retired) return;
+            trace.retired = true;
+            iterations += trace.iterations;
+            sideExits += trace.sideExits;
+            typeMisses += trace.typeMisses;
+            calleeMisses += trace.calleeMisses;
+            inlined += trace.inlined;
+        }
+    }
+
+    /* What one recorded iteration saw, and how its trace has done since */
+    static final class Trace {
+        static final int THEN = 1;
+        static final int ELSE = 2;
+
+        // Facts, keyed by the node or token they were seen at.
+        final Map<Token, Integer> types = new IdentityHashMap<>();
+        final Map<Stmt.If, Integer> branches = new IdentityHashMap<>();
+        final Map<Token, Object> callees = new IdentityHashMap<>();
+
+        TraceCompiler.CompiledLoop compiled;
+        boolean dropped;
+        boolean retired;
+
+        // Statistics
+        long iterations;
+        long sideExits;
+        long typeMisses;
+        long calleeMisses;
+        int inlined;
+
+        Trace(Trace previous) {
+            if (previous == null) return;
+            types.putAll(previous.types);
+            branches.putAll(previous.branches);
+            callees.putAll(previous.callees);
+        }
+
+        void binary(Token operator, Object left, Object right) {
+            types.merge(operator, RuntimeProfile.typeOf(left) | RuntimeProfile.typeOf(right), (a, b) -> a | b);
+        }
+
+        void branch(Stmt.If stmt, boolean taken) {
+            branches.merge(stmt, taken ? THEN : ELSE, (a, b) -> a | b);
+        }
+
+        // A call site that saw more than one callee maps to this.
+        static final Object POLYMORPHIC = new Object();
+
+        // Functions count as the same callee when they share a declaration,
+        // so bound methods and fresh closures of one function still match.
+        void call(Token paren, Object callee) {
+            Object seen = callees.get(paren);
+            if (seen == null) {
+                callees.put(paren, callee);
+            } else if (seen != callee && !(seen instanceof LoxFunction && callee instanceof LoxFunction
+                    && ((LoxFunction) seen).declaration() == ((LoxFunction) callee).declaration())) {
+                callees.put(paren, POLYMORPHIC);
+            }
+        }
+
+        // Whether the trace should be dropped at the next iteration boundary.
+        boolean failing() {
+            if (dropped) return true;
+            long misses = sideExits + typeMisses + calleeMisses;
+            return iterations >= 64 && misses * 4 > iterations;
+        }
+    }
+
+    /* Reporting */
+    void report(PrintStream out) {
+        List<Loop> sorted = new ArrayList<>(loops.values());
+        sorted.sort((a, b) -> Integer.compare(a.stmt.keyword.line, b.stmt.keyword.line));
+        out.printf("%-8s %12s %12s %6s %10s %10s %10s %8s  %s%n", "loop", "interpreted", "traced",
+                "traces", "side exits", "type miss", "call miss", "inlined", "state");
+        for (Loop loop : sorted) {
+            // Every trace the loop has had: those dropped, and the one in use.
+            Trace trace = loop.trace != null && !loop.trace.retired ? loop.trace : null;
+            String state = loop.abandoned ? "abandoned" : loop.trace != null ? "traced" : "interpreted";
+            out.printf("line %-3d %12d %12d %6d %10d %10d %10d %8d  %s%n", loop.stmt.keyword.line,
+                    loop.interpreted, loop.iterations + (trace == null ? 0 : trace.iterations), loop.recordings,
+                    loop.sideExits + (trace == null ? 0 : trace.sideExits),
+                    loop.typeMisses + (trace == null ? 0 : trace.typeMisses),
+                    loop.calleeMisses + (trace == null ? 0 : trace.calleeMisses),
+                    loop.inlined + (trace == null ? 0 : trace.inlined), state);
+        }
+    }
+}
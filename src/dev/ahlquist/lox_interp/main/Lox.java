@@ -4,31 +4,315 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 
 public class Lox {
 
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter;
 
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
+    // The module whose front end this thread is running, for errors.
+    static final ThreadLocal<String> module = new ThreadLocal<>();
+
+    // Where this thread's front-end errors go instead of stderr, when an
+    // editor is asking for them; see IncrementalParser.
+    static final ThreadLocal<List<IncrementalParser.Diagnostic>> diagnostics = new ThreadLocal<>();
+
+    // Where imports in the script, or at the prompt, are found.
+    private static Path directory = Paths.get("");
+
+    // Rewrite common node shapes into superinstructions after resolution.
+    static boolean fuse = true;
+
+    // Prove expression types after resolution, so checks can be skipped.
+    static boolean infer = true;
+
+    // Call methods with one declaration directly; see ClassHierarchy.
+    static boolean devirtualize = true;
+
+    // Cache results of pure functions; null when memoization is off.
+    private static MemoCache memo;
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        String script = null;
+        String engine = "tree";
+        boolean superinstructionReport = false;
+        boolean typeReport = false;
+        boolean memoize = false;
+        boolean memoStats = false;
+        int memoEntries = 100_000;
+        long memoBytes = 64L << 20;
+        LoxOutput.Flush flush = null;
+        int outputBuffer = LoxOutput.DEFAULT_BUFFER;
+        String profile = null;
+        long profileInterval = 1000;
+        String metrics = null;
+        String heapSnapshot = null;
+        String warmProfile = null;
+        String image = null;
+        boolean traceLoops = false;
+        boolean traceStats = false;
+        int traceThreshold = 100;
+        String saveImage = null;
+        long maxSteps = Budget.UNLIMITED;
+        long timeoutMillis = Budget.UNLIMITED;
+        long maxInstances = Budget.UNLIMITED;
+        boolean watch = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.equals("--no-superinstructions")) {
+                fuse = false;
+            } else if (arg.equals("--no-types")) {
+                infer = false;
+            } else if (arg.equals("--no-cha")) {
+                devirtualize = false;
+            } else if (arg.equals("--type-report")) {
+                typeReport = true;
+            } else if (arg.equals("--superinstructions-report")) {
+                superinstructionReport = true;
+            } else if (arg.equals("--memoize")) {
+                memoize = true;
+            } else if (arg.equals("--memoize-stats")) {
+                memoize = memoStats = true;
+            } else if (arg.startsWith("--memo-max-entries=")) {
+                memoEntries = Integer.parseInt(arg.substring("--memo-max-entries=".length()));
+            } else if (arg.startsWith("--memo-max-bytes=")) {
+                memoBytes = Long.parseLong(arg.substring("--memo-max-bytes=".length()));
+            } else if (arg.equals("--no-ropes")) {
+                LoxRope.enabled = false;
+            } else if (arg.startsWith("--flush=")) {
+                flush = parseFlush(arg.substring("--flush=".length()));
+            } else if (arg.equals("--metrics") || arg.startsWith("--metrics=")) {
+                metrics = arg.equals("--metrics") ? "-" : arg.substring("--metrics=".length());
+                // Read once when Metrics is loaded, which is after this.
+                System.setProperty("lox.metrics", "true");
+            } else if (arg.startsWith("--max-steps=")) {
+                maxSteps = Long.parseLong(arg.substring("--max-steps=".length()));
+            } else if (arg.startsWith("--timeout-ms=")) {
+                timeoutMillis = Long.parseLong(arg.substring("--timeout-ms=".length()));
+            } else if (arg.startsWith("--max-instances=")) {
+                maxInstances = Long.parseLong(arg.substring("--max-instances=".length()));
+            } else if (arg.startsWith("--warm-profile=")) {
+                warmProfile = arg.substring("--warm-profile=".length());
+            } else if (arg.equals("--trace-loops")) {
+                traceLoops = true;
+            } else if (arg.equals("--trace-stats")) {
+                traceLoops = traceStats = true;
+            } else if (arg.startsWith("--trace-threshold=")) {
+                traceThreshold = Integer.parseInt(arg.substring("--trace-threshold=".length()));
+            } else if (arg.startsWith("--image=")) {
+                image = arg.substring("--image=".length());
+            } else if (arg.startsWith("--save-image=")) {
+                saveImage = arg.substring("--save-image=".length());
+            } else if (arg.startsWith("--heap-snapshot=")) {
+                heapSnapshot = arg.substring("--heap-snapshot=".length());
+            } else if (arg.equals("--jfr")) {
+                // Read once when LoxEvents is loaded, which is after this.
+                System.setProperty("lox.jfr", "true");
+            } else if (arg.equals("--profile")) {
+                profile = "profile.collapsed";
+            } else if (arg.startsWith("--profile=")) {
+                profile = arg.substring("--profile=".length());
+            } else if (arg.startsWith("--profile-interval=")) {
+                profileInterval = Long.parseLong(arg.substring("--profile-interval=".length()));
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.startsWith("--output-buffer=")) {
+                outputBuffer = Integer.parseInt(arg.substring("--output-buffer=".length()));
+            } else if (arg.startsWith("--") || script != null) {
+                usage();
+            } else {
+                script = arg;
+            }
+        }
+
+        if (memoize) memo = new MemoCache(memoEntries, memoBytes);
+
+        interpreter = newInterpreter(engine);
+        if (interpreter == null) usage();
+
+        // Interactive sessions see each line as soon as it is printed.
+        interpreter.out = new LoxOutput(System.out, outputBuffer);
+        if (flush == null) flush = script == null ? LoxOutput.Flush.LINE : LoxOutput.Flush.SIZE;
+        interpreter.out.flush = flush;
+
+        if (maxSteps != Budget.UNLIMITED || timeoutMillis != Budget.UNLIMITED
+                || maxInstances != Budget.UNLIMITED) {
+            interpreter.budget = new Budget(maxSteps, timeoutMillis, maxInstances);
+        }
+
+        if (warmProfile != null) {
+            // Loaded if present; otherwise this run records it.
+            RuntimeProfile feedback = RuntimeProfile.load(Paths.get(warmProfile));
+            String target = warmProfile;
+            interpreter.runtimeProfile = feedback;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (!feedback.recording) return;
+                try {
+                    feedback.save(Paths.get(target));
+                } catch (IOException e) {
+                    System.err.println("Could not write " + target + ": " + e.getMessage());
+                }
+            }));
+        }
+
+        if (heapSnapshot != null) {
+            // What the program left behind in its globals once it finished.
+            String target = heapSnapshot;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    HeapSnapshot.take(interpreter).write(Paths.get(target));
+                } catch (IOException e) {
+                    System.err.println("Could not write " + target + ": " + e.getMessage());
+                }
+            }));
+        }
+
+        if (metrics != null) {
+            Metrics.register();
+            String target = metrics;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                String json = Metrics.toJson();
+                if (target.equals("-")) {
+                    System.err.println(json);
+                    return;
+                }
+                try {
+                    Files.write(Paths.get(target), (json + "\n").getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    System.err.println("Could not write " + target + ": " + e.getMessage());
+                }
+            }));
+        }
+
+        if (profile != null) {
+            Profiler profiler = new Profiler(profileInterval);
+            String collapsed = profile;
+            interpreter.profiler = profiler;
+            profiler.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                profiler.stop();
+                profiler.report(System.err);
+                try {
+                    profiler.writeCollapsed(Paths.get(collapsed));
+                } catch (IOException e) {
+                    System.err.println("Could not write " + collapsed + ": " + e.getMessage());
+                }
+            }));
+        }
+
+        if (traceLoops) {
+            // Only the tree engine interprets loops; the closure engine compiles them all anyway.
+            LoopTracer tracer = new LoopTracer(traceThreshold);
+            interpreter.tracer = tracer;
+            if (traceStats) Runtime.getRuntime().addShutdownHook(new Thread(() -> tracer.report(System.err)));
+        }
+
+        if (image != null) {
+            // Globals from an earlier run's prelude, in place of running it again.
+            try {
+                HeapImage.load(interpreter, Paths.get(image));
+            } catch (IOException e) {
+                System.err.println("Could not read " + image + ": " + e.getMessage());
+                System.exit(66);
+            }
+        }
+
+        if (saveImage != null) {
+            // Only a prelude that ran cleanly is worth keeping.
+            String target = saveImage;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (hadError || hadRuntimeError) return;
+                try {
+                    HeapImage.write(interpreter, Paths.get(target));
+                } catch (IOException e) {
+                    System.err.println("Could not write " + target + ": " + e.getMessage());
+                }
+            }));
+        }
+
+        if (typeReport) {
+            if (interpreter.types == null) usage();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> interpreter.types.report(System.err)));
+        }
+
+        if (memoStats) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> memo.report(System.err)));
+        }
+
+        if (superinstructionReport) {
+            if (interpreter.superinstructions == null) usage();
+            interpreter.superinstructions.counting = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> interpreter.superinstructions.report(System.err)));
+        }
+
+        if (script != null) {
+            runFile(script, watch);
         } else {
+            if (watch) usage();
             runPrompt();
         }
     }
 
-    private static void runFile(String path) throws IOException {
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|closure] [--no-superinstructions]"
+                + " [--superinstructions-report] [--no-types] [--type-report] [--no-cha] [--memoize] [--memoize-stats]"
+                + " [--memo-max-entries=N] [--memo-max-bytes=N] [--no-ropes]"
+                + " [--flush=line|size|exit] [--output-buffer=N]"
+                + " [--profile[=FILE]] [--profile-interval=MICROS] [--jfr]"
+                + " [--metrics[=FILE]] [--max-steps=N] [--timeout-ms=N] [--max-instances=N]"
+                + " [--heap-snapshot=FILE] [--warm-profile=FILE] [--image=FILE]"
+                + " [--save-image=FILE] [--trace-loops] [--trace-stats] [--trace-threshold=N]"
+                + " [--watch] [script]");
+        System.exit(64);
+    }
+
+    private static LoxOutput.Flush parseFlush(String name) {
+        for (LoxOutput.Flush flush : LoxOutput.Flush.values()) {
+            if (flush.name().equalsIgnoreCase(name)) return flush;
+        }
+        usage();
+        return null;
+    }
+
+    static Interpreter newInterpreter(String engine) {
+        Interpreter interpreter;
+        switch (engine) {
+            case "tree": interpreter = new Interpreter(); break;
+            case "closure": interpreter = new CompilingInterpreter(); break;
+            default: return null;
+        }
+
+        if (fuse) interpreter.superinstructions = new Superinstructions(interpreter);
+        if (infer) interpreter.types = new TypeInference(interpreter);
+        if (devirtualize) interpreter.hierarchy = new ClassHierarchy();
+        interpreter.memo = memo;
+        return interpreter;
+    }
+
+    private static void runFile(String path, boolean watch) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        directory = Paths.get(path).toAbsolutePath().getParent();
+        String source = new String(bytes, Charset.defaultCharset());
+        if (watch) {
+            interpreter.reload = new HotReload(interpreter, Paths.get(path), source);
+            interpreter.reload.start();
+        }
+        run(source);
+
+        // Edits keep being picked up at the prompt, with what the script
+        // left in globals still there.
+        if (watch && !hadError) runPrompt();
 
         // Indicate an error in the exit code.
         if (hadError) System.exit(65);
@@ -41,41 +325,120 @@ public class Lox {
 
         for (;;) {
             System.out.print("> ");
-            run(reader.readLine());
+            String line = reader.readLine();
+            if (line == null) return;
+            if (interpreter.reload != null) interpreter.reload.poll();
+            run(line);
         }
     }
 
     //TODO fix up REPL error handling.
     private static void run(String source) {
+        run(source, interpreter, directory);
+    }
+
+    static void run(String source, Interpreter interpreter) {
+        run(source, interpreter, Paths.get(""));
+    }
+
+    static void run(String source, Interpreter interpreter, Path directory) {
+        if (interpreter.profiler != null) interpreter.profiler.frontEnd();
+        long started = Metrics.now();
+        LoxEvents.Phase phase = LoxEvents.begin("scan");
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
+        LoxEvents.end(phase);
+        started = Metrics.stage(Metrics.SCAN, started);
 
+        phase = LoxEvents.begin("parse");
         Parser parser = new Parser(tokens);
         List<Stmt> statements = parser.parse();
+        LoxEvents.end(phase);
+        started = Metrics.stage(Metrics.PARSE, started);
 
         // Stop if there was a syntax error.
         if (hadError) return;
 
+        phase = LoxEvents.begin("resolve");
         Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
+        LoxEvents.end(phase);
+        started = Metrics.stage(Metrics.RESOLVE, started);
 
         // Stop if there was a resolution error.
         if (hadError) return;
 
+        phase = LoxEvents.begin("modules");
+        List<Modules.Module> modules = interpreter.modules.load(statements, directory);
+        LoxEvents.end(phase);
+        started = Metrics.stage(Metrics.MODULES, started);
+
+        // Or an error in a module.
+        if (modules == null) return;
+
+        phase = LoxEvents.begin("analyze");
+        for (Modules.Module module : modules) {
+            interpreter.resolve(module.locals);
+            // As a block, the module's top level is a scope of its own.
+            analyze(interpreter, module.statements,
+                    Collections.singletonList(new Stmt.Block(module.statements)));
+            module.loaded = true;
+        }
+        analyze(interpreter, statements, statements);
+        LoxEvents.end(phase);
+        started = Metrics.stage(Metrics.ANALYZE, started);
+
+        if (interpreter.runtimeProfile != null) {
+            interpreter.runtimeProfile.attach(source, modules);
+            interpreter.warmStart(statements);
+        }
+
+        // Each run gets the whole budget.
+        if (interpreter.budget != null) interpreter.budget.start();
+
+        // For the closure engine this includes its compile stage.
         interpreter.interpret(statements);
+        Metrics.stage(Metrics.INTERPRET, started);
+    }
+
+    // Runs the analyses over a program, a module or a reload: scoped is the same
+    // statements as a single scope, for those that look at globals.
+    static void analyze(Interpreter interpreter, List<Stmt> statements, List<Stmt> scoped) {
+        interpreter.purity.analyze(scoped);
+        if (interpreter.types != null) interpreter.types.analyze(scoped);
+        if (interpreter.hierarchy != null) interpreter.hierarchy.analyze(statements);
+
+        if (interpreter.superinstructions != null)
+            interpreter.superinstructions.rewrite(statements);
+
+        if (interpreter.profiler != null)
+            interpreter.profiler.lines.index(statements);
     }
 
     static void error(int line, String message) {
+        List<IncrementalParser.Diagnostic> collected = diagnostics.get();
+        if (collected != null) {
+            collected.add(new IncrementalParser.Diagnostic(line, -1, 0, message, false));
+            return;
+        }
         report(line, "", message);
     }
 
     private static void report(int line, String where, String message) {
+        String file = module.get();
         System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
+                "[" + (file == null ? "" : file + " ") + "line " + line + "] Error" + where + ": " + message);
         hadError = true;
     }
 
     static void error(Token token, String message) {
+        List<IncrementalParser.Diagnostic> collected = diagnostics.get();
+        if (collected != null) {
+            collected.add(new IncrementalParser.Diagnostic(token.line, token.offset, token.lexeme.length(),
+                    message, token.type == TokenType.EOF));
+            return;
+        }
+
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         } else {
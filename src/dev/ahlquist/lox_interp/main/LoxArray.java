@@ -0,0 +1,137 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.Arrays;
+
+/*
+ * A growable array. While every element is a number the elements live
+ * unboxed in a double[]; the first non-number stored converts the array to
+ * an Object[] for good.
+ */
+class LoxArray {
+    private double[] numbers;
+    private Object[] objects;
+    private int size;
+
+    LoxArray(int size, Object fill) {
+        this.size = size;
+        if (fill instanceof Double) {
+            numbers = new double[Math.max(size, 4)];
+            Arrays.fill(numbers, 0, size, (double) fill);
+        } else {
+            objects = new Object[Math.max(size, 4)];
+            Arrays.fill(objects, 0, size, fill);
+        }
+    }
+
+    private LoxArray(double[] numbers, Object[] objects, int size) {
+        this.numbers = numbers;
+        this.objects = objects;
+        this.size = size;
+    }
+
+    // Wraps values, unboxing them if they are all numbers.
+    static LoxArray of(Object[] values) {
+        double[] numbers = new double[Math.max(values.length, 4)];
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] instanceof Double)) return new LoxArray(null, values, values.length);
+            numbers[i] = (double) values[i];
+        }
+        return new LoxArray(numbers, null, values.length);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return numbers != null ? numbers.length : objects.length;
+    }
+
+    boolean isNumeric() {
+        return numbers != null;
+    }
+
+    Object get(int index) {
+        if (numbers != null) return numbers[index];
+        return objects[index];
+    }
+
+    void set(int index, Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[index] = (double) value;
+                return;
+            }
+            despecialize();
+        }
+        objects[index] = value;
+    }
+
+    void push(Object value) {
+        int capacity = numbers != null ? numbers.length : objects.length;
+        if (size == capacity) {
+            if (numbers != null) {
+                numbers = Arrays.copyOf(numbers, capacity * 2);
+            } else {
+                objects = Arrays.copyOf(objects, capacity * 2);
+            }
+        }
+        size++;
+        set(size - 1, value);
+    }
+
+    LoxArray slice(int from, int to) {
+        if (numbers != null) {
+            double[] copy = Arrays.copyOfRange(numbers, from, Math.max(to, from + 4));
+            return new LoxArray(copy, null, to - from);
+        }
+        Object[] copy = Arrays.copyOfRange(objects, from, Math.max(to, from + 4));
+        return new LoxArray(null, copy, to - from);
+    }
+
+    private void despecialize() {
+        objects = new Object[numbers.length];
+        for (int i = 0; i < size; i++)
+            objects[i] = numbers[i];
+        numbers = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(Interpreter.stringify(get(i)));
+        }
+        return builder.append("]").toString();
+    }
+
+    /* Natives. The token is the call site, or null when called through LoxCallable. */
+    static LoxArray check(Token token, Object array) {
+        if (array instanceof LoxArray) return (LoxArray) array;
+        throw new RuntimeError(token, "Expected an array.");
+    }
+
+    static int index(Token token, Object index, int limit) {
+        if (index instanceof Double) {
+            double value = (double) index;
+            if (value >= 0 && value < limit && value == (int) value) return (int) value;
+        }
+        throw new RuntimeError(token, "Array index out of bounds.");
+    }
+
+    static Object get(Token token, Object array, Object index) {
+        LoxArray self = check(token, array);
+        return self.get(index(token, index, self.size));
+    }
+
+    static Object set(Token token, Object array, Object index, Object value) {
+        LoxArray self = check(token, array);
+        self.set(index(token, index, self.size), value);
+        return value;
+    }
+
+    static Object length(Token token, Object array) {
+        return (double) check(token, array).size;
+    }
+}
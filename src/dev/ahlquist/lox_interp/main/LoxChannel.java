@@ -0,0 +1,69 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.concurrent.locks.Condition;
+
+/*
+ * A bounded queue of values between tasks. Sending waits while the channel
+ * is full and receiving while it is empty, on conditions of the Tasks
+ * lock, so a waiting task lets the others run. A closed channel still
+ * gives out what was sent before it closed, and then nil.
+ */
+class LoxChannel {
+
+    private final Tasks tasks;
+    private final Object[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    private final Condition notFull;
+    private final Condition notEmpty;
+
+    LoxChannel(Tasks tasks, int capacity) {
+        this.tasks = tasks;
+        this.buffer = new Object[capacity];
+        this.notFull = tasks.condition();
+        this.notEmpty = tasks.condition();
+    }
+
+    void send(Object value) {
+        tasks.enter();
+        while (count == buffer.length && !closed) notFull.awaitUninterruptibly();
+        if (closed) throw new RuntimeError(null, "Can't send on a closed channel.");
+
+        buffer[(head + count) % buffer.length] = value;
+        count++;
+        notEmpty.signal();
+    }
+
+    Object receive() {
+        tasks.enter();
+        while (count == 0 && !closed) notEmpty.awaitUninterruptibly();
+        if (count == 0) return null;
+
+        Object value = buffer[head];
+        buffer[head] = null;
+        head = (head + 1) % buffer.length;
+        count--;
+        notFull.signal();
+        return value;
+    }
+
+    void close() {
+        tasks.enter();
+        closed = true;
+        notFull.signalAll();
+        notEmpty.signalAll();
+    }
+
+    /* Natives. The token is the call site, or null when called through LoxCallable. */
+    static LoxChannel check(Token token, Object channel) {
+        if (channel instanceof LoxChannel) return (LoxChannel) channel;
+        throw new RuntimeError(token, "Expected a channel.");
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
@@ -2,24 +2,50 @@ package dev.ahlquist.lox_interp.main;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class LoxClass implements LoxCallable {
     final String name;
     private final LoxClass superclass;
     private final Map<String, LoxFunction> methods;
 
+    // Methods found so far, inherited ones included. A class's methods
+    // can't change once it is declared, so entries never go stale.
+    private final Map<String, LoxFunction> methodCache = new ConcurrentHashMap<>();
+
     public LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.name = name;
         this.superclass = superclass;
         this.methods = methods;
     }
 
+    LoxClass superclass() {
+        return superclass;
+    }
+
+    Map<String, LoxFunction> methods() {
+        return methods;
+    }
+
     @Override
     public String toString() {
         return name;
     }
 
     LoxFunction findMethod(String name) {
+        LoxFunction method = methodCache.get(name);
+        if (method != null) {
+            if (Metrics.ENABLED) Metrics.METHOD_CACHE_HITS.increment();
+            return method;
+        }
+
+        if (Metrics.ENABLED) Metrics.METHOD_CACHE_MISSES.increment();
+        method = lookupMethod(name);
+        if (method != null) methodCache.put(name, method);
+        return method;
+    }
+
+    private LoxFunction lookupMethod(String name) {
         if(methods.containsKey(name))
             return methods.get(name);
 
@@ -32,6 +58,19 @@ class LoxClass implements LoxCallable {
     /* LoxCallable */
     @Override
     public Object call(Interpreter interpreter, List<Object> args) {
+        if (!LoxEvents.ENABLED) return instantiate(interpreter, args);
+
+        LoxEvents.Instantiation event = new LoxEvents.Instantiation();
+        event.begin();
+        Object instance = instantiate(interpreter, args);
+        event.className = name;
+        event.commit();
+        return instance;
+    }
+
+    private Object instantiate(Interpreter interpreter, List<Object> args) {
+        if (Metrics.ENABLED) Metrics.INSTANCES.increment();
+        if (interpreter.budget != null) interpreter.budget.instantiate();
         LoxInstance instance = new LoxInstance(this);
         LoxFunction initializer = findMethod("init");
         if(initializer != null) {
@@ -0,0 +1,87 @@
+package dev.ahlquist.lox_interp.main;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/*
+ * Java Flight Recorder events for Lox-level activity, so calls, errors and
+ * compile phases show up next to GC and JIT events in the same recording.
+ *
+ * Events are only created when ENABLED, which is read once from the
+ * lox.jfr system property (set by --jfr). Since it is a static final the
+ * JIT folds the checks away when it is off. Recording still needs to be
+ * started the usual way, e.g. with -XX:StartFlightRecording.
+ */
+final class LoxEvents {
+
+    static final boolean ENABLED = Boolean.getBoolean("lox.jfr");
+
+    private LoxEvents() {}
+
+    @Name("lox.Call")
+    @Label("Lox Call")
+    @Category("Lox")
+    @Description("A call to a Lox function that took longer than the threshold")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class Call extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        int line;
+
+        @Label("Arguments")
+        int arguments;
+    }
+
+    @Name("lox.Instantiation")
+    @Label("Lox Instantiation")
+    @Category("Lox")
+    @Description("A Lox class being called to create an instance, including its initializer")
+    @StackTrace(false)
+    static class Instantiation extends Event {
+        @Label("Class")
+        String className;
+    }
+
+    @Name("lox.RuntimeError")
+    @Label("Lox Runtime Error")
+    @Category("Lox")
+    static class Error extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+
+    @Name("lox.Phase")
+    @Label("Lox Compile Phase")
+    @Category("Lox")
+    @Description("One front end phase over a script: scan, parse, resolve, analyze or compile")
+    @StackTrace(false)
+    static class Phase extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    // Starts timing a phase, or returns null when events are off; pass the
+    // result to end().
+    static Phase begin(String name) {
+        if (!ENABLED) return null;
+        Phase phase = new Phase();
+        phase.phase = name;
+        phase.begin();
+        return phase;
+    }
+
+    static void end(Phase phase) {
+        if (phase != null) phase.commit();
+    }
+}
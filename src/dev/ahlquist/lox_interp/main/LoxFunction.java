@@ -14,6 +14,18 @@ public class LoxFunction implements LoxCallable {
         this.isInitializer = isInitializer;
     }
 
+    Stmt.Function declaration() {
+        return declaration;
+    }
+
+    Environment closure() {
+        return closure;
+    }
+
+    boolean isInitializer() {
+        return isInitializer;
+    }
+
     LoxFunction bind(LoxInstance instance) {
         Environment environment = new Environment(closure);
         environment.define("this", instance);
@@ -22,13 +34,78 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> args) {
-        Environment environment = new Environment(this.closure);
+        // Reported at the call site, which Interpreter.call fills in.
+        if (interpreter.budget != null) interpreter.budget.tick(null);
+        if (interpreter.reload != null) interpreter.reload.poll();
+        if (LoxEvents.ENABLED) return recorded(interpreter, args);
+        return dispatch(interpreter, args);
+    }
+
+    private Object recorded(Interpreter interpreter, List<Object> args) {
+        LoxEvents.Call event = new LoxEvents.Call();
+        event.begin();
+        try {
+            return dispatch(interpreter, args);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.function = declaration.name.lexeme;
+                event.line = declaration.name.line;
+                event.arguments = args.size();
+                event.commit();
+            }
+        }
+    }
+
+    private Object dispatch(Interpreter interpreter, List<Object> args) {
+        if (Metrics.ENABLED) Metrics.CALLS.increment();
+        RuntimeProfile profile = interpreter.runtimeProfile;
+        if (profile != null && profile.recording) profile.call(declaration).count++;
+        MemoCache memo = interpreter.memo;
+        if (memo != null && !isInitializer && interpreter.purity.isPure(declaration)) {
+            return memo.call(declaration, args, () -> invoke(interpreter, args));
+        }
+        return invoke(interpreter, args);
+    }
+
+    private Object invoke(Interpreter interpreter, List<Object> args) {
+        Profiler profiler = interpreter.profiler;
+        if (profiler == null) return execute(interpreter, args);
+
+        profiler.enter(declaration);
+        try {
+            return execute(interpreter, args);
+        } finally {
+            profiler.exit();
+        }
+    }
+
+    // Runs this method with 'this' bound to instance, without binding it
+    // first. Only for call sites ClassHierarchy devirtualized, which
+    // nothing is watching and which never call initializers.
+    Object callOn(Interpreter interpreter, Token paren, LoxInstance instance, List<Object> args) {
+        if (interpreter.budget != null) interpreter.budget.tick(paren);
+        if (interpreter.reload != null) interpreter.reload.poll();
+        Environment self = new Environment(closure);
+        self.define("this", instance);
+        return execute(interpreter, self, args);
+    }
+
+    private Object execute(Interpreter interpreter, List<Object> args) {
+        return execute(interpreter, closure, args);
+    }
+
+    private Object execute(Interpreter interpreter, Environment closure, List<Object> args) {
+        Environment environment = new Environment(closure);
         for (int i=0; i<declaration.params.size(); i++)
             environment.define(
                     declaration.params.get(i).lexeme,
                     args.get(i)
             );
 
+        // A generator's body runs later, as its values are asked for.
+        if (declaration.generator) return new LoxGenerator(interpreter, declaration.body, environment);
+
         try {
             interpreter.executeBlock(declaration.body, environment);
         } catch (Return returnValue) {
@@ -0,0 +1,287 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * What calling a function with a yield in it returns. The body doesn't run
+ * until next(gen) asks for a value; then it runs up to its next yield,
+ * and next() returns what was yielded, or nil once the body has finished.
+ * hasNext(gen) runs ahead to the next yield and keeps the value for
+ * next(). A pipeline of generators, each reading the one before, holds one
+ * value per stage however long the stream is.
+ *
+ * The body runs on a thread of its own, started by the first next(), as
+ * for Tasks: virtual where the JVM has them, small platform threads
+ * elsewhere. It runs on a fork of the interpreter, so it keeps its own
+ * place in the code while it waits. Control passes through two
+ * SynchronousQueues: next() hands the thread a resume and waits, and the
+ * thread runs to its next yield, hands the value back and waits in turn.
+ * Only one side runs at a time, so the body reads and writes what the
+ * caller can see without more locking than Tasks does. The Tasks lock
+ * moves with control: whichever side has it lets go before the handoff
+ * and the other side takes it, so a next() is also a point where tasks
+ * can interleave.
+ *
+ * A generator that is dropped before it finishes is closed once it is
+ * collected: the thread waiting at its yield is told to stop and unwinds.
+ * That only happens if nothing its body can reach holds the generator,
+ * since the waiting thread's stack holds the body's environment. One
+ * stored in a variable its own closure can see, such as a local of the
+ * function that made it, stays reachable until close(gen) stops it. So
+ * that such a leak fails the script rather than the JVM, at most
+ * MAX_OPEN generators may have threads at once; past that, starting
+ * another collects first and then fails if none were freed.
+ */
+final class LoxGenerator {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    // The generator whose body is running on this thread.
+    private static final ThreadLocal<Frame> CURRENT = new ThreadLocal<>();
+
+    // Sent instead of a resume to a generator that was dropped or closed.
+    private static final Object CLOSE = new Object();
+
+    // Bodies with threads that haven't ended, against the limit.
+    static final int MAX_OPEN = 4096;
+    private static final AtomicInteger OPEN = new AtomicInteger();
+
+    private final Frame frame;
+
+    // A value hasNext() ran ahead for, which next() returns.
+    private boolean buffered = false;
+    private Object ahead;
+
+    LoxGenerator(Interpreter interpreter, List<Stmt> body, Environment environment) {
+        this.frame = new Frame(interpreter.fork(), body, environment);
+        // The action holds the frame, never this. The body's environment
+        // may still hold this; see close().
+        CLEANER.register(this, frame::close);
+    }
+
+    Object next() {
+        try {
+            if (buffered) {
+                Object value = ahead;
+                buffered = false;
+                ahead = null;
+                return value;
+            }
+            return frame.resume();
+        } finally {
+            // Not closed while it runs.
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    boolean hasNext() {
+        try {
+            if (!buffered) {
+                ahead = frame.resume();
+                buffered = !frame.finished;
+            }
+            return buffered;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    // Stops the body where it is waiting. Later calls to next() return nil.
+    void close() {
+        if (frame.running) throw new RuntimeError(null, "Can't close a running generator.");
+        buffered = false;
+        ahead = null;
+        frame.close();
+        frame.finished = true;
+    }
+
+    // Called by the engines for a yield statement, on the generator's own thread.
+    static void yield(Token keyword, Object value) {
+        Frame frame = CURRENT.get();
+        if (frame == null) throw new RuntimeError(keyword, "Can only yield in a generator.");
+        frame.value = value;
+        Tasks tasks = frame.interpreter.tasks;
+        Object message = exchange(frame.toConsumer, tasks.release(), frame.toGenerator);
+        if (message == CLOSE) throw new Closed();
+        tasks.reacquire((Boolean) message);
+    }
+
+    /* The body's thread */
+    private static final class Frame implements Runnable {
+        final Interpreter interpreter;
+        private final List<Stmt> body;
+        private final Environment environment;
+
+        // Each handoff carries whether the side it wakes should take the
+        // Tasks lock.
+        final SynchronousQueue<Object> toGenerator = new SynchronousQueue<>();
+        final SynchronousQueue<Object> toConsumer = new SynchronousQueue<>();
+
+        // Written by whichever side has control, and read by the other
+        // after the handoff.
+        private volatile boolean started = false;
+        volatile boolean finished = false;
+        private boolean running = false;
+        Object value;
+        private Throwable failure;
+
+        Frame(Interpreter interpreter, List<Stmt> body, Environment environment) {
+            this.interpreter = interpreter;
+            this.body = body;
+            this.environment = environment;
+        }
+
+        // Runs the body to its next yield and returns the value, or nil
+        // once it has finished. An error in the body fails the caller.
+        Object resume() {
+            if (finished) return null;
+            if (running) throw new RuntimeError(null, "Generator is already running.");
+            running = true;
+            if (!started) {
+                start();
+                started = true;
+            }
+
+            Tasks tasks = interpreter.tasks;
+            tasks.reacquire((Boolean) exchange(toGenerator, tasks.release(), toConsumer));
+            running = false;
+
+            Object result = value;
+            value = null;
+            if (failure != null) {
+                Throwable thrown = failure;
+                failure = null;
+                if (thrown instanceof Error) throw (Error) thrown;
+                throw (RuntimeException) thrown;
+            }
+            return result;
+        }
+
+        private void start() {
+            if (OPEN.incrementAndGet() > MAX_OPEN) {
+                // Let the Cleaner close any that were dropped, and wait a
+                // little for their threads to end.
+                System.gc();
+                long deadline = System.nanoTime() + 1_000_000_000L;
+                while (OPEN.get() > MAX_OPEN && System.nanoTime() < deadline) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (OPEN.get() > MAX_OPEN) {
+                    OPEN.decrementAndGet();
+                    running = false;
+                    throw new RuntimeError(null, "Too many open generators (" + MAX_OPEN
+                            + "); close() the ones that are no longer needed.");
+                }
+            }
+            try {
+                Tasks.newThread(this).start();
+            } catch (RuntimeException | Error error) {
+                OPEN.decrementAndGet();
+                running = false;
+                throw error;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                body();
+            } finally {
+                OPEN.decrementAndGet();
+            }
+        }
+
+        private void body() {
+            CURRENT.set(this);
+            Object message = take(toGenerator);
+            if (message == CLOSE) return;
+            interpreter.tasks.reacquire((Boolean) message);
+
+            try {
+                interpreter.executeBlock(body, environment);
+            } catch (Return returned) {
+                // A bare return finishes the generator.
+            } catch (Closed closed) {
+                return;
+            } catch (RuntimeException | Error error) {
+                failure = error;
+            }
+            finished = true;
+            put(toConsumer, interpreter.tasks.release());
+        }
+
+        // Run by the Cleaner once the generator is unreachable, when nothing
+        // can be resuming it: the thread is waiting at a yield, or about
+        // to, or finishing.
+        void close() {
+            if (!started) return;
+            try {
+                while (!finished) {
+                    if (toGenerator.offer(CLOSE, 10, TimeUnit.MILLISECONDS)) return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Unwinds the body of a generator that was closed.
+    private static final class Closed extends RuntimeException {
+        Closed() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static Object exchange(SynchronousQueue<Object> out, Object message, SynchronousQueue<Object> in) {
+        put(out, message);
+        return take(in);
+    }
+
+    // Handoffs finish even if the thread is interrupted, which is noted again after.
+    private static void put(SynchronousQueue<Object> queue, Object message) {
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                queue.put(message);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static Object take(SynchronousQueue<Object> queue) {
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                Object message = queue.take();
+                if (interrupted) Thread.currentThread().interrupt();
+                return message;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /* Natives. The token is the call site, or null when called through LoxCallable. */
+    static LoxGenerator check(Token token, Object generator) {
+        if (generator instanceof LoxGenerator) return (LoxGenerator) generator;
+        throw new RuntimeError(token, "Expected a generator.");
+    }
+
+    @Override
+    public String toString() {
+        return frame.finished && !buffered ? "<generator done>" : "<generator>";
+    }
+}
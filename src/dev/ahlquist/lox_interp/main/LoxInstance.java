@@ -11,15 +11,33 @@ class LoxInstance {
         this.klass = klass;
     }
 
+    // An instance whose fields live in a map someone else owns.
+    LoxInstance(LoxClass klass, Map<String, Object> fields) {
+        this.klass = klass;
+        this.fields = fields;
+    }
+
+    LoxClass klass() {
+        return klass;
+    }
+
+    Map<String, Object> fields() {
+        return fields;
+    }
+
     @Override
     public String toString() {
         return klass.name + " instance";
     }
 
     public Object get(Token name) {
+        if (Metrics.ENABLED) Metrics.PROPERTY_LOOKUPS.increment();
+
         // Fields shadow methods.
-        if(fields.containsKey(name.lexeme))
+        if(fields.containsKey(name.lexeme)) {
+            if (Metrics.ENABLED) Metrics.FIELD_HITS.increment();
             return fields.get(name.lexeme);
+        }
 
         LoxFunction method = klass.findMethod(name.lexeme);
         if(method != null) return method.bind(this);
@@ -0,0 +1,200 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.Arrays;
+
+/*
+ * A hash map for Lox values with open addressing and linear probing.
+ *
+ * Entries are stored densely in insertion order, and the probe table holds
+ * each entry's hash next to its entry number, so a probe only touches the
+ * table until the hashes match. Iteration is in insertion order and an entry
+ * costs two references plus a couple of table slots. Removed entries keep
+ * their table slot, with the key replaced by REMOVED, until the next resize
+ * compacts them away.
+ *
+ * Keys compare like Lox '==': numbers by their raw double bits, strings by
+ * value, everything else by identity.
+ */
+class LoxMap {
+
+    private static final Object REMOVED = new Object();
+    private static final int EMPTY = 0;
+
+    private Object[] keys;
+    private Object[] values;
+    private long[] table; // hash << 32 | entry number + 1, or EMPTY
+    private int entries = 0; // used entry slots, including removed ones
+    private int size = 0;
+
+    LoxMap() {
+        keys = new Object[8];
+        values = new Object[8];
+        table = new long[16];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Bytes used by the entry arrays and probe table.
+    long footprint() {
+        return 2 * (16 + 4L * keys.length) + 16 + 8L * table.length;
+    }
+
+    static int hash(Object key) {
+        int h;
+        if (key == null) {
+            h = 0;
+        } else if (key instanceof Double) {
+            long bits = Double.doubleToLongBits((double) key);
+            h = (int) (bits ^ (bits >>> 32));
+        } else if (key instanceof String || key instanceof Boolean) {
+            h = key.hashCode();
+        } else {
+            h = System.identityHashCode(key);
+        }
+        // Spread the bits so sequential numbers don't cluster.
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean same(Object a, Object b) {
+        if (a == b) return true;
+        if (a instanceof Double && b instanceof Double) {
+            return Double.doubleToLongBits((double) a) == Double.doubleToLongBits((double) b);
+        }
+        return a instanceof String && a.equals(b);
+    }
+
+    // Returns the entry number for key, or -1.
+    private int find(Object key, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long packed = table[slot];
+            if (packed == EMPTY) return -1;
+            if ((int) (packed >>> 32) != hash) continue;
+            int entry = (int) packed - 1;
+            if (same(keys[entry], key)) return entry;
+        }
+    }
+
+    // Ropes are flattened so a key matches the String with the same contents.
+    Object get(Object key) {
+        key = LoxRope.flat(key);
+        int entry = find(key, hash(key));
+        return entry < 0 ? null : values[entry];
+    }
+
+    boolean has(Object key) {
+        key = LoxRope.flat(key);
+        return find(key, hash(key)) >= 0;
+    }
+
+    void set(Object key, Object value) {
+        key = LoxRope.flat(key);
+        int hash = hash(key);
+        int entry = find(key, hash);
+        if (entry >= 0) {
+            values[entry] = value;
+            return;
+        }
+
+        if (entries == keys.length) grow();
+        keys[entries] = key;
+        values[entries] = value;
+        entries++;
+        size++;
+        insert(hash, entries);
+
+        // Keep the table at most two-thirds full.
+        if (entries * 3 >= table.length * 2) rehash(table.length * 2);
+    }
+
+    boolean remove(Object key) {
+        key = LoxRope.flat(key);
+        int entry = find(key, hash(key));
+        if (entry < 0) return false;
+
+        keys[entry] = REMOVED;
+        values[entry] = null;
+        size--;
+        return true;
+    }
+
+    private void insert(int hash, int entryNumber) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != EMPTY) slot = (slot + 1) & mask;
+        table[slot] = (long) hash << 32 | entryNumber;
+    }
+
+    private void grow() {
+        // Reclaim removed entries first if there are enough of them.
+        if (size < entries / 2) {
+            rehash(table.length);
+            if (entries < keys.length) return;
+        }
+
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    // Compacts out removed entries and rebuilds the probe table.
+    private void rehash(int tableSize) {
+        int live = 0;
+        for (int i = 0; i < entries; i++) {
+            if (keys[i] == REMOVED) continue;
+            keys[live] = keys[i];
+            values[live] = values[i];
+            live++;
+        }
+        Arrays.fill(keys, live, entries, null);
+        Arrays.fill(values, live, entries, null);
+        entries = live;
+
+        table = new long[tableSize];
+        for (int i = 0; i < entries; i++)
+            insert(hash(keys[i]), i + 1);
+    }
+
+    // Keys in insertion order.
+    LoxArray keys() {
+        Object[] result = new Object[size];
+        int n = 0;
+        for (int i = 0; i < entries; i++) {
+            if (keys[i] != REMOVED) result[n++] = keys[i];
+        }
+        return LoxArray.of(result);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        boolean first = true;
+        for (int i = 0; i < entries; i++) {
+            if (keys[i] == REMOVED) continue;
+            if (!first) builder.append(", ");
+            first = false;
+            builder.append(Interpreter.stringify(keys[i]))
+                    .append(": ")
+                    .append(Interpreter.stringify(values[i]));
+        }
+        return builder.append("}").toString();
+    }
+
+    /* Natives. The token is the call site, or null when called through LoxCallable. */
+    static LoxMap check(Token token, Object map) {
+        if (map instanceof LoxMap) return (LoxMap) map;
+        throw new RuntimeError(token, "Expected a map.");
+    }
+
+    static Object get(Token token, Object map, Object key) {
+        return check(token, map).get(key);
+    }
+
+    static Object set(Token token, Object map, Object key, Object value) {
+        check(token, map).set(key, value);
+        return value;
+    }
+}
@@ -0,0 +1,28 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.HashMap;
+
+/*
+ * What an import binds: a module's top-level names, as the fields of an
+ * instance. The fields are the module's own environment, so 'mod.name'
+ * reads and writes the variable the module's functions see.
+ */
+class LoxModule extends LoxInstance {
+
+    // Modules have no methods; this gives them a class like any instance.
+    private static final LoxClass MODULE = new LoxClass("module", null, new HashMap<>());
+
+    final String name;
+    final Environment environment;
+
+    LoxModule(String name, Environment environment) {
+        super(MODULE, environment.values());
+        this.name = name;
+        this.environment = environment;
+    }
+
+    @Override
+    public String toString() {
+        return "<module " + name + ">";
+    }
+}
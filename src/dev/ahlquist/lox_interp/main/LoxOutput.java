@@ -0,0 +1,144 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+
+/*
+ * Where 'print' writes. Output is encoded straight into a byte buffer that
+ * is handed to the underlying stream in one write per flush, instead of
+ * going through System.out's locking and autoflush on every line. Numbers
+ * with integer values, by far the most common thing printed, are formatted
+ * digit by digit without allocating.
+ *
+ * Not thread-safe: only one interpreter thread prints at a time.
+ */
+class LoxOutput {
+
+    enum Flush {
+        LINE, // after every print, for interactive sessions
+        SIZE, // whenever the buffer fills up
+        EXIT  // as rarely as possible: the buffer grows up to MAX_BUFFER first
+    }
+
+    static final int DEFAULT_BUFFER = 8192;
+    private static final int MAX_BUFFER = 16 << 20;
+
+    // Java switches to scientific notation from here on, which stringify keeps.
+    private static final double PLAIN_LIMIT = 1e7;
+
+    private static final byte[] NIL = { 'n', 'i', 'l' };
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+
+    private final OutputStream out;
+    private final Charset charset = Charset.defaultCharset();
+    private byte[] buffer;
+    private int count = 0;
+    Flush flush = Flush.SIZE;
+
+    LoxOutput(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[Math.max(bufferSize, 64)];
+    }
+
+    // Writes the value as stringify would, followed by a newline.
+    void println(Object value) {
+        if (value instanceof Double) {
+            writeNumber((double) value);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value == null) {
+            writeBytes(NIL);
+        } else if (value instanceof Boolean) {
+            writeBytes((boolean) value ? TRUE : FALSE);
+        } else {
+            writeString(Interpreter.stringify(value));
+        }
+
+        ensure(1);
+        buffer[count++] = '\n';
+        if (flush == Flush.LINE) flush();
+    }
+
+    private void writeNumber(double value) {
+        if (value != Math.rint(value) || Math.abs(value) >= PLAIN_LIMIT) {
+            writeString(Interpreter.stringify(value));
+            return;
+        }
+
+        // At most seven digits and a sign.
+        ensure(8);
+        long digits = (long) value;
+        if (digits < 0 || (digits == 0 && Double.doubleToRawLongBits(value) < 0)) {
+            buffer[count++] = '-';
+            digits = -digits;
+        }
+        int length = 1;
+        for (long rest = digits / 10; rest != 0; rest /= 10) length++;
+        for (int i = count + length - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + digits % 10);
+            digits /= 10;
+        }
+        count += length;
+    }
+
+    private void writeString(String text) {
+        int length = text.length();
+        ensure(Math.min(length, buffer.length));
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // Leave anything beyond ASCII to the charset.
+                writeBytes(text.substring(i).getBytes(charset));
+                return;
+            }
+            if (count == buffer.length) ensure(1);
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    private void writeBytes(byte[] bytes) {
+        if (bytes.length > buffer.length) {
+            flush();
+            write(bytes, bytes.length);
+            return;
+        }
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    // Makes room for n more bytes, n being at most the buffer size.
+    private void ensure(int n) {
+        if (count + n <= buffer.length) return;
+        if (flush == Flush.EXIT && buffer.length < MAX_BUFFER) {
+            byte[] larger = new byte[Math.min(Math.max(buffer.length * 2, count + n), MAX_BUFFER)];
+            System.arraycopy(buffer, 0, larger, 0, count);
+            buffer = larger;
+            if (count + n <= buffer.length) return;
+        }
+        flush();
+    }
+
+    void flush() {
+        if (count > 0) {
+            write(buffer, count);
+            count = 0;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(byte[] bytes, int length) {
+        try {
+            out.write(bytes, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayDeque;
+
+/*
+ * A lazily concatenated Lox string. '+' on long strings builds a tree of
+ * ropes instead of copying, and the characters are only assembled when the
+ * value is printed, compared or used as a map key. Lox code can't tell a
+ * rope from a String: anything that needs the contents calls flatten().
+ *
+ * Short strings are still concatenated eagerly, and a short piece appended
+ * to a rope whose right side is also short is merged into that leaf, so
+ * s = s + piece in a loop builds one node per LEAF_SIZE characters rather
+ * than one per piece.
+ */
+class LoxRope implements CharSequence {
+
+    // Ropes can be turned off to compare against plain String concatenation.
+    static boolean enabled = true;
+
+    private static final int LEAF_SIZE = 128;
+
+    // Volatile so a rope can be flattened by one thread while another reads
+    // it: flat is always set before the pieces are dropped.
+    private volatile Object left;  // String or LoxRope, null once flattened
+    private volatile Object right;
+    private final int length;
+    private volatile String flat;
+
+    private LoxRope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof LoxRope;
+    }
+
+    // The contents of a String or rope; other values are returned unchanged.
+    static Object flat(Object value) {
+        return value instanceof LoxRope ? ((LoxRope) value).flatten() : value;
+    }
+
+    static Object concat(Object left, Object right) {
+        int length = length(left) + length(right);
+        if (!enabled || length <= LEAF_SIZE) {
+            return flat(left).toString() + flat(right).toString();
+        }
+
+        if (left instanceof LoxRope && right instanceof String) {
+            LoxRope rope = (LoxRope) left;
+            Object ropeLeft = rope.left;
+            Object ropeRight = rope.right;
+            if (ropeLeft != null && ropeRight instanceof String
+                    && ((String) ropeRight).length() + ((String) right).length() <= LEAF_SIZE) {
+                return new LoxRope(ropeLeft, (String) ropeRight + right, length);
+            }
+        }
+        return new LoxRope(left, right, length);
+    }
+
+    private static int length(Object value) {
+        return ((CharSequence) value).length();
+    }
+
+    String flatten() {
+        String result = flat;
+        if (result != null) return result;
+
+        // Fill from the right, with an explicit stack since ropes built in a
+        // loop are as deep as the loop is long.
+        char[] chars = new char[length];
+        int end = length;
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Object node = stack.pop();
+            if (node instanceof String) {
+                String text = (String) node;
+                end -= text.length();
+                text.getChars(0, text.length(), chars, end);
+                continue;
+            }
+
+            LoxRope rope = (LoxRope) node;
+            Object ropeLeft = rope.left;
+            Object ropeRight = rope.right;
+            if (ropeLeft == null || ropeRight == null) {
+                stack.push(rope.flat); // flattened since we looked
+            } else {
+                stack.push(ropeLeft);
+                stack.push(ropeRight);
+            }
+        }
+
+        result = new String(chars);
+        flat = result;
+        left = right = null; // let the pieces go
+        return result;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return flatten().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return flatten().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return flatten();
+    }
+}
@@ -0,0 +1,30 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.concurrent.locks.Condition;
+
+/*
+ * What spawn() returns: a task's result, or the error it failed with, once
+ * it is done. Only read and written under the Tasks lock.
+ */
+class LoxTask {
+
+    final Condition finished;
+    boolean done = false;
+    Object result;
+    Throwable error;
+    int joiners = 0; // waiting in join() now
+
+    LoxTask(Condition finished) {
+        this.finished = finished;
+    }
+
+    static LoxTask check(Token token, Object task) {
+        if (task instanceof LoxTask) return (LoxTask) task;
+        throw new RuntimeError(token, "Expected a task.");
+    }
+
+    @Override
+    public String toString() {
+        return done ? "<task done>" : "<task>";
+    }
+}
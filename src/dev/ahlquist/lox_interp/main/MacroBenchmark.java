@@ -0,0 +1,260 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Runs every .lox file in a directory end to end through Lox.run and
+ * reports per-program timings as JSON, optionally against a baseline
+ * saved from an earlier run (an earlier report written with --out).
+ *
+ * Allocation is what the benchmarking thread allocated per iteration;
+ * work done by parallelMap and parallelReduce workers isn't counted. Peak
+ * RSS is the process high-water mark after each program, read from
+ * /proc, so it only ever grows and is -1 where /proc isn't available.
+ *
+ * Exits with 1 when any program's median time or allocation is worse than
+ * the baseline by more than the threshold, so it can gate a build.
+ */
+public class MacroBenchmark {
+
+    private String engine = "tree";
+    private int warmup = 3;
+    private int iterations = 10;
+    private boolean reuse = false;
+    private double threshold = 10;
+    private String out = null;
+    private String baseline = null;
+
+    private static class Result {
+        final String name;
+        final double medianMs;
+        final double p99Ms;
+        final double minMs;
+        final long allocatedBytes;
+        final long peakRssKb;
+
+        Result(String name, long[] times, long[] allocated, long peakRssKb) {
+            Arrays.sort(times);
+            Arrays.sort(allocated);
+            this.name = name;
+            this.medianMs = times[times.length / 2] / 1e6;
+            this.p99Ms = times[rank(times.length, 0.99)] / 1e6;
+            this.minMs = times[0] / 1e6;
+            this.allocatedBytes = allocated[allocated.length / 2];
+            this.peakRssKb = peakRssKb;
+        }
+
+        // Nearest-rank index of the q-th quantile.
+        private static int rank(int count, double q) {
+            return Math.max(0, (int) Math.ceil(q * count) - 1);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        MacroBenchmark benchmark = new MacroBenchmark();
+        String directory = null;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                benchmark.engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--warmup=")) {
+                benchmark.warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                benchmark.iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.equals("--reuse")) {
+                benchmark.reuse = true;
+            } else if (arg.startsWith("--threshold=")) {
+                benchmark.threshold = Double.parseDouble(arg.substring("--threshold=".length()));
+            } else if (arg.startsWith("--out=")) {
+                benchmark.out = arg.substring("--out=".length());
+            } else if (arg.startsWith("--baseline=")) {
+                benchmark.baseline = arg.substring("--baseline=".length());
+            } else if (directory == null && !arg.startsWith("--")) {
+                directory = arg;
+            } else {
+                directory = null;
+                break;
+            }
+        }
+        if (directory == null || benchmark.iterations < 1 || Lox.newInterpreter(benchmark.engine) == null) {
+            System.err.println("Usage: macro_benchmark <directory> [--engine=tree|closure]"
+                    + " [--warmup=N] [--iterations=N] [--reuse] [--out=FILE]"
+                    + " [--baseline=FILE] [--threshold=PERCENT]");
+            System.exit(64);
+        }
+
+        List<Result> results = benchmark.runAll(Paths.get(directory));
+        String json = benchmark.toJson(results);
+        if (benchmark.out != null) {
+            Files.write(Paths.get(benchmark.out), (json + "\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.println(json);
+        }
+
+        if (benchmark.baseline != null && benchmark.compare(results)) System.exit(1);
+    }
+
+    private List<Result> runAll(Path directory) throws IOException {
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(directory)) {
+            scripts = files.filter(file -> file.toString().endsWith(".lox"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        System.err.printf("%-16s %10s %10s %10s %14s %10s%n",
+                "benchmark", "median ms", "p99 ms", "min ms", "alloc bytes", "rss kB");
+        List<Result> results = new ArrayList<>();
+        for (Path script : scripts) {
+            String name = script.getFileName().toString().replaceFirst("\\.lox$", "");
+            String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+            Result result = run(name, source);
+            results.add(result);
+            System.err.printf("%-16s %10.3f %10.3f %10.3f %14d %10d%n", name,
+                    result.medianMs, result.p99Ms, result.minMs, result.allocatedBytes, result.peakRssKb);
+        }
+        return results;
+    }
+
+    private Result run(String name, String source) {
+        long[] times = new long[iterations];
+        long[] allocated = new long[iterations];
+        Interpreter interpreter = reuse ? newInterpreter() : null;
+        for (int i = 0; i < warmup; i++)
+            runOnce(reuse ? interpreter : newInterpreter(), source);
+        for (int i = 0; i < iterations; i++) {
+            Interpreter target = reuse ? interpreter : newInterpreter();
+            long allocatedBefore = allocatedBytes();
+            times[i] = runOnce(target, source);
+            allocated[i] = allocatedBytes() - allocatedBefore;
+        }
+
+        if (Lox.hadError || Lox.hadRuntimeError) {
+            System.err.println("Benchmark " + name + " failed under the " + engine + " engine.");
+            System.exit(70);
+        }
+        return new Result(name, times, allocated, peakRssKb());
+    }
+
+    private Interpreter newInterpreter() {
+        Interpreter interpreter = Lox.newInterpreter(engine);
+        interpreter.out = new LoxOutput(OutputStream.nullOutputStream(), LoxOutput.DEFAULT_BUFFER);
+        return interpreter;
+    }
+
+    private static long runOnce(Interpreter interpreter, String source) {
+        // Errors are reported on stderr; anything else printed is dropped.
+        PrintStream saved = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long start = System.nanoTime();
+            Lox.run(source, interpreter);
+            return System.nanoTime() - start;
+        } finally {
+            System.setOut(saved);
+        }
+    }
+
+    /* Measurements */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    private static long peakRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux; fall through.
+        }
+        return -1;
+    }
+
+    /* Reporting */
+    private String toJson(List<Result> results) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"engine\": ").append(Json.quote(engine)).append(",\n");
+        json.append("  \"warmup\": ").append(warmup).append(",\n");
+        json.append("  \"iterations\": ").append(iterations).append(",\n");
+        json.append("  \"reuse\": ").append(reuse).append(",\n");
+        json.append("  \"benchmarks\": {\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(String.format(Locale.ROOT, "    %s: {\"medianMs\": %.3f, \"p99Ms\": %.3f,"
+                            + " \"minMs\": %.3f, \"allocatedBytes\": %d, \"peakRssKb\": %d}",
+                    Json.quote(result.name), result.medianMs, result.p99Ms, result.minMs,
+                    result.allocatedBytes, result.peakRssKb));
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        return json.append("  }\n}").toString();
+    }
+
+    // Prints a comparison against the baseline and returns whether
+    // anything regressed beyond the threshold.
+    @SuppressWarnings("unchecked")
+    private boolean compare(List<Result> results) throws IOException {
+        String text = new String(Files.readAllBytes(Paths.get(baseline)), StandardCharsets.UTF_8);
+        Map<String, Object> saved;
+        try {
+            Object root = Json.parse(text);
+            saved = (Map<String, Object>) ((Map<String, Object>) root).get("benchmarks");
+        } catch (IllegalArgumentException | ClassCastException e) {
+            System.err.println("Could not read baseline " + baseline + ": " + e.getMessage());
+            System.exit(65);
+            return false;
+        }
+        if (saved == null) saved = Map.of();
+
+        boolean regressed = false;
+        System.err.printf("%n%-16s %12s %12s %9s %9s%n",
+                "benchmark", "base ms", "median ms", "time", "alloc");
+        for (Result result : results) {
+            Map<String, Object> before = (Map<String, Object>) saved.get(result.name);
+            if (before == null) {
+                System.err.printf("%-16s %12s %12.3f %9s %9s  new%n", result.name, "-", result.medianMs, "-", "-");
+                continue;
+            }
+            double baseMs = number(before, "medianMs");
+            double time = change(baseMs, result.medianMs);
+            double alloc = change(number(before, "allocatedBytes"), result.allocatedBytes);
+            boolean worse = time > threshold || alloc > threshold;
+            regressed |= worse;
+            System.err.printf(Locale.ROOT, "%-16s %12.3f %12.3f %+8.1f%% %+8.1f%%  %s%n", result.name,
+                    baseMs, result.medianMs, time, alloc, worse ? "REGRESSED" : "ok");
+        }
+        if (regressed) {
+            System.err.printf(Locale.ROOT, "%nRegression beyond %.1f%% against %s.%n", threshold, baseline);
+        }
+        return regressed;
+    }
+
+    private static double number(Map<String, Object> object, String key) {
+        Object value = object.get(key);
+        return value instanceof Double ? (Double) value : 0;
+    }
+
+    // Percentage change from before to after; no change when there's nothing to compare.
+    private static double change(double before, double after) {
+        return before <= 0 ? 0 : (after - before) / before * 100;
+    }
+}
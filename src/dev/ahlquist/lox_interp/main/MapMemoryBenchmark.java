@@ -0,0 +1,95 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Compares LoxMap with the java.util.HashMap that LoxInstance fields use:
+ * retained bytes per entry and insertion/lookup time, for number and
+ * string keys.
+ */
+public class MapMemoryBenchmark {
+
+    private interface Table {
+        void put(Object key, Object value);
+        Object get(Object key);
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        Object[] numbers = new Object[n];
+        Object[] strings = new Object[n];
+        for (int i = 0; i < n; i++) {
+            numbers[i] = (double) i;
+            strings[i] = "key" + i;
+        }
+
+        // Look keys up in a different order than they were inserted, so
+        // neither table is flattered by sequential access.
+        int[] order = new int[n];
+        Random random = new Random(42);
+        for (int i = 0; i < n; i++) {
+            int j = random.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+        }
+
+        System.out.printf("%d entries%n", n);
+        System.out.printf("%-8s %-8s %14s %12s %12s%n", "keys", "table", "bytes/entry", "insert ms", "lookup ms");
+        // The first round only warms up the JIT.
+        for (int round = 0; round < 2; round++) {
+            measure("numbers", numbers, order, round == 1);
+            measure("strings", strings, order, round == 1);
+        }
+    }
+
+    private static void measure(String label, Object[] keys, int[] order, boolean print) {
+        int n = keys.length;
+        for (String kind : new String[] { "HashMap", "LoxMap" }) {
+            long before = usedMemory();
+            Table table = newTable(kind);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) table.put(keys[i], keys[i]);
+            long insert = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i : order) {
+                if (table.get(keys[i]) != keys[i]) throw new AssertionError("lookup failed");
+            }
+            long lookup = System.nanoTime() - start;
+
+            // Keys and values are shared, so this is the table's own overhead.
+            long bytes = usedMemory() - before;
+            if (print) System.out.printf("%-8s %-8s %14.1f %12.1f %12.1f%n", label, kind,
+                    (double) bytes / n, insert / 1e6, lookup / 1e6);
+
+            // Keep the table reachable until after it has been measured.
+            if (table.get(keys[0]) == null) System.out.println();
+        }
+    }
+
+    private static Table newTable(String kind) {
+        if (kind.equals("LoxMap")) {
+            LoxMap map = new LoxMap();
+            return new Table() {
+                public void put(Object key, Object value) { map.set(key, value); }
+                public Object get(Object key) { return map.get(key); }
+            };
+        }
+
+        Map<Object, Object> map = new HashMap<>();
+        return new Table() {
+            public void put(Object key, Object value) { map.put(key, value); }
+            public Object get(Object key) { return map.get(key); }
+        };
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,127 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/*
+ * Caches results of pure functions called with primitive arguments (numbers,
+ * strings, booleans and nil). Entries are evicted least-recently-used first
+ * once either the entry limit or the estimated memory limit is exceeded.
+ */
+class MemoCache {
+
+    // Stands in for a cached nil, since the map can't tell null from absent.
+    private static final Object NIL = new Object();
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Object> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    MemoCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    Object call(Stmt.Function function, List<Object> args, Supplier<Object> body) {
+        Object[] values = args.toArray();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = LoxRope.flat(values[i]);
+            if (!isPrimitive(values[i])) return body.get();
+        }
+
+        Key key = new Key(function, values);
+        synchronized (this) {
+            Object cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached == NIL ? null : cached;
+            }
+            misses++;
+        }
+
+        // Run the body outside the lock; recursive calls come back through here.
+        Object result = body.get();
+        if (isPrimitive(result) || result instanceof LoxRope || result instanceof LoxCallable) {
+            store(key, result);
+        }
+        return result;
+    }
+
+    private synchronized void store(Key key, Object result) {
+        Object previous = entries.put(key, result == null ? NIL : result);
+        if (previous == null) bytes += key.size + sizeOf(result);
+
+        Iterator<Map.Entry<Key, Object>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<Key, Object> entry = eldest.next();
+            bytes -= entry.getKey().size + sizeOf(entry.getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized void report(PrintStream out) {
+        long calls = hits + misses;
+        out.printf("memo: %d hits, %d misses (%.1f%% hit rate), %d evictions%n",
+                hits, misses, calls == 0 ? 0.0 : 100.0 * hits / calls, evictions);
+        out.printf("memo: %d entries, ~%d bytes (limits %d entries, %d bytes)%n",
+                entries.size(), bytes, maxEntries, maxBytes);
+    }
+
+    private static boolean isPrimitive(Object value) {
+        return value == null || value instanceof Double
+                || value instanceof String || value instanceof Boolean;
+    }
+
+    // Rough retained size on a 64-bit JVM with compressed oops.
+    private static long sizeOf(Object value) {
+        if (LoxRope.isString(value)) return 40 + 2L * ((CharSequence) value).length();
+        if (value instanceof Double) return 16;
+        return 0; // nil, booleans and functions are shared
+    }
+
+    private static final class Key {
+        final Stmt.Function function;
+        final Object[] args;
+        final int hash;
+        final long size;
+
+        Key(Stmt.Function function, Object[] args) {
+            this.function = function;
+            this.args = args;
+            this.hash = 31 * System.identityHashCode(function) + Arrays.hashCode(args);
+
+            // Map entry, key object and argument array, plus the arguments.
+            long size = 48 + 32 + 16 + 4L * args.length;
+            for (Object arg : args) size += sizeOf(arg);
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return function == other.function && Arrays.equals(args, other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
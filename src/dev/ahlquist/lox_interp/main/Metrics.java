@@ -0,0 +1,180 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Counters and timings from inside the interpreter, for capacity planning.
+ *
+ * Everything is off unless the lox.metrics system property is set (by
+ * --metrics) before this class loads. ENABLED is a static final, so the
+ * 'if (Metrics.ENABLED)' guards around the hot-path counters are folded
+ * away by the JIT when metrics are off. Counters are LongAdders, so
+ * parallel workers don't contend on them.
+ */
+final class Metrics {
+
+    static final boolean ENABLED = Boolean.getBoolean("lox.metrics");
+
+    static final LongAdder ENVIRONMENTS = new LongAdder();
+    static final LongAdder CALLS = new LongAdder();
+    static final LongAdder INSTANCES = new LongAdder();
+    static final LongAdder STATEMENTS = new LongAdder();
+    static final LongAdder PROPERTY_LOOKUPS = new LongAdder();
+    static final LongAdder FIELD_HITS = new LongAdder();
+    static final LongAdder METHOD_CACHE_HITS = new LongAdder();
+    static final LongAdder METHOD_CACHE_MISSES = new LongAdder();
+
+    // Stages of Lox.run, in order.
+    static final Histogram SCAN = new Histogram("scan");
+    static final Histogram PARSE = new Histogram("parse");
+    static final Histogram RESOLVE = new Histogram("resolve");
+    static final Histogram MODULES = new Histogram("modules");
+    static final Histogram ANALYZE = new Histogram("analyze");
+    static final Histogram COMPILE = new Histogram("compile");
+    static final Histogram INTERPRET = new Histogram("interpret");
+    private static final Histogram[] STAGES = { SCAN, PARSE, RESOLVE, MODULES, ANALYZE, COMPILE, INTERPRET };
+
+    private Metrics() {}
+
+    // Start time for stage(), or 0 when metrics are off.
+    static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    // Records the time since started and returns the current time, so
+    // consecutive stages can chain.
+    static long stage(Histogram histogram, long started) {
+        if (!ENABLED) return 0;
+        long now = System.nanoTime();
+        histogram.record(now - started);
+        return now;
+    }
+
+    // A histogram of durations in nanoseconds, bucketed by powers of two.
+    static final class Histogram {
+        final String name;
+        private final LongAdder[] buckets = new LongAdder[65];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram(String name) {
+            this.name = name;
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long total() {
+            return sum.sum();
+        }
+
+        // An upper bound on the q-th quantile, accurate to a factor of two.
+        long quantile(double q) {
+            long target = (long) Math.ceil(q * count.sum());
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen > 0 && seen >= target) {
+                    long upper = i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upper, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        String toJson() {
+            long n = count();
+            return String.format(Locale.ROOT, "{\"count\": %d, \"totalMs\": %.3f, \"meanUs\": %.3f,"
+                            + " \"p50Us\": %.3f, \"p99Us\": %.3f, \"maxUs\": %.3f}",
+                    n, total() / 1e6, n == 0 ? 0.0 : total() / 1e3 / n,
+                    quantile(0.5) / 1e3, quantile(0.99) / 1e3, max.get() / 1e3);
+        }
+    }
+
+    /* Reporting */
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Bean(), new ObjectName("dev.ahlquist.lox:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    static String toJson() {
+        Map<String, LongAdder> counters = counters();
+        StringBuilder json = new StringBuilder("{\n  \"counters\": {\n");
+        int i = 0;
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            json.append("    \"").append(counter.getKey()).append("\": ").append(counter.getValue().sum());
+            json.append(++i < counters.size() ? ",\n" : "\n");
+        }
+        json.append("  },\n  \"methodCacheHitRate\": ")
+                .append(String.format(Locale.ROOT, "%.4f", methodCacheHitRate()))
+                .append(",\n  \"stages\": {\n");
+        for (int s = 0; s < STAGES.length; s++) {
+            json.append("    \"").append(STAGES[s].name).append("\": ").append(STAGES[s].toJson());
+            json.append(s + 1 < STAGES.length ? ",\n" : "\n");
+        }
+        return json.append("  }\n}").toString();
+    }
+
+    private static Map<String, LongAdder> counters() {
+        Map<String, LongAdder> counters = new LinkedHashMap<>();
+        counters.put("environments", ENVIRONMENTS);
+        counters.put("calls", CALLS);
+        counters.put("instances", INSTANCES);
+        counters.put("statements", STATEMENTS);
+        counters.put("propertyLookups", PROPERTY_LOOKUPS);
+        counters.put("fieldHits", FIELD_HITS);
+        counters.put("methodCacheHits", METHOD_CACHE_HITS);
+        counters.put("methodCacheMisses", METHOD_CACHE_MISSES);
+        return counters;
+    }
+
+    private static double methodCacheHitRate() {
+        long hits = METHOD_CACHE_HITS.sum();
+        long lookups = hits + METHOD_CACHE_MISSES.sum();
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    private static class Bean implements MetricsMXBean {
+        public long getEnvironments() { return ENVIRONMENTS.sum(); }
+        public long getCalls() { return CALLS.sum(); }
+        public long getInstances() { return INSTANCES.sum(); }
+        public long getStatements() { return STATEMENTS.sum(); }
+        public long getPropertyLookups() { return PROPERTY_LOOKUPS.sum(); }
+        public long getFieldHits() { return FIELD_HITS.sum(); }
+        public long getMethodCacheHits() { return METHOD_CACHE_HITS.sum(); }
+        public long getMethodCacheMisses() { return METHOD_CACHE_MISSES.sum(); }
+        public double getMethodCacheHitRate() { return methodCacheHitRate(); }
+
+        public Map<String, Double> getStageMillis() {
+            Map<String, Double> millis = new LinkedHashMap<>();
+            for (Histogram stage : STAGES)
+                millis.put(stage.name, stage.total() / 1e6);
+            return millis;
+        }
+
+        public String toJson() { return Metrics.toJson(); }
+    }
+}
@@ -0,0 +1,21 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.Map;
+
+// The interpreter's counters as seen over JMX, under dev.ahlquist.lox:type=Metrics.
+public interface MetricsMXBean {
+    long getEnvironments();
+    long getCalls();
+    long getInstances();
+    long getStatements();
+    long getPropertyLookups();
+    long getFieldHits();
+    long getMethodCacheHits();
+    long getMethodCacheMisses();
+    double getMethodCacheHitRate();
+
+    // Total milliseconds spent in each stage of Lox.run.
+    Map<String, Double> getStageMillis();
+
+    String toJson();
+}
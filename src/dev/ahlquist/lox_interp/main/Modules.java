@@ -0,0 +1,214 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * The modules a program imports, each loaded once per interpreter.
+ *
+ * 'import "path" as name;' finds path.lox next to the importing file. A
+ * module's top level is a scope of its own: what it declares is visible
+ * to importers only through the module object the import binds. Names it
+ * uses but doesn't declare are globals, which is how it finds the natives.
+ *
+ * The front end for a program's new modules runs in parallel: each module
+ * is read, scanned, parsed and resolved by its own task on the
+ * interpreter's pool, which forks tasks for the modules it imports in
+ * turn. Modules are independent until they run, so nothing is shared but
+ * the cache of modules seen. Once all are in, the import graph is checked
+ * for cycles and put in load order, dependencies first, for the analyses
+ * and then for running: a module runs the first time one of its
+ * importers reaches its import, after the modules it imports.
+ */
+class Modules {
+
+    static final class Module {
+        final Path path;
+        final String name;
+        final Token importedAt;
+        List<Stmt> statements;
+        String sourceHash; // for RuntimeProfile
+        final List<Stmt.Import> imports = new ArrayList<>();
+
+        // Depths found by this module's resolver, for the interpreter.
+        final Map<Expr, Integer> locals = new HashMap<>();
+
+        // Set once analyzed, and once its top level has run.
+        boolean loaded;
+        LoxModule namespace;
+
+        Module(Path path, Token importedAt) {
+            this.path = path;
+            this.name = baseName(path.getFileName().toString());
+            this.importedAt = importedAt;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final Map<Path, Module> modules = new ConcurrentHashMap<>();
+    private final Map<Stmt.Import, Module> imported = new ConcurrentHashMap<>();
+
+    Modules(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // The name a module gets by default: its file name, less '.lox'.
+    static String baseName(String path) {
+        String file = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+        return file.endsWith(".lox") ? file.substring(0, file.length() - 4) : file;
+    }
+
+    static boolean isIdentifier(String name) {
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))) return false;
+        for (char c : name.toCharArray())
+            if (!(c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')))
+                return false;
+        return Scanner.keyword(name) == null;
+    }
+
+    // Loads the modules statements import, relative to directory, and
+    // the modules those import. Returns those new to this interpreter in
+    // load order, or null after reporting an error.
+    List<Module> load(List<Stmt> statements, Path directory) {
+        List<Module> added = new ArrayList<>();
+        List<FrontEnd> tasks = new ArrayList<>();
+        for (Stmt.Import stmt : imports(statements))
+            claim(directory, stmt, tasks, added);
+        if (tasks.isEmpty()) return added;
+
+        interpreter.parallelPool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+        List<Module> order = new ArrayList<>();
+        if (!Lox.hadError) {
+            Set<Module> done = new HashSet<>();
+            for (Stmt.Import stmt : imports(statements))
+                order(imported.get(stmt), new ArrayList<>(), done, order);
+        }
+
+        if (Lox.hadError) {
+            // Forget what failed, so that a fixed file loads next time.
+            synchronized (added) {
+                for (Module module : added) modules.remove(module.path);
+            }
+            return null;
+        }
+        return order;
+    }
+
+    // The module an import statement found, which runs on interpreter
+    // the first time one of its imports does. Returns its namespace.
+    synchronized LoxModule run(Stmt.Import stmt, Interpreter interpreter) {
+        Module module = imported.get(stmt);
+        if (module == null) throw new RuntimeError(stmt.keyword, "Modules can't be imported here.");
+        return run(module, interpreter);
+    }
+
+    private LoxModule run(Module module, Interpreter interpreter) {
+        if (module.namespace != null) return module.namespace;
+        for (Stmt.Import stmt : module.imports) run(imported.get(stmt), interpreter);
+
+        Environment environment = new Environment(interpreter.globals);
+        interpreter.executeBlock(module.statements, environment);
+        module.namespace = new LoxModule(module.name, environment);
+        return module.namespace;
+    }
+
+    // Finds the module an import names, and starts loading it if no
+    // earlier import has.
+    private void claim(Path directory, Stmt.Import stmt, List<FrontEnd> tasks, List<Module> added) {
+        String spec = (String) stmt.path.literal;
+        if (!spec.endsWith(".lox")) spec += ".lox";
+        Path path = directory.resolve(spec).toAbsolutePath().normalize();
+
+        Module module = new Module(path, stmt.path);
+        Module existing = modules.putIfAbsent(path, module);
+        if (existing == null) {
+            synchronized (added) {
+                added.add(module);
+            }
+            tasks.add(new FrontEnd(module, added));
+        }
+        imported.put(stmt, existing == null ? module : existing);
+    }
+
+    private static List<Stmt.Import> imports(List<Stmt> statements) {
+        List<Stmt.Import> imports = new ArrayList<>();
+        for (Stmt statement : statements)
+            if (statement instanceof Stmt.Import) imports.add((Stmt.Import) statement);
+        return imports;
+    }
+
+    // Depth first, so a module comes after everything it imports. Modules
+    // loaded by an earlier run are already in place.
+    private void order(Module module, List<Module> path, Set<Module> done, List<Module> order) {
+        if (module.loaded || done.contains(module)) return;
+        int at = path.indexOf(module);
+        if (at >= 0) {
+            StringBuilder cycle = new StringBuilder();
+            for (Module step : path.subList(at, path.size()))
+                cycle.append(step.name).append(" -> ");
+            cycle.append(module.name);
+            Lox.error(module.importedAt, "Import cycle: " + cycle + ".");
+            done.add(module);
+            return;
+        }
+
+        path.add(module);
+        for (Stmt.Import stmt : module.imports)
+            order(imported.get(stmt), path, done, order);
+        path.remove(path.size() - 1);
+        done.add(module);
+        order.add(module);
+    }
+
+    private class FrontEnd extends RecursiveAction {
+        private final Module module;
+        private final List<Module> added;
+
+        FrontEnd(Module module, List<Module> added) {
+            this.module = module;
+            this.added = added;
+        }
+
+        @Override
+        protected void compute() {
+            List<FrontEnd> tasks = new ArrayList<>();
+            Lox.module.set(module.path.getFileName().toString());
+            try {
+                String source;
+                try {
+                    source = new String(Files.readAllBytes(module.path), Charset.defaultCharset());
+                } catch (IOException error) {
+                    Lox.module.remove();
+                    Lox.error(module.importedAt, "Can't read module '" + module.path + "'.");
+                    return;
+                }
+
+                module.sourceHash = RuntimeProfile.hash(source);
+                List<Stmt> statements = new Parser(new Scanner(source, module.path.toString()).scanTokens()).parse();
+                if (statements.contains(null)) return;
+                new Resolver(interpreter, module.locals).resolveModule(statements);
+                module.statements = statements;
+            } finally {
+                Lox.module.remove();
+            }
+
+            for (Stmt.Import stmt : imports(module.statements)) {
+                module.imports.add(stmt);
+                claim(module.path.getParent(), stmt, tasks, added);
+            }
+            invokeAll(tasks);
+        }
+    }
+}
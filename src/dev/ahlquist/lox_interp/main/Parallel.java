@@ -0,0 +1,165 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Data-parallel natives. Callbacks run on the interpreter's fork-join pool,
+ * each task on its own forked interpreter. Only functions the PurityAnalysis
+ * proved pure are accepted, since they can't touch shared state.
+ */
+class Parallel {
+
+    private Parallel() {}
+
+    // parallelReduce(source, mapper, combiner, identity) folds combiner over
+    // the mapped elements of source, which is either an array or a count n
+    // standing for the indexes 0 .. n - 1. The combiner must be associative
+    // and identity must be its identity value, since partial results from
+    // each task are combined in an unspecified grouping.
+    static Object reduce(Interpreter interpreter, Object source, Object mapper,
+                         Object combiner, Object identity) {
+        LoxArray array = source instanceof LoxArray ? (LoxArray) source : null;
+        int n = array != null ? array.size() : checkCount(source);
+        LoxFunction map = checkCallback(interpreter, mapper, 1, "Mapper");
+        LoxFunction combine = checkCallback(interpreter, combiner, 2, "Combiner");
+
+        return invoke(interpreter, new ReduceTask(interpreter, array, map, combine,
+                identity, 0, n, threshold(interpreter, n)));
+    }
+
+    // parallelMap(array, mapper) returns a new array of the mapped elements.
+    static Object map(Interpreter interpreter, Object source, Object mapper) {
+        LoxArray array = LoxArray.check(null, source);
+        LoxFunction map = checkCallback(interpreter, mapper, 1, "Mapper");
+
+        Object[] results = new Object[array.size()];
+        invoke(interpreter, new MapTask(interpreter, array, map, results,
+                0, results.length, threshold(interpreter, results.length)));
+        return LoxArray.of(results);
+    }
+
+    // Runs task on the pool. The program can't be reloaded under the
+    // workers, which read it without locking.
+    private static <T> T invoke(Interpreter interpreter, ForkJoinTask<T> task) {
+        HotReload reload = interpreter.reload;
+        if (reload != null) reload.hold();
+        try {
+            return interpreter.parallelPool.invoke(task);
+        } finally {
+            if (reload != null) reload.release();
+        }
+    }
+
+    private static int threshold(Interpreter interpreter, int n) {
+        return Math.max(1, n / (interpreter.parallelPool.getParallelism() * 4));
+    }
+
+    private static Object element(LoxArray array, int index) {
+        return array != null ? array.get(index) : (Object) (double) index;
+    }
+
+    static int checkCount(Object count) {
+        if (!(count instanceof Double)) {
+            throw new RuntimeError(null, "Count must be a number.");
+        }
+        double value = (double) count;
+        if (value < 0 || value != Math.floor(value) || value > Integer.MAX_VALUE) {
+            throw new RuntimeError(null, "Count must be a non-negative integer.");
+        }
+        return (int) value;
+    }
+
+    static LoxFunction checkCallback(Interpreter interpreter, Object callback, int arity, String role) {
+        if (!(callback instanceof LoxFunction)
+                || !interpreter.purity.isPure(((LoxFunction) callback).declaration())) {
+            throw new RuntimeError(null, role + " must be a pure function.");
+        }
+        LoxFunction function = (LoxFunction) callback;
+        if (function.arity() != arity) {
+            throw new RuntimeError(null, role + " must take " + arity + " arguments.");
+        }
+        return function;
+    }
+
+    private static class ReduceTask extends RecursiveTask<Object> {
+        private final Interpreter parent;
+        private final LoxArray array;
+        private final LoxFunction mapper;
+        private final LoxFunction combiner;
+        private final Object identity;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        ReduceTask(Interpreter parent, LoxArray array, LoxFunction mapper, LoxFunction combiner,
+                   Object identity, int from, int to, int threshold) {
+            this.parent = parent;
+            this.array = array;
+            this.mapper = mapper;
+            this.combiner = combiner;
+            this.identity = identity;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Object compute() {
+            if (to - from <= threshold) {
+                Interpreter worker = parent.fork();
+                Object result = identity;
+                for (int i = from; i < to; i++) {
+                    Object mapped = mapper.call(worker, Arrays.asList(element(array, i)));
+                    result = combiner.call(worker, Arrays.asList(result, mapped));
+                }
+                return result;
+            }
+
+            int middle = (from + to) >>> 1;
+            ReduceTask left = new ReduceTask(parent, array, mapper, combiner, identity, from, middle, threshold);
+            ReduceTask right = new ReduceTask(parent, array, mapper, combiner, identity, middle, to, threshold);
+            left.fork();
+            Object rightResult = right.compute();
+            Object leftResult = left.join();
+            return combiner.call(parent.fork(), Arrays.asList(leftResult, rightResult));
+        }
+    }
+
+    private static class MapTask extends RecursiveAction {
+        private final Interpreter parent;
+        private final LoxArray array;
+        private final LoxFunction mapper;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        MapTask(Interpreter parent, LoxArray array, LoxFunction mapper, Object[] results,
+                int from, int to, int threshold) {
+            this.parent = parent;
+            this.array = array;
+            this.mapper = mapper;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                Interpreter worker = parent.fork();
+                for (int i = from; i < to; i++)
+                    results[i] = mapper.call(worker, Arrays.asList(array.get(i)));
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new MapTask(parent, array, mapper, results, from, middle, threshold),
+                    new MapTask(parent, array, mapper, results, middle, to, threshold));
+        }
+    }
+}
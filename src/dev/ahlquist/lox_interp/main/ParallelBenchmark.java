@@ -0,0 +1,62 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// Measures how parallelReduce scales from one worker up to the number of cores.
+public class ParallelBenchmark {
+
+    private static final String SCRIPT =
+            "fun work(i) {\n" +
+            "  var x = i;\n" +
+            "  var j = 0;\n" +
+            "  while (j < 200) { x = x * 1.0001 + 1; j = j + 1; }\n" +
+            "  return x;\n" +
+            "}\n" +
+            "fun add(a, b) { return a + b; }\n" +
+            "print parallelReduce(%d, work, add, 0);\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        String engine = args.length > 1 ? args[1] : "tree";
+        int cores = Runtime.getRuntime().availableProcessors();
+        String source = String.format(SCRIPT, n);
+
+        // Powers of two, then every core if that isn't one.
+        List<Integer> levels = new ArrayList<>();
+        for (int parallelism = 1; parallelism <= cores; parallelism *= 2) levels.add(parallelism);
+        if (levels.get(levels.size() - 1) != cores) levels.add(cores);
+
+        PrintStream out = System.out;
+        double baseline = 0;
+        for (int parallelism : levels) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            long best = Long.MAX_VALUE;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                for (int i = 0; i < 5; i++) {
+                    Interpreter interpreter = Lox.newInterpreter(engine);
+                    interpreter.parallelPool = pool;
+                    long start = System.nanoTime();
+                    Lox.run(source, interpreter);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            } finally {
+                System.setOut(out);
+                pool.shutdown();
+            }
+
+            if (Lox.hadError || Lox.hadRuntimeError) {
+                System.err.println("Benchmark script failed.");
+                System.exit(70);
+            }
+
+            double ms = best / 1e6;
+            if (baseline == 0) baseline = ms;
+            out.printf("%3d workers  %10.3f ms  speedup %5.2fx%n", parallelism, ms, baseline / ms);
+        }
+    }
+}
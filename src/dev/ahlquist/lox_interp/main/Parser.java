@@ -13,6 +13,13 @@ class Parser {
     private final List<Token> tokens;
     private int current = 0;
 
+    // Yield statements seen in the function being parsed, which make it a
+    // generator.
+    private int yields = 0;
+
+    // The furthest token check() has looked at.
+    private int furthest = -1;
+
     Parser(List<Token> tokens) {
         this.tokens = tokens;
     }
@@ -26,11 +33,33 @@ class Parser {
         return statements;
     }
 
+    // One top-level declaration at a time, for IncrementalParser and
+    // HotReload, which keep track of the tokens each one spans.
+    boolean atEnd() {
+        return isAtEnd();
+    }
+
+    Stmt next() {
+        return declaration();
+    }
+
+    // The index of the next token to parse.
+    int position() {
+        return current;
+    }
+
+    // Whether the declaration just parsed looked at the token after it,
+    // as an 'if' does for an 'else', so that what follows could change it.
+    boolean lookedAhead() {
+        return furthest >= current;
+    }
+
     private Stmt declaration() {
         try {
             if (match(CLASS)) return classDeclaration();
             if (match(FUN)) return function("function");
             if (match(VAR)) return varDeclaration();
+            if (match(IMPORT)) return importDeclaration();
             return statement();
         } catch (ParseError error) {
             synchronize();
@@ -71,6 +100,28 @@ class Parser {
         return new Stmt.Var(name, initializer);
     }
 
+    // import "path/to/module" (as name)? ;
+    // Without 'as', the module is named after its file.
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'import'.");
+
+        Token name;
+        if (check(IDENTIFIER) && peek().lexeme.equals("as")) {
+            advance();
+            name = consume(IDENTIFIER, "Expect module name after 'as'.");
+        } else {
+            String file = Modules.baseName((String) path.literal);
+            if (!Modules.isIdentifier(file)) {
+                throw error(path, "Expect 'as' and a name for this module.");
+            }
+            name = new Token(IDENTIFIER, file, null, path.line, path.offset, path.file);
+        }
+
+        consume(SEMICOLON, "Expect ';' after import.");
+        return new Stmt.Import(keyword, path, name);
+    }
+
     private Stmt.Function function(String kind) {
         Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
@@ -87,9 +138,18 @@ class Parser {
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
+        int enclosing = yields;
+        yields = 0;
+        List<Stmt> body;
+        boolean generator;
+        try {
+            body = block();
+            generator = yields > 0;
+        } finally {
+            yields = enclosing;
+        }
 
-        return new Stmt.Function(name, parameters, body);
+        return new Stmt.Function(name, parameters, body, generator);
     }
 
     private Stmt statement() {
@@ -98,6 +158,7 @@ class Parser {
         if (match(PRINT)) return printStatement();
         if (match(RETURN)) return returnStatement();
         if (match(WHILE)) return whileStatement();
+        if (match(YIELD)) return yieldStatement();
         if (match(LEFT_BRACE)) return new Stmt.Block(block());
 
         return expressionStatement();
@@ -133,16 +194,27 @@ class Parser {
         return new Stmt.Return(keyword, value);
     }
 
+    private Stmt yieldStatement() {
+        Token keyword = previous();
+        Expr value = expression();
+        consume(SEMICOLON, "Expect ';' after yield value.");
+
+        yields++;
+        return new Stmt.Yield(keyword, value);
+    }
+
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after while condition.");
 
         Stmt body = statement();
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
         Stmt initializer;
         if (match(SEMICOLON)) {
@@ -175,7 +247,7 @@ class Parser {
         }
 
         if(condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(keyword, condition, body);
 
         if(initializer != null) {
             body = new Stmt.Block(Arrays.asList(
@@ -220,7 +292,7 @@ class Parser {
                 return new Expr.Assign(name, value);
             } else if (expr instanceof Expr.Get) {
                 Expr.Get get = (Expr.Get) expr;
-                return new Expr.Set(expr, get.name, value);
+                return new Expr.Set(get.expr, get.name, value);
             }
             error(equals, "Invalid assignment target.");
         }
@@ -382,6 +454,7 @@ class Parser {
     }
 
     private boolean check(TokenType type) {
+        furthest = Math.max(furthest, current);
         if (isAtEnd()) return false;
         return peek().type == type;
     }
@@ -424,11 +497,13 @@ class Parser {
                 case CLASS:
                 case FUN:
                 case VAR:
+                case IMPORT:
                 case FOR:
                 case IF:
                 case WHILE:
                 case PRINT:
                 case RETURN:
+                case YIELD:
                     return;
             }
 
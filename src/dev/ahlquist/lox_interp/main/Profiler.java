@@ -0,0 +1,224 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A sampling profiler for Lox code. The interpreter keeps a shadow stack of
+ * the Lox functions being called, each with the line it is currently on,
+ * and a timer thread copies the stack every interval. The stack is read
+ * without locking, so a sample taken in the middle of a call or return may
+ * be off by a frame; over many samples that doesn't matter.
+ *
+ * Samples taken before a run's first statement, while it is scanned,
+ * parsed and analyzed and while the JVM warms up, are reported as
+ * <front end> rather than charged to the script.
+ *
+ * Only the thread that started the profiler is recorded. Work handed to
+ * other threads (parallelReduce and friends) shows up as time spent on the
+ * line that started it.
+ */
+class Profiler {
+
+    private static final String SCRIPT = "<script>";
+    private static final String FRONT_END = "<front end>";
+
+    final SourceLines lines = new SourceLines();
+    private final long intervalNanos;
+    private Thread thread;
+    private Thread sampler;
+    private volatile boolean running;
+
+    // The shadow stack. Slot 0 is the top level script, on line 0 until
+    // its first statement runs.
+    private volatile Stmt.Function[] functions = new Stmt.Function[64];
+    private volatile int[] currentLines = new int[64];
+    private volatile int depth = 0;
+
+    // Written only by the sampler thread until it has stopped.
+    private final Map<String, Long> stacks = new HashMap<>();
+    private final Map<String, Long> lineSamples = new HashMap<>();
+    private long samples = 0;
+
+    Profiler(long intervalMicros) {
+        this.intervalNanos = Math.max(intervalMicros, 1) * 1000;
+    }
+
+    void start() {
+        thread = Thread.currentThread();
+        running = true;
+        sampler = new Thread(this::sample, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    void stop() {
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Called by the interpreter */
+    void enter(Stmt.Function function) {
+        if (Thread.currentThread() != thread) return;
+        int next = depth + 1;
+        if (next == functions.length) {
+            functions = Arrays.copyOf(functions, next * 2);
+            currentLines = Arrays.copyOf(currentLines, next * 2);
+        }
+        functions[next] = function;
+        currentLines[next] = function.name.line;
+        depth = next;
+    }
+
+    void exit() {
+        if (Thread.currentThread() != thread) return;
+        depth--;
+    }
+
+    // A new run is starting, so nothing of it has run yet.
+    void frontEnd() {
+        if (Thread.currentThread() != thread || depth != 0) return;
+        currentLines[0] = 0;
+    }
+
+    void line(Stmt stmt) {
+        line(lines.lineOf(stmt));
+    }
+
+    void line(int line) {
+        if (line < 0 || Thread.currentThread() != thread) return;
+        currentLines[depth] = line;
+    }
+
+    /* Sampling */
+    private void sample() {
+        StringBuilder stack = new StringBuilder();
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+
+            Stmt.Function[] functions = this.functions;
+            int[] currentLines = this.currentLines;
+            int top = Math.min(depth, Math.min(functions.length, currentLines.length) - 1);
+
+            if (top == 0 && currentLines[0] == 0) {
+                stacks.merge(FRONT_END, 1L, Long::sum);
+                lineSamples.merge(FRONT_END, 1L, Long::sum);
+                samples++;
+                continue;
+            }
+
+            stack.setLength(0);
+            stack.append(SCRIPT);
+            for (int i = 1; i <= top; i++)
+                stack.append(';').append(name(functions[i]));
+            stacks.merge(stack.toString(), 1L, Long::sum);
+
+            String function = top == 0 ? SCRIPT : name(functions[top]);
+            lineSamples.merge(function + " line " + currentLines[top], 1L, Long::sum);
+            samples++;
+        }
+    }
+
+    // Functions are told apart by where they are declared, since closures
+    // and methods often share a name.
+    private static String name(Stmt.Function function) {
+        return function == null ? "?" : function.name.lexeme + ":" + function.name.line;
+    }
+
+    /* Reports. Only call these once the profiler has stopped. */
+    void report(PrintStream out) {
+        out.printf("profile: %d samples, one every %d us%n", samples, intervalNanos / 1000);
+        if (samples == 0) return;
+
+        // Self time is the top frame; total time counts each function once
+        // per sample, however many times it is on the stack.
+        Map<String, Long> self = new HashMap<>();
+        Map<String, Long> total = new HashMap<>();
+        for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+            String[] frames = entry.getKey().split(";");
+            self.merge(frames[frames.length - 1], entry.getValue(), Long::sum);
+            for (String frame : new HashSet<>(Arrays.asList(frames)))
+                total.merge(frame, entry.getValue(), Long::sum);
+        }
+
+        out.println();
+        out.printf("%8s %8s  %s%n", "self", "total", "function");
+        for (String function : byCount(total)) {
+            out.printf("%7.1f%% %7.1f%%  %s%n", percent(self.getOrDefault(function, 0L)),
+                    percent(total.get(function)), function);
+        }
+
+        out.println();
+        out.printf("%8s  %s%n", "self", "line");
+        for (String line : byCount(lineSamples))
+            out.printf("%7.1f%%  %s%n", percent(lineSamples.get(line)), line);
+
+        out.println();
+        out.printf("%8s  %s%n", "total", "call tree (calls under 0.5% omitted)");
+        Node root = new Node();
+        for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+            Node node = root;
+            for (String frame : entry.getKey().split(";")) {
+                node = node.children.computeIfAbsent(frame, name -> new Node());
+                node.count += entry.getValue();
+            }
+        }
+        print(out, root, 0);
+    }
+
+    // Folded stacks, one "frame;frame;frame count" per line, as read by
+    // flamegraph.pl and speedscope.
+    void writeCollapsed(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : new TreeMap<>(stacks).entrySet())
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+    }
+
+    private static class Node {
+        long count;
+        final Map<String, Node> children = new HashMap<>();
+    }
+
+    private void print(PrintStream out, Node node, int indent) {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, Node> child : node.children.entrySet())
+            counts.put(child.getKey(), child.getValue().count);
+
+        for (String name : byCount(counts)) {
+            Node child = node.children.get(name);
+            if (percent(child.count) < 0.5) break;
+            out.printf("%7.1f%%  %s%s%n", percent(child.count), "  ".repeat(indent), name);
+            print(out, child, indent + 1);
+        }
+    }
+
+    private double percent(long count) {
+        return 100.0 * count / samples;
+    }
+
+    private static List<String> byCount(Map<String, Long> counts) {
+        List<String> keys = new ArrayList<>(counts.keySet());
+        keys.sort((a, b) -> {
+            int order = Long.compare(counts.get(b), counts.get(a));
+            return order != 0 ? order : a.compareTo(b);
+        });
+        return keys;
+    }
+}
@@ -0,0 +1,344 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Decides which top-level functions are pure: same arguments, same result,
+ * no observable side effects. A function is pure when its body
+ *
+ *   - only reads and assigns its own parameters and locals,
+ *   - does not print, read or write properties, or use 'this'/'super',
+ *   - declares no nested functions or classes, and
+ *   - only refers to globals that are pure functions never reassigned.
+ *
+ * The last rule makes purity a fixpoint over the global call graph, which is
+ * recomputed whenever a run adds declarations (e.g. at the REPL).
+ */
+class PurityAnalysis implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private final Interpreter interpreter;
+
+    // What we know about every global function, across runs.
+    private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+    private final Set<String> reassigned = new HashSet<>();
+    private final Map<Stmt.Function, Set<String>> references = new IdentityHashMap<>();
+    private final Set<Stmt.Function> locallyPure = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // The result of the last fixpoint.
+    private volatile Set<Stmt.Function> pure = Collections.emptySet();
+
+    // State for the function currently being checked. current is null when
+    // the code being walked can't be a candidate (top level, methods, nested functions).
+    private Stmt.Function current = null;
+    private boolean currentPure;
+    private int scopeDepth;
+    private Set<String> currentRefs;
+
+    PurityAnalysis(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    boolean isPure(Stmt.Function function) {
+        return pure.contains(function);
+    }
+
+    void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) statement;
+                Stmt.Function previous = globalFunctions.put(function.name.lexeme, function);
+                if (previous != null) {
+                    // Calls made before the new declaration saw the old one,
+                    // so neither is the same function throughout.
+                    forget(previous);
+                    reassigned.add(function.name.lexeme);
+                }
+                checkFunction(function);
+            } else {
+                if (statement instanceof Stmt.Var) reassigned.add(((Stmt.Var) statement).name.lexeme);
+                if (statement instanceof Stmt.Class) reassigned.add(((Stmt.Class) statement).name.lexeme);
+                statement.accept(this);
+            }
+        }
+
+        solve();
+    }
+
+    private void forget(Stmt.Function function) {
+        references.remove(function);
+        locallyPure.remove(function);
+    }
+
+    private void checkFunction(Stmt.Function function) {
+        current = function;
+        currentPure = true;
+        scopeDepth = 1; // parameters and body share the function's scope
+        currentRefs = new HashSet<>();
+
+        walk(function.body);
+
+        references.put(function, currentRefs);
+        if (currentPure) locallyPure.add(function);
+        current = null;
+    }
+
+    // Start by assuming every locally pure function is pure, then drop any
+    // that refer to something outside the set until nothing changes.
+    private void solve() {
+        Set<Stmt.Function> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Stmt.Function function : globalFunctions.values()) {
+            if (locallyPure.contains(function) && !reassigned.contains(function.name.lexeme))
+                candidates.add(function);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Stmt.Function function : globalFunctions.values()) {
+                if (!candidates.contains(function)) continue;
+                for (String name : references.get(function)) {
+                    if (!candidates.contains(globalFunctions.get(name))) {
+                        candidates.remove(function);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        pure = candidates;
+    }
+
+    private void impure() {
+        currentPure = false;
+    }
+
+    private void walk(List<Stmt> statements) {
+        for (Stmt statement : statements)
+            statement.accept(this);
+    }
+
+    private void walk(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void variable(Token name, Expr expr) {
+        if (current == null) return;
+
+        Integer depth = interpreter.resolvedDepth(expr);
+        if (depth == null) {
+            currentRefs.add(name.lexeme);
+        } else if (depth >= scopeDepth) {
+            impure(); // captured from an enclosing function
+        }
+    }
+
+    /* Expr.Visitor<Void> */
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        walk(expr.value);
+
+        Integer depth = interpreter.resolvedDepth(expr);
+        if (depth == null) {
+            reassigned.add(expr.name.lexeme);
+            impure();
+        } else if (current != null && depth >= scopeDepth) {
+            impure();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // Only direct calls to global functions can be checked.
+        if (!(expr.callee instanceof Expr.Variable)
+                || interpreter.resolvedDepth(expr.callee) != null) {
+            impure();
+        }
+        walk(expr.callee);
+        for (Expr arg : expr.args)
+            walk(arg);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        impure();
+        walk(expr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        impure();
+        walk(expr.expr);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        variable(expr.name, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        return visitAssignExpr(expr.original);
+    }
+
+    @Override
+    public Void visitCompareConstExpr(Expr.CompareConst expr) {
+        return visitBinaryExpr(expr.original);
+    }
+
+    @Override
+    public Void visitAssignLocalExpr(Expr.AssignLocal expr) {
+        return visitAssignExpr(expr.original);
+    }
+
+    @Override
+    public Void visitCallGlobalExpr(Expr.CallGlobal expr) {
+        return visitCallExpr(expr.original);
+    }
+
+    /* Stmt.Visitor<Void> */
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopeDepth++;
+        walk(stmt.statements);
+        scopeDepth--;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        impure();
+
+        // Methods are never candidates, but may still reassign globals.
+        Stmt.Function enclosing = current;
+        current = null;
+        for (Stmt.Function method : stmt.methods)
+            walk(method.body);
+        current = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        impure();
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        impure();
+
+        Stmt.Function enclosing = current;
+        current = null;
+        walk(stmt.body);
+        current = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) walk(stmt.value);
+        return null;
+    }
+
+    // Each call of a generator makes a new one.
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        impure();
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return visitPrintStmt(stmt.original);
+    }
+}
@@ -7,16 +7,25 @@ import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Interpreter interpreter;
+    private final Map<Expr, Integer> locals;
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private Map<String, Boolean> moduleScope;
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
-    enum FunctionType { FUNCTION, METHOD, INITIALIZER, NONE }
+    enum FunctionType { FUNCTION, METHOD, INITIALIZER, GENERATOR, NONE }
 
     enum ClassType { CLASS, SUBCLASS, NONE }
 
     public Resolver(Interpreter interpreter) {
+        this(interpreter, null);
+    }
+
+    // Records depths in locals instead of the interpreter, so modules can
+    // be resolved on other threads; see Modules.
+    Resolver(Interpreter interpreter, Map<Expr, Integer> locals) {
         this.interpreter = interpreter;
+        this.locals = locals;
     }
 
     /* Expr.Visitor */
@@ -83,7 +92,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitSuperExpr(Expr.Super expr) {
         if(currentClass == ClassType.NONE)
             Lox.error(expr.keyword, "Cannot use 'super' outside of a class.");
-        if(currentClass == ClassType.SUBCLASS)
+        else if(currentClass != ClassType.SUBCLASS)
             Lox.error(expr.keyword, "Cannot use 'super' in a class without a superclass.");
 
         resolveLocal(expr, expr.keyword);
@@ -117,10 +126,33 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    // Superinstructions are only created after resolution, so these just
+    // resolve the node they replaced.
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        return visitAssignExpr(expr.original);
+    }
+
+    @Override
+    public Void visitCompareConstExpr(Expr.CompareConst expr) {
+        return visitBinaryExpr(expr.original);
+    }
+
+    @Override
+    public Void visitAssignLocalExpr(Expr.AssignLocal expr) {
+        return visitAssignExpr(expr.original);
+    }
+
+    @Override
+    public Void visitCallGlobalExpr(Expr.CallGlobal expr) {
+        return visitCallExpr(expr.original);
+    }
+
     private void resolveLocal(Expr expr, Token name) {
         for(int i = scopes.size() -1; i >=0; i--) {
             if(scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() -1 -i);
+                if (locals != null) locals.put(expr, scopes.size() -1 -i);
+                else interpreter.resolve(expr, scopes.size() -1 -i);
                 return;
             }
         }
@@ -182,6 +214,24 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(statement);
     }
 
+    // A module's top level is a scope of its own, which its functions
+    // close over. Its names are all declared up front, so that, as at the
+    // top level of a script, functions can use names declared after them,
+    // and a name can be declared again.
+    void resolveModule(List<Stmt> statements) {
+        beginScope();
+        moduleScope = scopes.peek();
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var) define(((Stmt.Var) statement).name);
+            else if (statement instanceof Stmt.Function) define(((Stmt.Function) statement).name);
+            else if (statement instanceof Stmt.Class) define(((Stmt.Class) statement).name);
+            else if (statement instanceof Stmt.Import) define(((Stmt.Import) statement).name);
+        }
+        resolve(statements);
+        endScope();
+        moduleScope = null;
+    }
+
     private void resolve(Stmt stmt) {
         stmt.accept(this);
     }
@@ -197,7 +247,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void declare(Token name) {
         if (scopes.isEmpty()) return;
         Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        if (scope.containsKey(name.lexeme) && scope != moduleScope) {
             Lox.error(name,
                     "Variable with this name already declared in this scope.");
         }
@@ -231,6 +281,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.name);
+        if(stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+        define(stmt.name);
         return null;
     }
 
@@ -245,7 +300,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
-        currentFunction = type;
+        // An initializer with a yield in it is reported at the yield.
+        currentFunction = function.generator && type != FunctionType.INITIALIZER ? FunctionType.GENERATOR : type;
 
         beginScope();
         for(Token param: function.params) {
@@ -265,6 +321,22 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        if (currentFunction != FunctionType.NONE || (!scopes.isEmpty() && scopes.peek() != moduleScope)) {
+            Lox.error(stmt.keyword, "Can only import at the top level of a file.");
+        }
+
+        declare(stmt.name);
+        define(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return visitPrintStmt(stmt.original);
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
@@ -275,8 +347,24 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             if(currentFunction == FunctionType.INITIALIZER) {
                 Lox.error(stmt.keyword, "Cannot return a value from an initializer.");
             }
+            if(currentFunction == FunctionType.GENERATOR) {
+                Lox.error(stmt.keyword, "Cannot return a value from a generator.");
+            }
             resolve(stmt.value);
         }
         return null;
     }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        if (currentFunction == FunctionType.NONE) {
+            Lox.error(stmt.keyword, "Cannot yield from top-level code.");
+        }
+        if (currentFunction == FunctionType.INITIALIZER) {
+            Lox.error(stmt.keyword, "Cannot yield from an initializer.");
+        }
+
+        resolve(stmt.value);
+        return null;
+    }
 }
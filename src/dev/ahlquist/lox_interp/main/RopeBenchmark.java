@@ -0,0 +1,55 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/*
+ * Builds a long string with s = s + piece in a Lox loop, with and without
+ * ropes. Plain concatenation copies the whole string on every '+', so it
+ * is quadratic and runs on a smaller size by default.
+ */
+public class RopeBenchmark {
+
+    private static final String PIECE = "0123456789abcdef";
+
+    public static void main(String[] args) {
+        int bytes = args.length > 0 ? Integer.parseInt(args[0]) : 10 << 20;
+        int plainBytes = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        String engine = args.length > 2 ? args[2] : "tree";
+
+        System.out.printf("%-6s %12s %12s %14s%n", "mode", "chars", "ms", "ns/char");
+        for (boolean ropes : new boolean[] { true, false }) {
+            int size = ropes ? bytes : plainBytes;
+            // Warm up on a small string first.
+            run(engine, ropes, size / 16);
+            long time = run(engine, ropes, size);
+            System.out.printf("%-6s %12d %12.1f %14.2f%n", ropes ? "rope" : "plain",
+                    size, time / 1e6, (double) time / size);
+        }
+    }
+
+    private static long run(String engine, boolean ropes, int size) {
+        // The print forces the rope to be flattened once at the end.
+        String source = "var s = \"\";\n"
+                + "var i = 0;\n"
+                + "while (i < " + size / PIECE.length() + ") {\n"
+                + "    s = s + \"" + PIECE + "\";\n"
+                + "    i = i + 1;\n"
+                + "}\n"
+                + "print s;\n";
+
+        PrintStream out = System.out;
+        boolean saved = LoxRope.enabled;
+        LoxRope.enabled = ropes;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter interpreter = Lox.newInterpreter(engine);
+            long start = System.nanoTime();
+            Lox.run(source, interpreter);
+            return System.nanoTime() - start;
+        } finally {
+            System.setOut(out);
+            LoxRope.enabled = saved;
+        }
+    }
+}
@@ -7,5 +7,14 @@ public class RuntimeError extends RuntimeException {
     public RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+
+        // Errors from natives have no token yet; they are recorded when
+        // Interpreter.call rethrows them with the call site.
+        if (LoxEvents.ENABLED && token != null) {
+            LoxEvents.Error event = new LoxEvents.Error();
+            event.message = message;
+            event.line = token.line;
+            event.commit();
+        }
     }
 }
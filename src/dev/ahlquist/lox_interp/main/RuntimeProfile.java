@@ -0,0 +1,258 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Runtime feedback that outlives the process: how often each function is
+ * called, which operand types each binary operator has seen and which
+ * classes each property access has been applied to. Sites are keyed by
+ * the module their token was scanned from and its offset there, and the
+ * whole profile by a hash of the script and every module it imported, so
+ * a profile is only used for the exact sources it was recorded from.
+ *
+ * A run without a usable profile records one and saves it at exit. A run
+ * that loads one records nothing and instead uses it before the first
+ * statement runs: hot functions are compiled up front (see
+ * Interpreter.warmStart) and the closure compiler specializes hot sites
+ * on the types they saw.
+ *
+ * Counters are plain fields. Parallel workers can lose updates, which only
+ * makes the counts approximate.
+ */
+class RuntimeProfile {
+
+    static final int NUMBER = 1;
+    static final int STRING = 2;
+    static final int OTHER = 4;
+
+    // Calls or executions before a function or site counts as hot.
+    static final long HOT = 1000;
+
+    private static final String HEADER = "lox-profile 2";
+
+    // The file key for the main script's sites, which sorts first.
+    private static final String MAIN = "";
+
+    static final class Site {
+        long count;
+        int types;            // binary operators: NUMBER | STRING | OTHER seen
+        String receiver;      // property accesses: the one class seen
+        boolean polymorphic;  // property accesses: more than one class seen
+        boolean field;        // property accesses: ever resolved to a field
+    }
+
+    // Sites by module path, then by offset within it.
+    private final Map<String, Map<Integer, Site>> calls = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, Site>> binaries = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, Site>> gets = new ConcurrentHashMap<>();
+    private String sourceHash;
+
+    // True while collecting feedback; false once a matching profile is loaded.
+    boolean recording = true;
+
+    static RuntimeProfile load(Path path) throws IOException {
+        RuntimeProfile profile = new RuntimeProfile();
+        if (!Files.exists(path)) return profile;
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) return profile;
+            String line;
+            // Sites before the first module line are the main script's.
+            String file = MAIN;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                switch (parts[0]) {
+                    case "source":
+                        profile.sourceHash = parts[1];
+                        break;
+                    case "module":
+                        // The path is the rest of the line, spaces and all.
+                        file = line.substring("module ".length());
+                        break;
+                    case "call":
+                        site(profile.calls, file, parts).count = Long.parseLong(parts[2]);
+                        break;
+                    case "binary": {
+                        Site site = site(profile.binaries, file, parts);
+                        site.count = Long.parseLong(parts[2]);
+                        site.types = Integer.parseInt(parts[3]);
+                        break;
+                    }
+                    case "get": {
+                        Site site = site(profile.gets, file, parts);
+                        site.count = Long.parseLong(parts[2]);
+                        site.polymorphic = parts[3].equals("*");
+                        site.receiver = site.polymorphic ? null : parts[3];
+                        site.field = parts[4].equals("field");
+                        break;
+                    }
+                    default:
+                        break; // from a newer version; ignore
+                }
+            }
+        }
+        profile.recording = false;
+        return profile;
+    }
+
+    private static Site site(Map<String, Map<Integer, Site>> sites, String file, String[] parts) {
+        return sites.computeIfAbsent(file, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(Integer.parseInt(parts[1]), offset -> new Site());
+    }
+
+    static String hash(String source) {
+        return Integer.toHexString(source.hashCode()) + ":" + source.length();
+    }
+
+    // Ties the profile to the script being run and the modules it
+    // imported, in load order. A profile recorded from different source
+    // in any of them is thrown away and recording starts over.
+    void attach(String source, List<Modules.Module> modules) {
+        StringBuilder sources = new StringBuilder(hash(source));
+        for (Modules.Module module : modules) {
+            sources.append('\n').append(module.path).append(' ').append(module.sourceHash);
+        }
+        String hash = modules.isEmpty() ? sources.toString() : hash(sources.toString());
+        if (!recording && !hash.equals(sourceHash)) {
+            calls.clear();
+            binaries.clear();
+            gets.clear();
+            recording = true;
+        }
+        sourceHash = hash;
+    }
+
+    void save(Path path) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            out.println(HEADER);
+            out.println("source " + sourceHash);
+            TreeSet<String> files = new TreeSet<>(calls.keySet());
+            files.addAll(binaries.keySet());
+            files.addAll(gets.keySet());
+            for (String file : files) {
+                if (!file.equals(MAIN)) out.println("module " + file);
+                for (Map.Entry<Integer, Site> entry : sorted(calls, file).entrySet())
+                    out.println("call " + entry.getKey() + " " + entry.getValue().count);
+                for (Map.Entry<Integer, Site> entry : sorted(binaries, file).entrySet()) {
+                    Site site = entry.getValue();
+                    out.println("binary " + entry.getKey() + " " + site.count + " " + site.types);
+                }
+                for (Map.Entry<Integer, Site> entry : sorted(gets, file).entrySet()) {
+                    Site site = entry.getValue();
+                    String receiver = site.polymorphic || site.receiver == null ? "*" : site.receiver;
+                    out.println("get " + entry.getKey() + " " + site.count + " " + receiver
+                            + " " + (site.field ? "field" : "method"));
+                }
+            }
+        }
+    }
+
+    private static Map<Integer, Site> sorted(Map<String, Map<Integer, Site>> sites, String file) {
+        Map<Integer, Site> inFile = sites.get(file);
+        return inFile == null ? new TreeMap<>() : new TreeMap<>(inFile);
+    }
+
+    private static String fileOf(Token token) {
+        return token.file == null ? MAIN : token.file;
+    }
+
+    /* Recording */
+    Site call(Stmt.Function function) {
+        return site(calls, function.name);
+    }
+
+    Site binary(Token operator) {
+        return site(binaries, operator);
+    }
+
+    Site get(Token name) {
+        return site(gets, name);
+    }
+
+    private static Site site(Map<String, Map<Integer, Site>> sites, Token token) {
+        return sites.computeIfAbsent(fileOf(token), file -> new ConcurrentHashMap<>())
+                .computeIfAbsent(token.offset, offset -> new Site());
+    }
+
+    // The site recorded for token, or null.
+    private static Site find(Map<String, Map<Integer, Site>> sites, Token token) {
+        Map<Integer, Site> inFile = sites.get(fileOf(token));
+        return inFile == null ? null : inFile.get(token.offset);
+    }
+
+    static int typeOf(Object value) {
+        if (value instanceof Double) return NUMBER;
+        if (LoxRope.isString(value)) return STRING;
+        return OTHER;
+    }
+
+    static void recordBinary(Site site, Object left, Object right) {
+        site.count++;
+        site.types |= typeOf(left) | typeOf(right);
+    }
+
+    static void recordGet(Site site, LoxInstance instance, String name) {
+        site.count++;
+        String klass = instance.klass().name;
+        if (site.receiver == null && !site.polymorphic) {
+            site.receiver = klass;
+        } else if (!klass.equals(site.receiver)) {
+            site.polymorphic = true;
+        }
+        if (instance.fields().containsKey(name)) site.field = true;
+    }
+
+    /* Queries against a loaded profile */
+    boolean isHot(Stmt.Function function) {
+        Site site = recording ? null : find(calls, function.name);
+        return site != null && site.count >= HOT;
+    }
+
+    // Whether a hot operator has only ever seen numbers.
+    boolean onlyNumbers(Token operator) {
+        Site site = recording ? null : find(binaries, operator);
+        return site != null && site.count >= HOT && site.types == NUMBER;
+    }
+
+    // Whether a hot property access only ever found a method on one class.
+    boolean monomorphicMethod(Token name) {
+        Site site = recording ? null : find(gets, name);
+        return site != null && site.count >= HOT && !site.polymorphic && !site.field
+                && site.receiver != null;
+    }
+
+    // The hot functions declared anywhere in statements.
+    List<Stmt.Function> hotFunctions(List<Stmt> statements) {
+        List<Stmt.Function> hot = new ArrayList<>();
+        for (Stmt statement : statements) findHot(statement, hot);
+        return hot;
+    }
+
+    private void findHot(Stmt stmt, List<Stmt.Function> hot) {
+        if (stmt instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) stmt;
+            if (isHot(function)) hot.add(function);
+            for (Stmt statement : function.body) findHot(statement, hot);
+        } else if (stmt instanceof Stmt.Class) {
+            for (Stmt.Function method : ((Stmt.Class) stmt).methods) findHot(method, hot);
+        } else if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block) stmt).statements) findHot(statement, hot);
+        } else if (stmt instanceof Stmt.If) {
+            findHot(((Stmt.If) stmt).thenBranch, hot);
+            findHot(((Stmt.If) stmt).elseBranch, hot);
+        } else if (stmt instanceof Stmt.While) {
+            findHot(((Stmt.While) stmt).body, hot);
+        }
+    }
+}
@@ -9,9 +9,19 @@ import static dev.ahlquist.lox_interp.main.TokenType.*;
 
 class Scanner {
     private final String source;
+    private final String file; // the module being scanned, or null for the main script
 
     private final List<Token> tokens = new ArrayList<>();
 
+    // Whether the source ended inside a string or comment, which
+    // IncrementalParser takes to mean the source was cut short.
+    boolean unterminated = false;
+
+    // The keyword text names, or null.
+    static TokenType keyword(String text) {
+        return keywords.get(text);
+    }
+
     private int start = 0;
     private int current = 0;
     private int line = 1;
@@ -27,6 +37,7 @@ class Scanner {
         keywords.put("for",    FOR);
         keywords.put("fun",    FUN);
         keywords.put("if",     IF);
+        keywords.put("import", IMPORT);
         keywords.put("nil",    NIL);
         keywords.put("or",     OR);
         keywords.put("print",  PRINT);
@@ -36,10 +47,16 @@ class Scanner {
         keywords.put("true",   TRUE);
         keywords.put("var",    VAR);
         keywords.put("while",  WHILE);
+        keywords.put("yield",  YIELD);
     }
 
     Scanner(String source) {
+        this(source, null);
+    }
+
+    Scanner(String source, String file) {
         this.source = source;
+        this.file = file;
     }
 
     List<Token> scanTokens() {
@@ -49,7 +66,7 @@ class Scanner {
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(new Token(EOF, "", null, line, current, file));
         return tokens;
     }
 
@@ -148,6 +165,9 @@ class Scanner {
     private void lineComment() {
         while (peek() != '\n' && !isAtEnd())
             advance();
+        // Without a newline, the comment may go on past the end: it would
+        // take in the rest of the line after a cut-off region.
+        if (isAtEnd()) unterminated = true;
         // The trailing newline will be consumed in the next scanToken() call
     }
 
@@ -159,6 +179,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
+            unterminated = true;
             Lox.error(line, "Unterminated block comment.");
             return;
         }
@@ -177,6 +198,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
+            unterminated = true;
             Lox.error(line, "Unterminated string.");
             return;
         }
@@ -239,6 +261,6 @@ class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(new Token(type, text, literal, line, start, file));
     }
 }
@@ -0,0 +1,195 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The source line each statement starts on. Statements don't carry a
+ * token of their own, so the line comes from the first token found in
+ * the statement, left to right. A statement with no tokens at all, such
+ * as 'print 1;', has no line (-1).
+ */
+class SourceLines implements Stmt.Visitor<Integer>, Expr.Visitor<Integer> {
+
+    private static final int NONE = -1;
+
+    private final Map<Stmt, Integer> lines = new IdentityHashMap<>();
+
+    // Records every statement in the program, including function bodies.
+    void index(List<Stmt> statements) {
+        for (Stmt statement : statements)
+            index(statement);
+    }
+
+    private int index(Stmt stmt) {
+        if (stmt == null) return NONE;
+        int line = stmt.accept(this);
+        lines.put(stmt, line);
+        return line;
+    }
+
+    int lineOf(Stmt stmt) {
+        Integer line = lines.get(stmt);
+        return line == null ? NONE : line;
+    }
+
+    private int line(Expr expr) {
+        return expr == null ? NONE : expr.accept(this);
+    }
+
+    private static int first(int line, int fallback) {
+        return line != NONE ? line : fallback;
+    }
+
+    /* Statements. Visiting indexes the children too. */
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+        int line = NONE;
+        for (Stmt statement : stmt.statements)
+            line = first(line, index(statement));
+        return line;
+    }
+
+    @Override
+    public Integer visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods)
+            index(method);
+        return stmt.name.line;
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+        return line(stmt.expression);
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+        int then = index(stmt.thenBranch);
+        int otherwise = index(stmt.elseBranch);
+        return first(line(stmt.condition), first(then, otherwise));
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+        return line(stmt.expression);
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+        return stmt.name.line;
+    }
+
+    @Override
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+        index(stmt.body);
+        return stmt.name.line;
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+        index(stmt.body);
+        return stmt.keyword.line;
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+        return stmt.keyword.line;
+    }
+
+    @Override
+    public Integer visitYieldStmt(Stmt.Yield stmt) {
+        return stmt.keyword.line;
+    }
+
+    @Override
+    public Integer visitImportStmt(Stmt.Import stmt) {
+        return stmt.keyword.line;
+    }
+
+    @Override
+    public Integer visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return stmt.name.line;
+    }
+
+    /* Expressions */
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        return expr.name.line;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        return first(line(expr.left), expr.operator.line);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        return first(line(expr.callee), expr.paren.line);
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+        return first(line(expr.expr), expr.name.line);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return line(expr.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        return NONE;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        return first(line(expr.left), expr.operator.line);
+    }
+
+    @Override
+    public Integer visitSetExpr(Expr.Set expr) {
+        return first(line(expr.expr), expr.name.line);
+    }
+
+    @Override
+    public Integer visitSuperExpr(Expr.Super expr) {
+        return expr.keyword.line;
+    }
+
+    @Override
+    public Integer visitThisExpr(Expr.This expr) {
+        return expr.keyword.line;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        return expr.operator.line;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        return expr.name.line;
+    }
+
+    @Override
+    public Integer visitIncrementExpr(Expr.Increment expr) {
+        return line(expr.original);
+    }
+
+    @Override
+    public Integer visitCompareConstExpr(Expr.CompareConst expr) {
+        return line(expr.original);
+    }
+
+    @Override
+    public Integer visitAssignLocalExpr(Expr.AssignLocal expr) {
+        return line(expr.original);
+    }
+
+    @Override
+    public Integer visitCallGlobalExpr(Expr.CallGlobal expr) {
+        return expr.name.line;
+    }
+}
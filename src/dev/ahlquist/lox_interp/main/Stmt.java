@@ -14,6 +14,9 @@ abstract class Stmt {
     R visitFunctionStmt(Function stmt);
     R visitWhileStmt(While stmt);
     R visitReturnStmt(Return stmt);
+    R visitYieldStmt(Yield stmt);
+    R visitImportStmt(Import stmt);
+    R visitPrintVariableStmt(PrintVariable stmt);
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -101,10 +104,11 @@ abstract class Stmt {
     final Expr initializer;
   }
   static class Function extends Stmt {
-    Function(Token name, List<Token> params, List<Stmt> body) {
+    Function(Token name, List<Token> params, List<Stmt> body, boolean generator) {
       this.name = name;
       this.params = params;
       this.body = body;
+      this.generator = generator;
     }
 
     @Override
@@ -115,9 +119,11 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    final boolean generator;
   }
   static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+    While(Token keyword, Expr condition, Stmt body) {
+      this.keyword = keyword;
       this.condition = condition;
       this.body = body;
     }
@@ -127,6 +133,7 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    final Token keyword;
     final Expr condition;
     final Stmt body;
   }
@@ -144,4 +151,50 @@ abstract class Stmt {
     final Token keyword;
     final Expr value;
   }
+  static class Yield extends Stmt {
+    Yield(Token keyword, Expr value) {
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitYieldStmt(this);
+    }
+
+    final Token keyword;
+    final Expr value;
+  }
+  static class Import extends Stmt {
+    Import(Token keyword, Token path, Token name) {
+      this.keyword = keyword;
+      this.path = path;
+      this.name = name;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
+    final Token name;
+  }
+  static class PrintVariable extends Stmt {
+    PrintVariable(Stmt.Print original, Token name, Integer depth) {
+      this.original = original;
+      this.name = name;
+      this.depth = depth;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitPrintVariableStmt(this);
+    }
+
+    final Stmt.Print original;
+    final Token name;
+    final Integer depth;
+  }
 }
@@ -0,0 +1,334 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/*
+ * Rewrites the resolved AST so that the few node shapes that dominate our
+ * profiles run as one fused node:
+ *
+ *   i = i + 1      Increment      (also i = i - 1, any numeric literal)
+ *   x < 10         CompareConst   (variable against a numeric literal)
+ *   x = expr       AssignLocal    (assignment to a resolved local)
+ *   print x        PrintVariable
+ *   fib(n - 1)     CallGlobal     (global callee, one arithmetic argument)
+ *
+ * Each fused node keeps the node it replaced. When a fast path sees operands
+ * it doesn't handle, it falls back to evaluating the original, so errors and
+ * edge cases behave exactly as they did before the rewrite.
+ *
+ * Statement lists are rewritten in place so that Stmt.Function and
+ * Stmt.Block nodes keep their identity; everything else is rebuilt only
+ * when one of its children changed.
+ */
+class Superinstructions implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    enum Kind { INCREMENT, COMPARE_CONST, ASSIGN_LOCAL, PRINT_VARIABLE, CALL_GLOBAL }
+
+    private final Interpreter interpreter;
+    private final long[] rewritten = new long[Kind.values().length];
+
+    // Filled in by the engines while counting is on.
+    final long[] executed = new long[Kind.values().length];
+    boolean counting = false;
+
+    Superinstructions(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void rewrite(List<Stmt> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            if (statement != null) statements.set(i, rewrite(statement));
+        }
+    }
+
+    private Stmt rewrite(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // TypeInference has already run, so a node built here, fused or rebuilt
+    // around one, takes the type proven for the node it replaces.
+    private Expr rewrite(Expr expr) {
+        Expr rewritten = expr.accept(this);
+        if (rewritten != expr) rewritten.type = expr.type;
+        return rewritten;
+    }
+
+    void report(PrintStream out) {
+        out.printf("%-16s %10s %14s%n", "superinstruction", "rewritten", "executed");
+        for (Kind kind : Kind.values()) {
+            out.printf("%-16s %10d %14d%n", kind.name().toLowerCase(),
+                    rewritten[kind.ordinal()], executed[kind.ordinal()]);
+        }
+    }
+
+    private <T> T fired(Kind kind, T node) {
+        rewritten[kind.ordinal()]++;
+        return node;
+    }
+
+    /* Pattern helpers */
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    private static double number(Expr expr) {
+        return (double) ((Expr.Literal) expr).value;
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.LESS || type == TokenType.LESS_EQUAL
+                || type == TokenType.GREATER || type == TokenType.GREATER_EQUAL;
+    }
+
+    static boolean isArithmetic(TokenType type) {
+        return type == TokenType.PLUS || type == TokenType.MINUS
+                || type == TokenType.STAR || type == TokenType.SLASH;
+    }
+
+    // True if both expressions were resolved to the same variable.
+    private boolean sameBinding(Expr.Assign assign, Expr expr) {
+        if (!(expr instanceof Expr.Variable)) return false;
+        Expr.Variable variable = (Expr.Variable) expr;
+        if (!variable.name.lexeme.equals(assign.name.lexeme)) return false;
+
+        Integer assignDepth = interpreter.resolvedDepth(assign);
+        Integer variableDepth = interpreter.resolvedDepth(variable);
+        return assignDepth == null ? variableDepth == null : assignDepth.equals(variableDepth);
+    }
+
+    /* Expr.Visitor<Expr> */
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        // i = i + 1 and i = i - 1
+        if (expr.value instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr.value;
+            TokenType op = binary.operator.type;
+            if ((op == TokenType.PLUS || op == TokenType.MINUS)
+                    && sameBinding(expr, binary.left) && isNumber(binary.right)) {
+                double delta = op == TokenType.PLUS ? number(binary.right) : -number(binary.right);
+                return fired(Kind.INCREMENT,
+                        new Expr.Increment(expr, interpreter.resolvedDepth(expr), delta));
+            }
+        }
+
+        Expr value = rewrite(expr.value);
+        Expr.Assign assign = expr;
+        if (value != expr.value) {
+            assign = new Expr.Assign(expr.name, value);
+            Integer depth = interpreter.resolvedDepth(expr);
+            if (depth != null) interpreter.resolve(assign, depth);
+        }
+
+        Integer depth = interpreter.resolvedDepth(assign);
+        if (depth != null)
+            return fired(Kind.ASSIGN_LOCAL, new Expr.AssignLocal(assign, depth));
+
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        if (isComparison(expr.operator.type)
+                && expr.left instanceof Expr.Variable && isNumber(expr.right)) {
+            Expr.Variable variable = (Expr.Variable) expr.left;
+            return fired(Kind.COMPARE_CONST, new Expr.CompareConst(expr, variable.name,
+                    interpreter.resolvedDepth(variable), number(expr.right)));
+        }
+
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        for (int i = 0; i < expr.args.size(); i++)
+            expr.args.set(i, rewrite(expr.args.get(i)));
+
+        if (expr.callee instanceof Expr.Variable
+                && interpreter.resolvedDepth(expr.callee) == null
+                && expr.args.size() == 1
+                && expr.args.get(0) instanceof Expr.Binary
+                && isArithmetic(((Expr.Binary) expr.args.get(0)).operator.type)) {
+            Expr.Variable callee = (Expr.Variable) expr.callee;
+            return fired(Kind.CALL_GLOBAL, new Expr.CallGlobal(expr, callee.name,
+                    (Expr.Binary) expr.args.get(0)));
+        }
+
+        Expr callee = rewrite(expr.callee);
+        if (callee == expr.callee) return expr;
+        return new Expr.Call(callee, expr.paren, expr.args);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.expr);
+        if (object == expr.expr) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.expr);
+        Expr value = rewrite(expr.value);
+        if (object == expr.expr && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    // Already fused nodes are left alone.
+    @Override
+    public Expr visitIncrementExpr(Expr.Increment expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCompareConstExpr(Expr.CompareConst expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignLocalExpr(Expr.AssignLocal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallGlobalExpr(Expr.CallGlobal expr) {
+        return expr;
+    }
+
+    /* Stmt.Visitor<Stmt> */
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        rewrite(stmt.statements);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods)
+            rewrite(method.body);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewrite(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        if (stmt.expression instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) stmt.expression;
+            return fired(Kind.PRINT_VARIABLE, new Stmt.PrintVariable(stmt, variable.name,
+                    interpreter.resolvedDepth(variable)));
+        }
+
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        rewrite(stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewrite(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(stmt.keyword, condition, body);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitYieldStmt(Stmt.Yield stmt) {
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Yield(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitImportStmt(Stmt.Import stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return stmt;
+    }
+}
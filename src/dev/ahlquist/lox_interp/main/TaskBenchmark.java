@@ -0,0 +1,119 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+// Spawns thousands of tasks: first ones that sleep, to see them wait at
+// the same time, then ones that wait on a channel, to see what each costs
+// while it waits and how fast channels hand values between them.
+public class TaskBenchmark {
+
+    private static final String SLEEP =
+            "var done = channel(%1$d);\n" +
+            "fun sleeper() {\n" +
+            "  sleep(%2$f);\n" +
+            "  channelSend(done, 1);\n" +
+            "}\n" +
+            "var i = 0;\n" +
+            "while (i < %1$d) { spawn(sleeper); i = i + 1; }\n" +
+            "i = 0;\n" +
+            "while (i < %1$d) { channelReceive(done); i = i + 1; }\n";
+
+    // Once the script has everything ready, every task is waiting at the gate.
+    private static final String WAIT =
+            "var ready = channel(%1$d);\n" +
+            "var gate = channel(%1$d);\n" +
+            "var results = channel(%1$d);\n" +
+            "fun waiter() {\n" +
+            "  channelSend(ready, 1);\n" +
+            "  channelSend(results, channelReceive(gate));\n" +
+            "}\n" +
+            "var i = 0;\n" +
+            "while (i < %1$d) { spawn(waiter); i = i + 1; }\n" +
+            "i = 0;\n" +
+            "while (i < %1$d) { channelReceive(ready); i = i + 1; }\n";
+
+    private static final String RELEASE =
+            "i = 0;\n" +
+            "while (i < %1$d) { channelSend(gate, i); i = i + 1; }\n" +
+            "var sum = 0;\n" +
+            "i = 0;\n" +
+            "while (i < %1$d) { sum = sum + channelReceive(results); i = i + 1; }\n" +
+            "print sum;\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        String engine = args.length > 1 ? args[1] : "tree";
+        double seconds = 0.5;
+
+        PrintStream out = System.out;
+        out.printf("%d tasks on %s threads%n", n, Tasks.virtual() ? "virtual" : "platform");
+        if (Lox.newInterpreter(engine) == null) {
+            System.err.println("Unknown engine " + engine + ".");
+            System.exit(64);
+        }
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long start = System.nanoTime();
+            Lox.run(String.format(Locale.ROOT, SLEEP, n, seconds), Lox.newInterpreter(engine));
+            long slept = System.nanoTime() - start;
+            System.setOut(out);
+            out.printf("sleep %.0f ms each:  %10.3f ms in all  (%.0f ms one after another)%n",
+                    seconds * 1000, slept / 1e6, n * seconds * 1000);
+
+            // Interpreters print to the System.out they were made with.
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Interpreter interpreter = Lox.newInterpreter(engine);
+            long heapBefore = heapUsed();
+            long residentBefore = resident();
+            start = System.nanoTime();
+            Lox.run(String.format(Locale.ROOT, WAIT, n), interpreter);
+            long spawned = System.nanoTime() - start;
+            long heap = heapUsed() - heapBefore;
+            long resident = resident() - residentBefore;
+            System.setOut(out);
+            out.printf("spawn and wait:     %10.3f ms  (%.2f us per task)%n", spawned / 1e6, spawned / 1e3 / n);
+            out.printf("while waiting:      %10.0f bytes of heap per task", (double) heap / n);
+            if (residentBefore > 0) out.printf(", %.0f resident", (double) resident / n);
+            out.println();
+
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            start = System.nanoTime();
+            Lox.run(String.format(Locale.ROOT, RELEASE, n), interpreter);
+            long released = System.nanoTime() - start;
+            System.setOut(out);
+            out.printf("release and collect: %9.3f ms  (%.2f us per task)%n", released / 1e6, released / 1e3 / n);
+        } finally {
+            System.setOut(out);
+        }
+
+        if (Lox.hadError || Lox.hadRuntimeError) {
+            System.err.println("Benchmark script failed.");
+            System.exit(70);
+        }
+    }
+
+    private static long heapUsed() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // The process's resident set, where /proc has it, or 0.
+    private static long resident() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux.
+        }
+        return 0;
+    }
+}
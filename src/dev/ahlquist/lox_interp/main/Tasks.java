@@ -0,0 +1,162 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Concurrent tasks, for scripts that spend their time waiting. spawn(fn)
+ * calls fn on a thread of its own and join(task) waits for what it
+ * returned; channels (see LoxChannel) pass values between tasks.
+ *
+ * Environments, arrays and maps are plain Java collections, so Lox code
+ * runs under one lock for the whole interpreter, this one. A task holds it
+ * while it runs and lets go only to wait: in join(), on a channel that is
+ * full or empty, or in sleep(). Tasks interleave at those points and
+ * nowhere else, so code between them runs undisturbed, but a task that
+ * computes without waiting keeps the others from running. The thread
+ * running the script takes the lock when it first spawns a task or uses a
+ * channel, and holds it from then on whenever it isn't waiting.
+ *
+ * Each task calls fn on its own fork of the interpreter, so it has its own
+ * current environment, while functions, classes and globals are shared.
+ * Tasks run on virtual threads where the JVM has them (Java 21 on), which
+ * keep their stacks on the heap and cost little while they wait, and on
+ * platform threads with small stacks elsewhere. Either way they are
+ * daemons: a task nobody joins doesn't keep the program running.
+ *
+ * A task that fails while nobody is waiting in join() reports its error
+ * there and then, as the main thread would, so that a failure nobody
+ * joins isn't lost. A later join() still fails with the same error.
+ */
+class Tasks {
+
+    // Null where the JVM has no virtual threads.
+    private static final ThreadFactory VIRTUAL = virtualThreads();
+    private static final long PLATFORM_STACK = 512 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Started and not yet finished, for reports.
+    private int running = 0;
+    private int peak = 0;
+
+    // Found by reflection so that this builds and runs on older JVMs.
+    private static ThreadFactory virtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static boolean virtual() {
+        return VIRTUAL != null;
+    }
+
+    // Also runs generators; see LoxGenerator.
+    static Thread newThread(Runnable body) {
+        if (VIRTUAL != null) return VIRTUAL.newThread(body);
+        Thread thread = new Thread(null, body, "lox-task", PLATFORM_STACK);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Takes the lock, unless this thread has it already.
+    void enter() {
+        if (!lock.isHeldByCurrentThread()) lock.lock();
+    }
+
+    Condition condition() {
+        return lock.newCondition();
+    }
+
+    // Lets go of the lock, if this thread has it, to wait or to hand
+    // control to another thread. Says whether to take it back after.
+    boolean release() {
+        boolean held = lock.isHeldByCurrentThread();
+        if (held) lock.unlock();
+        return held;
+    }
+
+    void reacquire(boolean held) {
+        if (held) lock.lock();
+    }
+
+    LoxTask spawn(Interpreter interpreter, Object callee) {
+        if (!(callee instanceof LoxCallable) || ((LoxCallable) callee).arity() != 0) {
+            throw new RuntimeError(null, "Can only spawn a function that takes no arguments.");
+        }
+        enter();
+        LoxTask task = new LoxTask(condition());
+        Interpreter worker = interpreter.fork();
+        running++;
+        peak = Math.max(peak, running);
+        newThread(() -> run(task, (LoxCallable) callee, worker)).start();
+        return task;
+    }
+
+    private void run(LoxTask task, LoxCallable callee, Interpreter worker) {
+        lock.lock();
+        try {
+            task.result = callee.call(worker, Collections.emptyList());
+        } catch (RuntimeException | Error error) {
+            // Anything else, such as a stack overflow, goes to the joiner too.
+            task.error = error;
+            if (task.joiners == 0) report(error, worker);
+        } finally {
+            task.done = true;
+            task.finished.signalAll();
+            running--;
+            lock.unlock();
+        }
+    }
+
+    // What task returned, once it has. A task that failed fails its
+    // joiner with the same error.
+    Object join(Object value) {
+        LoxTask task = LoxTask.check(null, value);
+        enter();
+        task.joiners++;
+        try {
+            while (!task.done) task.finished.awaitUninterruptibly();
+        } finally {
+            task.joiners--;
+        }
+        if (task.error instanceof Error) throw (Error) task.error;
+        if (task.error != null) throw (RuntimeException) task.error;
+        return task.result;
+    }
+
+    private static void report(Throwable error, Interpreter worker) {
+        worker.out.flush(); // keep the error after the task's output
+        if (error instanceof RuntimeError && ((RuntimeError) error).token != null) {
+            Lox.runtimeError((RuntimeError) error);
+        } else {
+            System.err.print("Task failed: ");
+            error.printStackTrace();
+            Lox.hadRuntimeError = true;
+        }
+    }
+
+    void sleep(Object seconds) {
+        if (!(seconds instanceof Double) || (double) seconds < 0) {
+            throw new RuntimeError(null, "Sleep time must be a non-negative number.");
+        }
+        boolean held = release();
+        try {
+            Thread.sleep((long) ((double) seconds * 1000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reacquire(held);
+        }
+    }
+
+    // The most tasks that were running at once.
+    int peak() {
+        return peak;
+    }
+}
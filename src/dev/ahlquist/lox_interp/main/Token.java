@@ -5,12 +5,20 @@ class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    final int offset; // of the first character in the source, to identify the token across runs
+    final String file; // the module it was scanned from, or null for the main script
 
-    Token(TokenType type, String lexeme, Object literal, int line) {
+    Token(TokenType type, String lexeme, Object literal, int line, int offset) {
+        this(type, lexeme, literal, line, offset, null);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int offset, String file) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
+        this.file = file;
     }
 
     public String toString() {
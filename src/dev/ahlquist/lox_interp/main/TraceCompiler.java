@@ -0,0 +1,270 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Compiles a hot loop the way ClosureCompiler would, specialized on what
+ * one recorded iteration saw (see LoopTracer):
+ *
+ *   - an operator that only saw numbers does the arithmetic directly,
+ *     guarded by a type check;
+ *   - an if that only went one way compiles that branch, and the other
+ *     one becomes a side exit into the interpreter;
+ *   - a call site that only called one function gets that function's body
+ *     inlined, guarded by the callee's declaration, so there is no
+ *     argument list and no Return exception for its final return.
+ *
+ * Each failed guard is counted on the trace and falls back to the general
+ * path, so the compiled loop always does what the interpreter would.
+ */
+class TraceCompiler extends ClosureCompiler {
+
+    private static final int MAX_INLINE_DEPTH = 3;
+    private static final int MAX_INLINE_STATEMENTS = 8;
+
+    private final Interpreter interpreter;
+    private final LoopTracer.Trace trace;
+
+    // Functions being inlined, innermost last, so recursion stops.
+    private final List<Stmt.Function> inlining = new ArrayList<>();
+
+    TraceCompiler(Interpreter interpreter, LoopTracer.Trace trace) {
+        super(interpreter);
+        this.interpreter = interpreter;
+        this.trace = trace;
+    }
+
+    // A traced loop: its condition and body, compiled against the trace.
+    static final class CompiledLoop {
+        private final Code condition;
+        private final Action body;
+        private final Budget budget;
+        private final HotReload reload;
+        private final Token keyword;
+
+        CompiledLoop(Code condition, Action body, Budget budget, HotReload reload, Token keyword) {
+            this.condition = condition;
+            this.body = body;
+            this.budget = budget;
+            this.reload = reload;
+            this.keyword = keyword;
+        }
+
+        // Runs the loop to the end and returns true, or returns false at an
+        // iteration boundary once the trace is failing too often.
+        boolean run(Environment env, LoopTracer.Trace trace) {
+            while (Interpreter.isTruthy(condition.run(env))) {
+                if (budget != null) budget.tick(keyword);
+                if (reload != null) reload.poll();
+                body.run(env);
+                trace.iterations++;
+                if (trace.failing()) return false;
+            }
+            return true;
+        }
+    }
+
+    CompiledLoop compileLoop(Stmt.While stmt) {
+        return new CompiledLoop(compile(stmt.condition), compile(stmt.body), interpreter.budget,
+                interpreter.reload, stmt.keyword);
+    }
+
+    /* Types */
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        // Proven types need no guards.
+        if (expr.left.type == TypeInference.NUMBER && expr.right.type == TypeInference.NUMBER)
+            return super.visitBinaryExpr(expr);
+
+        Integer types = trace.types.get(expr.operator);
+        RuntimeProfile profile = interpreter.runtimeProfile;
+        if (types == null || types != RuntimeProfile.NUMBER || (profile != null && profile.recording))
+            return super.visitBinaryExpr(expr);
+
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case PLUS:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    if (l instanceof Double && r instanceof Double) return (double)l + (double)r;
+                    return typeMiss(operator, l, r);
+                };
+            case MINUS:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    if (l instanceof Double && r instanceof Double) return (double)l - (double)r;
+                    return typeMiss(operator, l, r);
+                };
+            case STAR:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    if (l instanceof Double && r instanceof Double) return (double)l * (double)r;
+                    return typeMiss(operator, l, r);
+                };
+            case SLASH:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    if (l instanceof Double && r instanceof Double) return (double)l / (double)r;
+                    return typeMiss(operator, l, r);
+                };
+            case LESS:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    if (l instanceof Double && r instanceof Double) return (double)l < (double)r;
+                    return typeMiss(operator, l, r);
+                };
+            case LESS_EQUAL:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    if (l instanceof Double && r instanceof Double) return (double)l <= (double)r;
+                    return typeMiss(operator, l, r);
+                };
+            case GREATER:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    if (l instanceof Double && r instanceof Double) return (double)l > (double)r;
+                    return typeMiss(operator, l, r);
+                };
+            case GREATER_EQUAL:
+                return env -> {
+                    Object l = left.run(env);
+                    Object r = right.run(env);
+                    if (l instanceof Double && r instanceof Double) return (double)l >= (double)r;
+                    return typeMiss(operator, l, r);
+                };
+            default:
+                return super.visitBinaryExpr(expr);
+        }
+    }
+
+    // The operands weren't both numbers after all.
+    private Object typeMiss(Token operator, Object left, Object right) {
+        trace.typeMisses++;
+        if (operator.type == TokenType.PLUS) return Interpreter.evaluatePlus(operator, left, right);
+        if (operator.type == TokenType.MINUS || operator.type == TokenType.STAR || operator.type == TokenType.SLASH)
+            return Interpreter.evaluateArithmetic(operator, left, right);
+        Interpreter.checkNumberOperands(operator, left, right);
+        return null; // unreachable: the check throws
+    }
+
+    /* Branches */
+    @Override
+    public Action visitIfStmt(Stmt.If stmt) {
+        Integer seen = trace.branches.get(stmt);
+        if (seen == null || seen == (LoopTracer.Trace.THEN | LoopTracer.Trace.ELSE)
+                || (seen == LoopTracer.Trace.THEN && stmt.elseBranch == null))
+            return super.visitIfStmt(stmt);
+
+        boolean then = seen == LoopTracer.Trace.THEN;
+        Code condition = compile(stmt.condition);
+        Stmt hotBranch = then ? stmt.thenBranch : stmt.elseBranch;
+        Action hot = hotBranch == null ? null : compile(hotBranch);
+        Action cold = sideExit(then ? stmt.elseBranch : stmt.thenBranch);
+
+        return env -> {
+            if (Interpreter.isTruthy(condition.run(env)) == then) {
+                if (hot != null) hot.run(env);
+            } else {
+                cold.run(env);
+            }
+        };
+    }
+
+    // Runs stmt in the interpreter, in the environment the trace is in.
+    private Action sideExit(Stmt stmt) {
+        List<Stmt> statements = Collections.singletonList(stmt);
+        return env -> {
+            trace.sideExits++;
+            interpreter.executeBlock(statements, env);
+        };
+    }
+
+    /* Calls */
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        Stmt.Function declaration = inlinable(expr);
+        if (declaration == null) return super.visitCallExpr(expr);
+        return inline(expr, declaration);
+    }
+
+    @Override
+    public Code visitCallGlobalExpr(Expr.CallGlobal expr) {
+        if (inlinable(expr.original) == null) return super.visitCallGlobalExpr(expr);
+        return visitCallExpr(expr.original);
+    }
+
+    // The declaration to inline at a call site, or null to call as usual.
+    private Stmt.Function inlinable(Expr.Call expr) {
+        Object callee = trace.callees.get(expr.paren);
+        if (!(callee instanceof LoxFunction)) return null;
+        LoxFunction function = (LoxFunction) callee;
+        Stmt.Function declaration = function.declaration();
+        if (function.isInitializer() || declaration.generator
+                || declaration.params.size() != expr.args.size()) return null;
+        if (declaration.body.size() > MAX_INLINE_STATEMENTS || inlining.size() >= MAX_INLINE_DEPTH
+                || inlining.contains(declaration)) return null;
+
+        // Calls that something else is watching go through LoxFunction.call.
+        if (ClassHierarchy.observed(interpreter)) return null;
+        if (interpreter.memo != null && interpreter.purity.isPure(declaration)) return null;
+        return declaration;
+    }
+
+    private Code inline(Expr.Call expr, Stmt.Function declaration) {
+        Code callee = compile(expr.callee);
+        Code[] args = compileAll(expr.args);
+
+        // A final 'return value;' becomes the result; any other return
+        // still throws, and is caught below.
+        List<Stmt> body = declaration.body;
+        Stmt last = body.isEmpty() ? null : body.get(body.size() - 1);
+        boolean returnsLast = last instanceof Stmt.Return && ((Stmt.Return) last).value != null;
+        inlining.add(declaration);
+        Action[] statements = compile(returnsLast ? body.subList(0, body.size() - 1) : body);
+        Code result = returnsLast ? compile(((Stmt.Return) last).value) : null;
+        inlining.remove(inlining.size() - 1);
+        trace.inlined++;
+
+        String[] params = new String[declaration.params.size()];
+        for (int i = 0; i < params.length; i++)
+            params[i] = declaration.params.get(i).lexeme;
+        Token paren = expr.paren;
+        Budget budget = interpreter.budget;
+        HotReload reload = interpreter.reload;
+
+        return env -> {
+            Object value = callee.run(env);
+            if (!(value instanceof LoxFunction) || ((LoxFunction) value).declaration() != declaration
+                    || ((LoxFunction) value).isInitializer()) {
+                trace.calleeMisses++;
+                return interpreter.call(paren, value, evaluateAll(args, env));
+            }
+
+            Environment frame = new Environment(((LoxFunction) value).closure());
+            for (int i = 0; i < params.length; i++)
+                frame.define(params[i], args[i].run(env));
+            if (budget != null) budget.tick(paren);
+            // A safepoint, as LoxFunction.call is.
+            if (reload != null) reload.poll();
+            try {
+                for (Action statement : statements)
+                    statement.run(frame);
+                return result == null ? null : result.run(frame);
+            } catch (Return returned) {
+                return returned.value;
+            }
+        };
+    }
+}
@@ -0,0 +1,410 @@
+package dev.ahlquist.lox_interp.main;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Proves the types of expressions ahead of time, so the engines can skip
+ * their dynamic checks (and, in the closure engine, the boxing of
+ * intermediate results). Runs after the Resolver, once per run, and writes
+ * what it proved into Expr.type.
+ *
+ * The analysis is flow-sensitive over each function's own locals: it
+ * tracks a set of possible types per variable through assignments,
+ * branches and loops (to a fixpoint). What it can't see being assigned
+ * is unknown: parameters, globals, properties, call results, and locals a
+ * nested function captures, since a call can change those at any time.
+ * The exception is a call to a global class nothing else is assigned to,
+ * which always produces an instance of that class.
+ *
+ * An operator whose operands could hold the wrong types still throws, so
+ * anything it produces has its one result type: 'a - b' is a number even
+ * when nothing is known about a and b.
+ */
+class TypeInference implements Expr.Visitor<Integer>, Stmt.Visitor<Void> {
+
+    // Types are sets of these bits; proven means exactly one bit.
+    static final int NUMBER = 1;
+    static final int STRING = 2;
+    static final int BOOLEAN = 4;
+    static final int NIL = 8;
+    static final int INSTANCE = 16;
+    static final int OTHER = 32;  // functions, classes, arrays, maps
+    static final int ANY = 63;
+
+    private static final String[] NAMES = { "number", "string", "boolean", "nil", "instance", "other" };
+
+    private final Interpreter interpreter;
+
+    // Global names known to hold one class, across runs.
+    private final Map<String, Stmt.Class> globalClasses = new HashMap<>();
+    private final Set<String> reassigned = new HashSet<>();
+
+    // What every analyzed expression may evaluate to, across runs.
+    private final Map<Expr, Integer> seen = new IdentityHashMap<>();
+    private final Map<Expr, Stmt.Class> instances = new IdentityHashMap<>();
+    private Map<Expr, Integer> facts = seen;
+    private boolean collecting = false;
+
+    // The function (or top-level code) being analyzed.
+    private Set<Token> captured;
+    private final List<Map<String, Token>> scopes = new ArrayList<>();
+    // Possible types of each uncaptured local; null where code is unreachable.
+    private Map<Token, Integer> state;
+    private final List<Stmt.Function> pending = new ArrayList<>();
+
+    TypeInference(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            String name = statement instanceof Stmt.Class ? ((Stmt.Class) statement).name.lexeme
+                    : statement instanceof Stmt.Var ? ((Stmt.Var) statement).name.lexeme
+                    : statement instanceof Stmt.Function ? ((Stmt.Function) statement).name.lexeme
+                    : null;
+            if (name == null) continue;
+            if (statement instanceof Stmt.Class && !globalClasses.containsKey(name) && !reassigned.contains(name)) {
+                globalClasses.put(name, (Stmt.Class) statement);
+            } else {
+                reassigned.add(name);
+            }
+        }
+
+        // A first pass only finds which globals are assigned anywhere.
+        facts = new IdentityHashMap<>();
+        collecting = true;
+        walkProgram(statements);
+        collecting = false;
+
+        facts = new IdentityHashMap<>();
+        walkProgram(statements);
+        for (Map.Entry<Expr, Integer> fact : facts.entrySet()) {
+            int type = seen.merge(fact.getKey(), fact.getValue(), (a, b) -> a | b);
+            fact.getKey().type = isProven(type) ? type : 0;
+        }
+        facts = seen;
+    }
+
+    static boolean isProven(int type) {
+        return type != 0 && (type & (type - 1)) == 0;
+    }
+
+    private void walkProgram(List<Stmt> statements) {
+        walkFunction(new ArrayList<>(), statements);
+        while (!pending.isEmpty()) {
+            Stmt.Function function = pending.remove(pending.size() - 1);
+            walkFunction(function.params, function.body);
+        }
+    }
+
+    private void walkFunction(List<Token> params, List<Stmt> body) {
+        captured = IrBuilder.captured(interpreter, params, body);
+        scopes.clear();
+        scopes.add(new HashMap<>());
+        state = new IdentityHashMap<>();
+        for (Token param : params) declare(param, ANY);
+        walk(body);
+    }
+
+    /* State */
+    private static Map<Token, Integer> copy(Map<Token, Integer> state) {
+        return state == null ? null : new IdentityHashMap<>(state);
+    }
+
+    private static Map<Token, Integer> join(Map<Token, Integer> a, Map<Token, Integer> b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        Map<Token, Integer> joined = new IdentityHashMap<>(a);
+        b.forEach((variable, type) -> joined.merge(variable, type, (x, y) -> x | y));
+        return joined;
+    }
+
+    private void declare(Token name, int type) {
+        scopes.get(scopes.size() - 1).put(name.lexeme, name);
+        if (state != null && !captured.contains(name)) state.put(name, type);
+    }
+
+    // The declaring token of an uncaptured local of this function, or null.
+    private Token local(Expr expr, Token name) {
+        Integer depth = interpreter.resolvedDepth(expr);
+        if (depth == null || depth >= scopes.size()) return null;
+        Token declaration = scopes.get(scopes.size() - 1 - depth).get(name.lexeme);
+        return declaration == null || captured.contains(declaration) ? null : declaration;
+    }
+
+    private int record(Expr expr, int type) {
+        facts.merge(expr, type, (a, b) -> a | b);
+        return type;
+    }
+
+    private int type(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void walk(List<Stmt> statements) {
+        for (Stmt statement : statements) statement.accept(this);
+    }
+
+    /* Statements */
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashMap<>());
+        walk(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superclass != null) type(stmt.superclass);
+        declare(stmt.name, OTHER);
+        pending.addAll(stmt.methods);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        type(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, OTHER);
+        pending.add(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        type(stmt.condition);
+        Map<Token, Integer> before = state;
+        state = copy(before);
+        stmt.thenBranch.accept(this);
+        Map<Token, Integer> afterThen = state;
+        state = copy(before);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        state = join(afterThen, state);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        type(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return visitPrintStmt(stmt.original);
+    }
+
+    // Modules are instances whose fields are the module's names.
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        declare(stmt.name, INSTANCE);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) type(stmt.value);
+        state = null;
+        return null;
+    }
+
+    // The consumer runs while the generator waits here, but can't reach
+    // its uncaptured locals.
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        type(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.name, stmt.initializer == null ? NIL : type(stmt.initializer));
+        return null;
+    }
+
+    // Types only grow, so going around the loop until they stop changing
+    // takes a few passes at most.
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Map<Token, Integer> entry = state;
+        while (true) {
+            state = copy(entry);
+            type(stmt.condition);
+            Map<Token, Integer> exit = copy(state);
+            stmt.body.accept(this);
+            Map<Token, Integer> next = join(entry, state);
+            if (next == null || next.equals(entry)) {
+                state = exit;
+                return null;
+            }
+            entry = next;
+        }
+    }
+
+    /* Expressions */
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        int type = type(expr.value);
+        Token declaration = local(expr, expr.name);
+        if (declaration != null && state != null) state.put(declaration, type);
+        if (collecting && interpreter.resolvedDepth(expr) == null) reassigned.add(expr.name.lexeme);
+        return record(expr, type);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        int left = type(expr.left);
+        int right = type(expr.right);
+        switch (expr.operator.type) {
+            case PLUS:
+                // Numbers add, strings concatenate, anything else throws.
+                return record(expr, left & right & (NUMBER | STRING));
+            case MINUS: case STAR: case SLASH:
+                return record(expr, NUMBER);
+            default:
+                return record(expr, BOOLEAN);
+        }
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        type(expr.callee);
+        for (Expr arg : expr.args) type(arg);
+        if (expr.callee instanceof Expr.Variable && interpreter.resolvedDepth(expr.callee) == null) {
+            String name = ((Expr.Variable) expr.callee).name.lexeme;
+            Stmt.Class klass = globalClasses.get(name);
+            if (klass != null && !reassigned.contains(name)) {
+                if (!collecting) instances.put(expr, klass);
+                return record(expr, INSTANCE);
+            }
+        }
+        return record(expr, ANY);
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+        type(expr.expr);
+        return record(expr, ANY);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return record(expr, type(expr.expression));
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value == null) return record(expr, NIL);
+        if (value instanceof Double) return record(expr, NUMBER);
+        if (value instanceof String) return record(expr, STRING);
+        if (value instanceof Boolean) return record(expr, BOOLEAN);
+        return record(expr, ANY);
+    }
+
+    // The right operand may not run, so what it assigns only might happen.
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        int left = type(expr.left);
+        Map<Token, Integer> skipped = copy(state);
+        int right = type(expr.right);
+        state = join(skipped, state);
+        return record(expr, left | right);
+    }
+
+    @Override
+    public Integer visitSetExpr(Expr.Set expr) {
+        type(expr.expr);
+        return record(expr, type(expr.value));
+    }
+
+    @Override
+    public Integer visitSuperExpr(Expr.Super expr) {
+        return record(expr, ANY);
+    }
+
+    @Override
+    public Integer visitThisExpr(Expr.This expr) {
+        return record(expr, INSTANCE);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        type(expr.right);
+        return record(expr, expr.operator.type == TokenType.MINUS ? NUMBER : BOOLEAN);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        Token declaration = local(expr, expr.name);
+        if (declaration == null || state == null) return record(expr, ANY);
+        return record(expr, state.getOrDefault(declaration, ANY));
+    }
+
+    // Superinstructions have the types of the nodes they replaced.
+    @Override
+    public Integer visitIncrementExpr(Expr.Increment expr) {
+        return record(expr, visitAssignExpr(expr.original));
+    }
+
+    @Override
+    public Integer visitCompareConstExpr(Expr.CompareConst expr) {
+        return record(expr, visitBinaryExpr(expr.original));
+    }
+
+    @Override
+    public Integer visitAssignLocalExpr(Expr.AssignLocal expr) {
+        return record(expr, visitAssignExpr(expr.original));
+    }
+
+    @Override
+    public Integer visitCallGlobalExpr(Expr.CallGlobal expr) {
+        return record(expr, visitCallExpr(expr.original));
+    }
+
+    /* Reporting */
+    void report(PrintStream out) {
+        int total = 0;
+        int typed = 0;
+        int[] byType = new int[NAMES.length];
+        int operators = 0;
+        int unchecked = 0;
+        for (Map.Entry<Expr, Integer> fact : seen.entrySet()) {
+            total++;
+            int type = fact.getValue();
+            if (isProven(type)) {
+                typed++;
+                byType[Integer.numberOfTrailingZeros(type)]++;
+            }
+            if (fact.getKey() instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) fact.getKey();
+                if (binary.operator.type == TokenType.EQUAL_EQUAL || binary.operator.type == TokenType.BANG_EQUAL)
+                    continue;
+                operators++;
+                if (binary.left.type == NUMBER && binary.right.type == NUMBER) unchecked++;
+            }
+        }
+
+        out.printf("types: %d of %d expressions proven (%.1f%%)%n", typed, total,
+                total == 0 ? 0.0 : 100.0 * typed / total);
+        StringBuilder breakdown = new StringBuilder("  ");
+        for (int i = 0; i < NAMES.length; i++) {
+            if (i > 0) breakdown.append(", ");
+            breakdown.append(NAMES[i]).append(' ').append(byType[i]);
+        }
+        out.println(breakdown.append(" (").append(instances.size()).append(" of a known class)"));
+        out.printf("  arithmetic and comparisons without type checks: %d of %d%n", unchecked, operators);
+    }
+}
@@ -26,7 +26,13 @@ public class GenerateAst {
                 "Super    : Token keyword, Token method",
                 "This     : Token keyword",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name",
+
+                // Superinstructions, produced after resolution by Superinstructions.
+                "Increment    : Expr.Assign original, Integer depth, double delta",
+                "CompareConst : Expr.Binary original, Token name, Integer depth, double constant",
+                "AssignLocal  : Expr.Assign original, int depth",
+                "CallGlobal   : Expr.Call original, Token name, Expr.Binary arg"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
@@ -36,9 +42,14 @@ public class GenerateAst {
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "Var        : Token name, Expr initializer",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
-                "While      : Expr condition, Stmt body",
-                "Return     : Token keyword, Expr value"
+                "Function   : Token name, List<Token> params, List<Stmt> body, boolean generator",
+                "While      : Token keyword, Expr condition, Stmt body",
+                "Return     : Token keyword, Expr value",
+                "Yield      : Token keyword, Expr value",
+                "Import     : Token keyword, Token path, Token name",
+
+                // Superinstructions, produced after resolution by Superinstructions.
+                "PrintVariable : Stmt.Print original, Token name, Integer depth"
                 ));
     }
 
@@ -62,6 +73,13 @@ public class GenerateAst {
         writer.println("  abstract <R> R accept(Visitor<R> visitor);");
         writer.println();
 
+        // Expressions carry what TypeInference proved about them.
+        if (baseName.equals("Expr")) {
+            writer.println("  // The one type TypeInference proved this always evaluates to, or 0.");
+            writer.println("  int type;");
+            writer.println();
+        }
+
         // The AST classes.
         for (String type : types) {
             String className = type.split(":")[0].trim();